@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.benchmarks;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks the same way JMH's own main does, except the results
+ * are written as JSON by default, to a file named after the plugin version
+ * being measured. Results of two plugin versions can then be compared side by
+ * side. Any JMH command line option works, including '-rf' and '-rff' to
+ * override the result file.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList()
+                || commandLine.shouldListWithParams()
+                || commandLine.shouldListProfilers()
+                || commandLine.shouldListResultFormats()) {
+            Main.main(args);
+            return;
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .parent(commandLine);
+        if (!commandLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLine.getResult().hasValue()) {
+            File resultFile = new File("target", "jmh-result-"
+                    + getPluginVersion() + ".json");
+            resultFile.getParentFile().mkdirs();
+            options.result(resultFile.getPath());
+        }
+        new Runner(options.build()).run();
+    }
+
+    private static String getPluginVersion() throws Exception {
+        Properties properties = new Properties();
+        InputStream in = BenchmarkMain.class
+                .getResourceAsStream("/javadrop-benchmarks.properties");
+        if (in != null) {
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return properties.getProperty("javadrop.version", "unknown");
+    }
+}
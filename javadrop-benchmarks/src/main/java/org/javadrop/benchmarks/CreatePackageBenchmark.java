@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.benchmarks;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.javadrop.VelocityTemplateProcessorImpl;
+import org.javadrop.packaging.impl.RPMPackagerStrategy;
+import org.javadrop.runner.RunnerStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building an rpm with RPMPackagerStrategy.createPackage for a java app whose
+ * lib directory holds the given amount of synthetic jars, with both rpm
+ * builders. Each call is timed on its own; a 1 GB package takes a while.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class CreatePackageBenchmark {
+
+    private static final long JAR_SIZE = 10L * 1024 * 1024;
+
+    @Param({ "10", "100", "1000" })
+    public int payloadMegabytes;
+
+    @Param({ "ant", "stream" })
+    public String builder;
+
+    private File workingDirectory;
+
+    private File packageDirectory;
+
+    private RPMPackagerStrategy packager;
+
+    private List<RunnerStrategy> runners;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workingDirectory = Fixtures.createScratchDirectory("package");
+        packageDirectory = new File(workingDirectory, "packages");
+        packageDirectory.mkdirs();
+
+        Random random = new Random(42);
+        long remaining = payloadMegabytes * 1024L * 1024;
+        int jarIndex = 0;
+        while (remaining > 0) {
+            long size = Math.min(JAR_SIZE, remaining);
+            Fixtures.writeSyntheticJar(new File(workingDirectory, "lib"
+                    + File.separator + "synthetic-" + jarIndex++ + ".jar"),
+                    size, random);
+            remaining -= size;
+        }
+
+        packager = Fixtures.createRpmPackager("benchapp", builder);
+        RunnerStrategy runner = Fixtures.createJavaApp("benchapp");
+        runners = Collections.singletonList(runner);
+        packager.processTemplates(runner, new VelocityTemplateProcessorImpl(
+                Fixtures.LOG), workingDirectory);
+        packager.postProcessArtifacts(runner, workingDirectory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.deleteRecursively(workingDirectory);
+    }
+
+    @Benchmark
+    public File createPackage() throws Exception {
+        packager.createPackage(packageDirectory, workingDirectory, runners,
+                Fixtures.LOG);
+        return packageDirectory;
+    }
+}
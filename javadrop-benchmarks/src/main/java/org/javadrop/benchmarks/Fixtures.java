@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.maven.plugin.logging.Log;
+import org.javadrop.packaging.impl.RPMPackagerStrategy;
+import org.javadrop.runner.impl.JavaAppStrategy;
+
+/**
+ * Set up shared by the benchmarks: scratch directories, synthetic jars and
+ * strategies configured the way a small pom would configure them.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+final class Fixtures {
+
+    static final Log LOG = new NullLog();
+
+    private Fixtures() {
+    }
+
+    static File createScratchDirectory(String name) throws IOException {
+        File directory = File.createTempFile("javadrop-" + name, "");
+        directory.delete();
+        if (!directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        return directory;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] contents = file.listFiles();
+        if (contents != null) {
+            for (File content : contents) {
+                deleteRecursively(content);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Writes a jar sized file of random (so incompressible, like a real jar)
+     * bytes.
+     */
+    static void writeSyntheticJar(File jar, long size, Random random)
+            throws IOException {
+        jar.getParentFile().mkdirs();
+        byte[] buffer = new byte[65536];
+        OutputStream out = new FileOutputStream(jar);
+        try {
+            long remaining = size;
+            while (remaining > 0) {
+                random.nextBytes(buffer);
+                int count = (int) Math.min(buffer.length, remaining);
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static JavaAppStrategy createJavaApp(String appName) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("APP_NAME", appName);
+        parameters.put("APP_MAIN_CLASS", "org.javadrop.benchmarks.Main");
+        parameters.put("JMX_PORT", "1093");
+        JavaAppStrategy runner = new JavaAppStrategy();
+        runner.applyParameters(parameters);
+        runner.set_log(LOG);
+        return runner;
+    }
+
+    static RPMPackagerStrategy createRpmPackager(String packageName,
+            String builder) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("PKG_NAME", packageName);
+        parameters.put("PKG_VERSION", "1.0");
+        parameters.put("PKG_RELEASE", "1");
+        parameters.put("PKG_INSTALL_LOC", "/usr/local/" + packageName);
+        if (builder != null) {
+            parameters.put("PKG_RPM_BUILDER", builder);
+        }
+        RPMPackagerStrategy packager = new RPMPackagerStrategy();
+        packager.applyParameters(parameters);
+        packager.set_log(LOG);
+        return packager;
+    }
+}
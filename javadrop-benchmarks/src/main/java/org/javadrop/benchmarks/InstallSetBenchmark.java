@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.benchmarks;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.javadrop.ArtifactIndex;
+import org.javadrop.runner.impl.JavaAppStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JavaAppStrategy.getInstallSet on a lib directory of the given number of
+ * (empty) jars. This is mostly directory listing and filtering so the size of
+ * the jars doesn't matter. The listing is kept in the runner's ArtifactIndex,
+ * getInstallSetListed starts each time with a new one.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstallSetBenchmark {
+
+    @Param({ "10", "1000", "10000" })
+    public int jarCount;
+
+    private File workingDirectory;
+
+    private JavaAppStrategy runner;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workingDirectory = Fixtures.createScratchDirectory("installset");
+        File libDirectory = new File(workingDirectory, "lib");
+        libDirectory.mkdirs();
+        for (int index = 0; index < jarCount; index++) {
+            new File(libDirectory, "dependency-" + index + ".jar")
+                    .createNewFile();
+        }
+        runner = Fixtures.createJavaApp("benchapp");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.deleteRecursively(workingDirectory);
+    }
+
+    @Benchmark
+    public Map<File, Collection<File>> getInstallSet() {
+        return runner.getInstallSet(workingDirectory);
+    }
+
+    @Benchmark
+    public Map<File, Collection<File>> getInstallSetListed() {
+        runner.setArtifactIndex(new ArtifactIndex());
+        return runner.getInstallSet(workingDirectory);
+    }
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.javadrop.TemplateProcessor;
+import org.javadrop.VelocityTemplateProcessorImpl;
+import org.javadrop.packaging.impl.RPMPackagerStrategy;
+import org.javadrop.runner.RunnerStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Everything the rpm packager renders for a set of java app runners, through
+ * BasePackagerStrategy.processTemplates, as the mojo does it.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessTemplatesBenchmark {
+
+    @Param({ "1", "4", "16" })
+    public int runnerCount;
+
+    private File workingDirectory;
+
+    private RPMPackagerStrategy packager;
+
+    private List<RunnerStrategy> runners;
+
+    private TemplateProcessor processor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workingDirectory = Fixtures.createScratchDirectory("templates");
+        packager = Fixtures.createRpmPackager("benchapp", null);
+        runners = new ArrayList<RunnerStrategy>();
+        for (int index = 0; index < runnerCount; index++) {
+            runners.add(Fixtures.createJavaApp("benchapp" + index));
+        }
+        processor = new VelocityTemplateProcessorImpl(Fixtures.LOG);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.deleteRecursively(workingDirectory);
+    }
+
+    @Benchmark
+    public File processTemplates() throws Exception {
+        for (RunnerStrategy runner : runners) {
+            packager.processTemplates(runner, processor, workingDirectory);
+        }
+        return workingDirectory;
+    }
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.benchmarks;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.javadrop.VelocityTemplateProcessorImpl;
+import org.javadrop.runner.impl.JavaAppStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering a single template with
+ * {@link VelocityTemplateProcessorImpl#applyVTemplate(File, File, Map)}.
+ * 'cold' throws away the shared engine and parsed templates before every
+ * render, which is what every file used to cost. 'warm' is the steady state.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateRenderBenchmark {
+
+    private static final File TEMPLATE = new File("org" + File.separator
+            + "javadrop" + File.separator + "runnerstrategy" + File.separator
+            + "java_app" + File.separator + "bin" + File.separator
+            + "java_app_sh.vm");
+
+    private File scratch;
+
+    private File output;
+
+    private Map<String, String> parameters;
+
+    private VelocityTemplateProcessorImpl processor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        scratch = Fixtures.createScratchDirectory("render");
+        output = new File(scratch, "benchapp.sh");
+        JavaAppStrategy runner = Fixtures.createJavaApp("benchapp");
+        parameters = runner.getParameters();
+        processor = new VelocityTemplateProcessorImpl(Fixtures.LOG);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.deleteRecursively(scratch);
+        VelocityTemplateProcessorImpl.resetCache();
+    }
+
+    @Benchmark
+    public File cold() throws Exception {
+        VelocityTemplateProcessorImpl.resetCache();
+        processor.applyVTemplate(TEMPLATE, output, parameters);
+        return output;
+    }
+
+    @Benchmark
+    public File warm() throws Exception {
+        processor.applyVTemplate(TEMPLATE, output, parameters);
+        return output;
+    }
+}
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lists the directories the runners, packagers and the mojo look for
+ * artifacts in (the working directory and its 'lib') once per run rather
+ * than every time one of them asks. On a module with thousands of files in
+ * target, or on networked build storage, listing them over and over for
+ * every runner and packager adds up.
+ * 
+ * A listing is kept along with the directory's modification time and is used
+ * again for as long as that hasn't changed, so a file added or removed
+ * (staged, for example) is picked up at the cost of one stat of the
+ * directory. A directory modified just before it was listed could be modified
+ * again within its file system's timestamp granularity without the time
+ * changing, so that listing isn't kept.
+ * 
+ * Each file's size and modification time are read as it is listed. They are
+ * what they were then, a file rewritten in place doesn't change its
+ * directory.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public class ArtifactIndex {
+
+    /**
+     * A file as it was when its directory was listed.
+     */
+    public static final class Entry {
+        private final File file;
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+
+        Entry(File file, boolean directory, long size, long lastModified) {
+            this.file = file;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getName() {
+            return file.getName();
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        /**
+         * @return Size in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return Modification time in milliseconds since the epoch
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * How close to being modified a directory can be listed and the listing
+     * still be trusted. Covers the coarsest timestamps around (FAT's 2s).
+     */
+    private static final long RACY_MILLIS = 2000;
+
+    private static final Comparator<Entry> BY_NAME = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry entry1, Entry entry2) {
+            return entry1.getName().compareTo(entry2.getName());
+        }
+    };
+
+    private static final class Listing {
+        private final long modified;
+        private final List<Entry> entries;
+
+        Listing(long modified, List<Entry> entries) {
+            this.modified = modified;
+            this.entries = entries;
+        }
+    }
+
+    private final ConcurrentMap<File, Listing> listings = new ConcurrentHashMap<File, Listing>();
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * @param dir Directory to list
+     * @return What's in the directory, by name. Null if the directory doesn't
+     *         exist or can't be read.
+     */
+    public List<Entry> list(File dir) {
+        File key = dir.getAbsoluteFile();
+        Path path = key.toPath();
+        long modified;
+        try {
+            modified = Files.readAttributes(path, BasicFileAttributes.class)
+                    .lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            listings.remove(key);
+            return null;
+        }
+        Listing listing = listings.get(key);
+        if (listing != null && listing.modified == modified) {
+            hits.incrementAndGet();
+            return listing.entries;
+        }
+
+        misses.incrementAndGet();
+        long listed = System.currentTimeMillis();
+        List<Entry> entries = new ArrayList<Entry>();
+        try {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(path);
+            try {
+                for (Path child : stream) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(child,
+                                BasicFileAttributes.class);
+                    } catch (NoSuchFileException e) {
+                        // Gone since it was listed
+                        continue;
+                    }
+                    entries.add(new Entry(new File(key, child.getFileName()
+                            .toString()), attributes.isDirectory(), attributes
+                            .size(), attributes.lastModifiedTime().toMillis()));
+                }
+            } finally {
+                stream.close();
+            }
+        } catch (NotDirectoryException e) {
+            return null;
+        } catch (IOException e) {
+            listings.remove(key);
+            return null;
+        }
+        Collections.sort(entries, BY_NAME);
+        entries = Collections.unmodifiableList(entries);
+        if (listed - modified > RACY_MILLIS) {
+            listings.put(key, new Listing(modified, entries));
+        } else {
+            listings.remove(key);
+        }
+        return entries;
+    }
+
+    /**
+     * Same as File.listFiles(FilenameFilter), in name order.
+     * 
+     * @param dir Directory to list
+     * @param optionalFilter Which files to return. May be null for all of
+     *            them
+     * @return The files, a new list each call. Null if the directory doesn't
+     *         exist or can't be read
+     */
+    public List<File> listFiles(File dir, FilenameFilter optionalFilter) {
+        List<Entry> entries = list(dir);
+        if (entries == null) {
+            return null;
+        }
+        List<File> files = new ArrayList<File>(entries.size());
+        for (Entry entry : entries) {
+            if (optionalFilter == null
+                    || optionalFilter.accept(dir, entry.getName())) {
+                files.add(new File(dir, entry.getName()));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return Times a listing was used again
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Times a directory had to be listed
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+}
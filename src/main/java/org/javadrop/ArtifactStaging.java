@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Puts build artifacts where the packagers want them without touching the
+ * original. Artifacts are hard linked when the file system allows it, which
+ * costs next to nothing no matter how big the artifact is, and copied
+ * otherwise (across file systems, for example).
+ * 
+ * Since the original stays where it is the same artifact can be staged for
+ * any number of runners and packagers.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public final class ArtifactStaging {
+
+    private ArtifactStaging() {
+    }
+
+    /**
+     * Makes 'target' a copy of 'source', by linking if possible. Anything
+     * already at 'target' is replaced unless it already is 'source'.
+     *
+     * @param source
+     *            Artifact to stage. Left untouched.
+     * @param target
+     *            Where the artifact should show up
+     * @return True if the artifact was linked, false if it had to be copied
+     * @throws IOException
+     *             Problem linking and copying the artifact
+     */
+    public static boolean stage(File source, File target) throws IOException {
+        Path sourcePath = source.toPath();
+        Path targetPath = target.toPath();
+        Files.createDirectories(targetPath.toAbsolutePath().getParent());
+        if (Files.exists(targetPath)) {
+            if (Files.isSameFile(sourcePath, targetPath)) {
+                return true;
+            }
+            Files.delete(targetPath);
+        }
+        try {
+            Files.createLink(targetPath, sourcePath);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            // Fall through to copying
+        } catch (FileSystemException e) {
+            // Different file system, links not allowed...
+        }
+        copy(source, target);
+        return false;
+    }
+
+    private static void copy(File source, File target) throws IOException {
+        FileChannel in = new FileInputStream(source).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(target).getChannel();
+            try {
+                long position = 0;
+                long size = in.size();
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        target.setLastModified(source.lastModified());
+    }
+}
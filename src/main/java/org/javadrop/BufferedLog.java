@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Maven log that holds on to its messages until they are replayed into
+ * another log. Used when work is farmed out to several threads so the build
+ * output comes out in a predictable order rather than interleaved.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public class BufferedLog implements Log {
+
+    private static final int DEBUG = 0;
+    private static final int INFO = 1;
+    private static final int WARN = 2;
+    private static final int ERROR = 3;
+
+    /**
+     * A single buffered message.
+     */
+    private static class Entry {
+        final int level;
+        final CharSequence content;
+        final Throwable error;
+
+        Entry(int level, CharSequence content, Throwable error) {
+            this.level = level;
+            this.content = content;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Log the messages will eventually end up in. Also decides which levels
+     * are enabled.
+     */
+    private final Log target;
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    public BufferedLog(Log target) {
+        this.target = target;
+    }
+
+    /**
+     * Writes out everything buffered so far, in the order it was logged, and
+     * empties the buffer.
+     */
+    public synchronized void replay() {
+        for (Entry entry : entries) {
+            if (entry.content == null) {
+                replayError(entry);
+            } else {
+                replayContent(entry);
+            }
+        }
+        entries.clear();
+    }
+
+    private void replayContent(Entry entry) {
+        switch (entry.level) {
+        case DEBUG:
+            target.debug(entry.content, entry.error);
+            break;
+        case INFO:
+            target.info(entry.content, entry.error);
+            break;
+        case WARN:
+            target.warn(entry.content, entry.error);
+            break;
+        default:
+            target.error(entry.content, entry.error);
+            break;
+        }
+    }
+
+    private void replayError(Entry entry) {
+        switch (entry.level) {
+        case DEBUG:
+            target.debug(entry.error);
+            break;
+        case INFO:
+            target.info(entry.error);
+            break;
+        case WARN:
+            target.warn(entry.error);
+            break;
+        default:
+            target.error(entry.error);
+            break;
+        }
+    }
+
+    private synchronized void add(int level, CharSequence content,
+            Throwable error) {
+        entries.add(new Entry(level, content, error));
+    }
+
+    @Override
+    public boolean isDebugEnabled() {
+        return target.isDebugEnabled();
+    }
+
+    @Override
+    public void debug(CharSequence content) {
+        add(DEBUG, content, null);
+    }
+
+    @Override
+    public void debug(CharSequence content, Throwable error) {
+        add(DEBUG, content, error);
+    }
+
+    @Override
+    public void debug(Throwable error) {
+        add(DEBUG, null, error);
+    }
+
+    @Override
+    public boolean isInfoEnabled() {
+        return target.isInfoEnabled();
+    }
+
+    @Override
+    public void info(CharSequence content) {
+        add(INFO, content, null);
+    }
+
+    @Override
+    public void info(CharSequence content, Throwable error) {
+        add(INFO, content, error);
+    }
+
+    @Override
+    public void info(Throwable error) {
+        add(INFO, null, error);
+    }
+
+    @Override
+    public boolean isWarnEnabled() {
+        return target.isWarnEnabled();
+    }
+
+    @Override
+    public void warn(CharSequence content) {
+        add(WARN, content, null);
+    }
+
+    @Override
+    public void warn(CharSequence content, Throwable error) {
+        add(WARN, content, error);
+    }
+
+    @Override
+    public void warn(Throwable error) {
+        add(WARN, null, error);
+    }
+
+    @Override
+    public boolean isErrorEnabled() {
+        return target.isErrorEnabled();
+    }
+
+    @Override
+    public void error(CharSequence content) {
+        add(ERROR, content, null);
+    }
+
+    @Override
+    public void error(CharSequence content, Throwable error) {
+        add(ERROR, content, error);
+    }
+
+    @Override
+    public void error(Throwable error) {
+        add(ERROR, null, error);
+    }
+}
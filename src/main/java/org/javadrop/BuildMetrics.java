@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.maven.plugin.logging.Log;
+import org.javadrop.runner.RunnerStrategy;
+
+/**
+ * Timings, file counts and byte counts for the phases of a javadrop run. The
+ * mojo and the strategies record into it (from several threads in parallel
+ * mode) and at the end it is written out as JSON and summarized in the build
+ * log.
+ * 
+ * Times are wall clock. In parallel mode the phases overlap so they add up to
+ * more than the total.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public class BuildMetrics {
+
+    /** Creating the runner and packager strategies from the pom */
+    public static final String INIT = "init";
+
+    /** Adding the project's classpath to the plugin's */
+    public static final String CLASSPATH = "classpath";
+
+    /** Fingerprinting a packager's inputs for incremental builds */
+    public static final String FINGERPRINT = "fingerprint";
+
+    /** Giving a packager's private working directory the build artifacts */
+    public static final String SEED = "seed";
+
+    /** Rendering a single template */
+    public static final String RENDER = "render";
+
+    /** Staging build artifacts into the working directory layout */
+    public static final String STAGE = "stage";
+
+    /** Working out which files a runner installs */
+    public static final String INSTALL_SET = "installset";
+
+    /** Linking the java runtime a package ships */
+    public static final String RUNTIME = "runtime";
+
+    /** Building a package */
+    public static final String PACKAGE = "package";
+
+    /**
+     * One timed piece of work.
+     */
+    private static class Event {
+        final String phase;
+        final String subject;
+        final long nanos;
+        final long files;
+        final long bytes;
+
+        Event(String phase, String subject, long nanos, long files, long bytes) {
+            this.phase = phase;
+            this.subject = subject;
+            this.nanos = nanos;
+            this.files = files;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Totals for a phase.
+     */
+    private static class PhaseTotal {
+        long count;
+        long nanos;
+        long files;
+        long bytes;
+    }
+
+    private final long created = System.nanoTime();
+
+    private final List<Event> events = new ArrayList<Event>();
+
+    /**
+     * @return Start time to hand back to one of the record methods
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a piece of work that ran from 'start' until now.
+     *
+     * @param phase
+     *            One of the phase constants
+     * @param subject
+     *            What was worked on: a packager, a file, ...
+     * @param start
+     *            Value returned by {@link #start()}
+     */
+    public void record(String phase, String subject, long start) {
+        record(phase, subject, start, 0, 0);
+    }
+
+    /**
+     * Records a piece of work that ran from 'start' until now, along with how
+     * many files it dealt with and how many bytes it wrote.
+     *
+     * @param phase
+     *            One of the phase constants
+     * @param subject
+     *            What was worked on: a packager, a file, ...
+     * @param start
+     *            Value returned by {@link #start()}
+     * @param files
+     *            Files processed
+     * @param bytes
+     *            Bytes written
+     */
+    public void record(String phase, String subject, long start, long files,
+            long bytes) {
+        Event event = new Event(phase, subject, System.nanoTime() - start,
+                files, bytes);
+        synchronized (this) {
+            events.add(event);
+        }
+    }
+
+    /**
+     * @return How a runner shows up in the metrics: its name from the pom or,
+     *         failing that, its class
+     */
+    public static String subjectOf(RunnerStrategy runner) {
+        if (runner.getRunnerDefinition() != null
+                && runner.getRunnerDefinition().getRunnerName() != null) {
+            return runner.getRunnerDefinition().getRunnerName();
+        }
+        return runner.getClass().getSimpleName();
+    }
+
+    /**
+     * Logs a table with a line per phase and a total.
+     *
+     * @param log
+     *            Where the table goes, at info
+     */
+    public void logSummary(Log log) {
+        Map<String, PhaseTotal> totals = getTotals();
+        String format = "%-12s %8s %12s %8s %14s";
+        log.info("Javadrop timings:");
+        log.info(String.format(format, "phase", "count", "time (ms)", "files",
+                "bytes written"));
+        long files = 0;
+        long bytes = 0;
+        for (Map.Entry<String, PhaseTotal> total : totals.entrySet()) {
+            PhaseTotal phaseTotal = total.getValue();
+            log.info(String.format(format, total.getKey(), phaseTotal.count,
+                    toMillis(phaseTotal.nanos), phaseTotal.files,
+                    phaseTotal.bytes));
+            files += phaseTotal.files;
+            bytes += phaseTotal.bytes;
+        }
+        log.info(String.format(format, "total", "",
+                toMillis(System.nanoTime() - created), files, bytes));
+    }
+
+    /**
+     * Writes everything recorded so far as JSON: the totals, a summary per
+     * phase and every individual event.
+     *
+     * @param file
+     *            File to write
+     * @throws IOException
+     *             Problem writing the file
+     */
+    public void write(File file) throws IOException {
+        List<Event> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<Event>(events);
+        }
+        Map<String, PhaseTotal> totals = getTotals();
+        long files = 0;
+        long bytes = 0;
+        for (PhaseTotal phaseTotal : totals.values()) {
+            files += phaseTotal.files;
+            bytes += phaseTotal.bytes;
+        }
+
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), "UTF-8"));
+        try {
+            out.write("{\n");
+            out.write("  \"totalMillis\": "
+                    + toMillis(System.nanoTime() - created) + ",\n");
+            out.write("  \"filesProcessed\": " + files + ",\n");
+            out.write("  \"bytesWritten\": " + bytes + ",\n");
+            out.write("  \"phases\": [");
+            String separator = "\n";
+            for (Map.Entry<String, PhaseTotal> total : totals.entrySet()) {
+                PhaseTotal phaseTotal = total.getValue();
+                out.write(separator + "    {\"phase\": "
+                        + quote(total.getKey()) + ", \"count\": "
+                        + phaseTotal.count + ", \"millis\": "
+                        + toMillis(phaseTotal.nanos) + ", \"files\": "
+                        + phaseTotal.files + ", \"bytes\": "
+                        + phaseTotal.bytes + "}");
+                separator = ",\n";
+            }
+            out.write("\n  ],\n");
+            out.write("  \"events\": [");
+            separator = "\n";
+            for (Event event : snapshot) {
+                out.write(separator + "    {\"phase\": " + quote(event.phase)
+                        + ", \"subject\": " + quote(event.subject)
+                        + ", \"millis\": " + toMillis(event.nanos)
+                        + ", \"files\": " + event.files + ", \"bytes\": "
+                        + event.bytes + "}");
+                separator = ",\n";
+            }
+            out.write("\n  ]\n");
+            out.write("}\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return Phase -> totals, in the order the phases were first recorded
+     */
+    private synchronized Map<String, PhaseTotal> getTotals() {
+        Map<String, PhaseTotal> totals = new LinkedHashMap<String, PhaseTotal>();
+        for (Event event : events) {
+            PhaseTotal total = totals.get(event.phase);
+            if (total == null) {
+                total = new PhaseTotal();
+                totals.put(event.phase, total);
+            }
+            total.count++;
+            total.nanos += event.nanos;
+            total.files += event.files;
+            total.bytes += event.bytes;
+        }
+        return totals;
+    }
+
+    private static String toMillis(long nanos) {
+        // Not the default locale, this ends up in JSON
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2);
+        quoted.append('"');
+        for (int index = 0; index < value.length(); index++) {
+            char c = value.charAt(index);
+            switch (c) {
+            case '"':
+                quoted.append("\\\"");
+                break;
+            case '\\':
+                quoted.append("\\\\");
+                break;
+            case '\n':
+                quoted.append("\\n");
+                break;
+            case '\r':
+                quoted.append("\\r");
+                break;
+            case '\t':
+                quoted.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    quoted.append(String.format(Locale.ROOT, "\\u%04x",
+                            (int) c));
+                } else {
+                    quoted.append(c);
+                }
+            }
+        }
+        quoted.append('"');
+        return quoted.toString();
+    }
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Template processor that only records what it is asked to render. The
+ * recorded templates are rendered later, concurrently, by
+ * {@link #renderAll(ExecutorService, Log)}.
+ *
+ * The mojo records the templates of all of a packager's runners, staging
+ * each runner's artifacts as it goes, and renders them all at once at the
+ * end. Several runners can ask for the same output file (the packager
+ * scripts, for example). Only the last request for a given output file is
+ * kept, which is the file the sequential processing ends up with.
+ *
+ * @author gcooperpdx
+ *
+ */
+public class DeferredTemplateProcessor implements TemplateProcessor {
+
+    /**
+     * A template waiting to be rendered.
+     */
+    private static class RenderJob {
+        final File inputTemplateFile;
+        final File convertedFile;
+        final Map<String, String> templateParams;
+
+        RenderJob(File inputTemplateFile, File convertedFile,
+                Map<String, String> templateParams) {
+            this.inputTemplateFile = inputTemplateFile;
+            this.convertedFile = convertedFile;
+            this.templateParams = templateParams;
+        }
+    }
+
+    /**
+     * Pending templates keyed by the output file, in the order they were last
+     * requested.
+     */
+    private final Map<File, RenderJob> pending = new LinkedHashMap<File, RenderJob>();
+
+    /**
+     * Where the render timings go
+     */
+    private final BuildMetrics metrics;
+
+    public DeferredTemplateProcessor(BuildMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public synchronized void applyVTemplate(File inputTemplateFile,
+            File convertedFile, Map<String, String> templateParams)
+            throws MojoExecutionException {
+        // The caller is free to keep changing its map so take a copy.
+        RenderJob job = new RenderJob(inputTemplateFile, convertedFile,
+                new HashMap<String, String>(templateParams));
+        pending.remove(convertedFile);
+        pending.put(convertedFile, job);
+    }
+
+    /**
+     * Renders every recorded template using the given executor and waits for
+     * them to finish. Each template logs into its own buffer which is written
+     * to 'log' in the order the templates were recorded.
+     *
+     * @param executor
+     *            Threads to do the rendering on
+     * @param log
+     *            Where the output of the template processing goes
+     * @throws MojoExecutionException
+     *             The first rendering problem encountered
+     */
+    public void renderAll(ExecutorService executor, Log log)
+            throws MojoExecutionException {
+        List<RenderJob> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<RenderJob>(pending.values());
+            pending.clear();
+        }
+
+        List<BufferedLog> jobLogs = new ArrayList<BufferedLog>();
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (final RenderJob job : jobs) {
+            final BufferedLog jobLog = new BufferedLog(log);
+            jobLogs.add(jobLog);
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    new TimedTemplateProcessor(
+                            new VelocityTemplateProcessorImpl(jobLog), metrics)
+                            .applyVTemplate(job.inputTemplateFile,
+                                    job.convertedFile, job.templateParams);
+                    return null;
+                }
+            }));
+        }
+
+        MojoExecutionException failure = null;
+        for (int index = 0; index < results.size(); index++) {
+            try {
+                results.get(index).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new MojoExecutionException(
+                            "Interrupted while processing templates", e);
+                }
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = JavadropMojo.asMojoException(e.getCause());
+                }
+            }
+            jobLogs.get(index).replay();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
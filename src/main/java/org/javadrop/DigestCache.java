@@ -0,0 +1,409 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers the digests of the files that get packaged so they are only read
+ * and hashed once, no matter how many packagers, modules or builds package
+ * them.
+ * 
+ * The cache lives in a directory shared by all builds (normally
+ * ~/.m2/javadrop-cache) and is content addressed: 'objects' holds the digests
+ * and size of each distinct content, named by its SHA-256. 'files' maps a file
+ * as it sits on disk (its inode, or path where there is no such thing, along
+ * with its size and modification time) to the SHA-256 of its content. A file
+ * whose size or modification time changed is simply a miss. Hard links share
+ * an inode so artifacts staged by linking are found under their original.
+ * 
+ * Entries are written to a temporary file and moved into place so concurrent
+ * builds never see half an entry. Anything unreadable is treated as a miss.
+ * Without a directory the cache only lasts for the current run.
+ * 
+ * Entries are touched whenever a run reads them, and {@link #prune(long)}
+ * removes the ones no run has used for a while. It is meant to be called as
+ * the cache is opened and walks the directory at most once a day, however many
+ * builds open it. Deleting the directory by hand is always safe too.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public class DigestCache {
+
+    /**
+     * What the cache knows about some content.
+     */
+    public static final class Digests {
+        private final String sha256;
+        private final String md5;
+        private final long size;
+
+        public Digests(String sha256, String md5, long size) {
+            this.sha256 = sha256;
+            this.md5 = md5;
+            this.size = size;
+        }
+
+        /**
+         * @return Hex SHA-256 of the content
+         */
+        public String getSha256() {
+            return sha256;
+        }
+
+        /**
+         * @return Hex MD5 of the content, as rpm headers want it
+         */
+        public String getMd5() {
+            return md5;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * How often {@link #prune(long)} actually walks the directory
+     */
+    static final long PRUNE_INTERVAL = 24L * 60 * 60 * 1000;
+
+    private final File directory;
+
+    /**
+     * File key -> digests, for the files seen during this run
+     */
+    private final ConcurrentMap<String, Digests> known = new ConcurrentHashMap<String, Digests>();
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * @param directory
+     *            Where the cache is kept, null to only cache for this run
+     */
+    public DigestCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Looks a file up without reading it.
+     *
+     * @param file
+     *            File to look up
+     * @return Its digests, null if the file (as it is now) isn't known
+     * @throws IOException
+     *             Problem reading the file's attributes
+     */
+    public Digests get(File file) throws IOException {
+        String key = fileKey(file);
+        Digests digests = known.get(key);
+        if (digests == null && directory != null) {
+            Properties fileEntry = load(getFileEntry(key));
+            if (fileEntry != null) {
+                String sha256 = fileEntry.getProperty("sha256");
+                digests = sha256 == null ? null : loadObject(sha256);
+                if (digests != null) {
+                    known.put(key, digests);
+                    long now = System.currentTimeMillis();
+                    getFileEntry(key).setLastModified(now);
+                    getObject(sha256).setLastModified(now);
+                }
+            }
+        }
+        if (digests == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return digests;
+    }
+
+    /**
+     * Returns a file's digests, reading and hashing the file only if the cache
+     * doesn't know it yet.
+     *
+     * @param file
+     *            File to digest
+     * @return Its digests
+     * @throws IOException
+     *             Problem reading the file
+     */
+    public Digests digest(File file) throws IOException {
+        Digests digests = get(file);
+        if (digests != null) {
+            return digests;
+        }
+        String key = fileKey(file);
+        MessageDigest sha256 = newDigest("SHA-256");
+        MessageDigest md5 = newDigest("MD5");
+        long size = 0;
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(65536);
+            int read;
+            while ((read = channel.read(buffer)) != -1) {
+                buffer.flip();
+                sha256.update(buffer.duplicate());
+                md5.update(buffer);
+                buffer.clear();
+                size += read;
+            }
+        } finally {
+            channel.close();
+        }
+        digests = new Digests(toHex(sha256.digest()), toHex(md5.digest()),
+                size);
+        put(file, key, digests);
+        return digests;
+    }
+
+    /**
+     * Records the digests of a file that was hashed elsewhere, while being
+     * packaged for example.
+     *
+     * @param file
+     *            File that was hashed
+     * @param digests
+     *            Its digests
+     * @throws IOException
+     *             Problem reading the file's attributes
+     */
+    public void put(File file, Digests digests) throws IOException {
+        put(file, fileKey(file), digests);
+    }
+
+    /**
+     * Removes the entries that haven't been used for a while. Only does
+     * anything if no one pruned the cache during the last day, so it's cheap
+     * to call every time the cache is opened. Entries another build is using
+     * right now just turn into misses.
+     *
+     * @param maxAge
+     *            Milliseconds an entry is kept after it was last used, 0 or
+     *            less to keep everything
+     * @return Number of entries removed
+     */
+    public int prune(long maxAge) {
+        if (directory == null || maxAge <= 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        File marker = new File(directory, "pruned");
+        // lastModified() is 0 when there's no marker yet
+        if (now - marker.lastModified() < PRUNE_INTERVAL) {
+            return 0;
+        }
+        directory.mkdirs();
+        try {
+            if (!marker.createNewFile()) {
+                marker.setLastModified(now);
+            }
+        } catch (IOException e) {
+            // Not writable, so nothing to prune either
+            return 0;
+        }
+        return prune(new File(directory, "files"), now - maxAge)
+                + prune(new File(directory, "objects"), now - maxAge);
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @param key
+     *            Key of the file taken before it was read. If the file changed
+     *            while it was read the digests are thrown away.
+     */
+    private void put(File file, String key, Digests digests) throws IOException {
+        if (!key.equals(fileKey(file))) {
+            return;
+        }
+        known.put(key, digests);
+        if (directory == null) {
+            return;
+        }
+        File object = getObject(digests.getSha256());
+        if (!object.isFile()) {
+            Properties objectEntry = new Properties();
+            objectEntry.setProperty("sha256", digests.getSha256());
+            objectEntry.setProperty("md5", digests.getMd5());
+            objectEntry.setProperty("size", String.valueOf(digests.getSize()));
+            store(objectEntry, object);
+        }
+        Properties fileEntry = new Properties();
+        fileEntry.setProperty("sha256", digests.getSha256());
+        fileEntry.setProperty("file", file.getAbsolutePath());
+        store(fileEntry, getFileEntry(key));
+    }
+
+    private Digests loadObject(String sha256) {
+        Properties objectEntry = load(getObject(sha256));
+        if (objectEntry == null
+                || !sha256.equals(objectEntry.getProperty("sha256"))
+                || objectEntry.getProperty("md5") == null) {
+            return null;
+        }
+        try {
+            return new Digests(sha256, objectEntry.getProperty("md5"),
+                    Long.parseLong(objectEntry.getProperty("size")));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private File getObject(String sha256) {
+        return new File(directory, "objects" + File.separator
+                + sha256.substring(0, 2) + File.separator + sha256
+                + ".properties");
+    }
+
+    private File getFileEntry(String key) {
+        String hash = toHex(newDigest("SHA-256").digest(
+                key.getBytes(StandardCharsets.UTF_8)));
+        return new File(directory, "files" + File.separator
+                + hash.substring(0, 2) + File.separator + hash + ".properties");
+    }
+
+    /**
+     * Deletes the entries (and stray temporary files) under one of the two
+     * levels deep trees that were last used before a given time. The
+     * directories are left alone as other builds may be about to write to
+     * them.
+     */
+    private static int prune(File tree, long before) {
+        int removed = 0;
+        File[] buckets = tree.listFiles();
+        if (buckets == null) {
+            return 0;
+        }
+        for (File bucket : buckets) {
+            File[] entries = bucket.listFiles();
+            if (entries == null) {
+                continue;
+            }
+            for (File entry : entries) {
+                if (entry.isFile() && entry.lastModified() < before
+                        && entry.delete()) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Identifies a file as it is on disk right now.
+     */
+    private static String fileKey(File file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(),
+                BasicFileAttributes.class);
+        Object identity = attributes.fileKey();
+        if (identity == null) {
+            identity = file.getCanonicalPath();
+        }
+        return identity + ":" + attributes.size() + ":"
+                + attributes.lastModifiedTime().toMillis();
+    }
+
+    private static Properties load(File entry) {
+        if (!entry.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(entry);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            // Malformed escapes
+            return null;
+        }
+        return properties;
+    }
+
+    private static void store(Properties properties, File entry)
+            throws IOException {
+        File parent = entry.getParentFile();
+        parent.mkdirs();
+        File temp = File.createTempFile("entry", ".tmp", parent);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                properties.store(out, null);
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(temp.toPath(), entry.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), entry.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to have MD5 and SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
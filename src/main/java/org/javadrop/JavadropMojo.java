@@ -16,18 +16,29 @@
 package org.javadrop;
 
 import java.io.File;
-import java.lang.reflect.Method;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-
-import javax.management.IntrospectionException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.maven.artifact.DependencyResolutionRequiredException;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
 import org.javadrop.packaging.PackagerStrategy;
 import org.javadrop.runner.RunnerStrategy;
@@ -104,6 +115,82 @@ public class JavadropMojo extends AbstractMojo {
         this.packageDirectory = packageDirectory;
     }
 
+    /**
+     * Number of threads used to render templates and build packages. The
+     * default of 1 processes everything sequentially, in pom order.
+     * 
+     * With more than one thread each packager is run as its own task and the
+     * templates of all its runners are rendered concurrently. Artifacts are
+     * still staged a runner at a time, in pom order. When there are several
+     * packagers each one works in its own subdirectory of the working
+     * directory so they don't overwrite each other's scripts.
+     * 
+     * @parameter expression="${javadrop.threads}" default-value="1"
+     */
+    private int threads = 1;
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Skip packagers whose inputs haven't changed since their package was
+     * last built. The inputs (templates, parameters and build artifacts) are
+     * fingerprinted into the working directory after each package is built.
+     * Turn this off to force everything to be regenerated.
+     * 
+     * @parameter expression="${javadrop.incremental}" default-value="true"
+     */
+    private boolean incremental = true;
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Directory the digests of packaged files are cached in, shared by all
+     * modules and builds. Files that are already in the cache aren't read
+     * again to fingerprint or package them. Set to an empty value to only
+     * cache digests for the current run.
+     * 
+     * @parameter expression="${javadrop.digestCache}"
+     *            default-value="${user.home}/.m2/javadrop-cache"
+     */
+    private File digestCacheDirectory;
+
+    public void setDigestCacheDirectory(File digestCacheDirectory) {
+        this.digestCacheDirectory = digestCacheDirectory;
+    }
+
+    /**
+     * Days a digest stays in the cache after a build last used it. The cache
+     * is pruned at most once a day, when a build opens it. Set to 0 to keep
+     * everything.
+     * 
+     * @parameter expression="${javadrop.digestCacheMaxAge}" default-value="30"
+     */
+    private int digestCacheMaxAge = 30;
+
+    public void setDigestCacheMaxAge(int digestCacheMaxAge) {
+        this.digestCacheMaxAge = digestCacheMaxAge;
+    }
+
+    private DigestCache digestCache = new DigestCache(null);
+
+    private ArtifactIndex artifactIndex = new ArtifactIndex();
+
+    /**
+     * Loads the strategies during an execution: the plugin's own classes plus
+     * the project's compile classpath.
+     */
+    private ClassLoader strategyClassLoader;
+
+    /**
+     * Timings of the current run. Written to 'javadrop-metrics.json' in the
+     * working directory and summarized in the log at the end of the run.
+     */
+    private BuildMetrics metrics = new BuildMetrics();
+
     /*
      * (non-Javadoc)
      * 
@@ -111,52 +198,493 @@ public class JavadropMojo extends AbstractMojo {
      */
     public void execute() throws MojoExecutionException {
         getLog().info("Javadrop Mojo processing started...");
+        metrics = new BuildMetrics();
+        if (digestCacheDirectory != null
+                && digestCacheDirectory.getPath().length() == 0) {
+            digestCacheDirectory = null;
+        }
+        digestCache = new DigestCache(digestCacheDirectory);
+        int pruned = digestCache.prune(digestCacheMaxAge * 24L * 60 * 60 * 1000);
+        if (pruned > 0) {
+            getLog().debug("Pruned " + pruned + " unused digest cache entries");
+        }
+        artifactIndex = new ArtifactIndex();
 
+        URLClassLoader projectLoader = null;
+        Thread thread = Thread.currentThread();
+        ClassLoader contextLoader = thread.getContextClassLoader();
         try {
-            if ((mavenProject != null)
-                    && (mavenProject.getCompileClasspathElements() != null)) {
-                getLog().info("Class augmented with project.");
-                for (int index = 0; index < mavenProject
-                        .getCompileClasspathElements().size(); index++) {
-                    String path = (String) mavenProject
-                            .getCompileClasspathElements().get(index);
-                    URL cpUrl = new File(path).toURL();
-                    addURLToSystemClassLoader(cpUrl);
+            strategyClassLoader = getClass().getClassLoader();
+            try {
+                if ((mavenProject != null)
+                        && (mavenProject.getCompileClasspathElements() != null)) {
+                    getLog().info("Class augmented with project.");
+                    long start = metrics.start();
+                    @SuppressWarnings("unchecked")
+                    List<String> elements = mavenProject
+                            .getCompileClasspathElements();
+                    projectLoader = StrategyClassLoaders.create(elements,
+                            strategyClassLoader);
+                    strategyClassLoader = projectLoader;
+                    metrics.record(BuildMetrics.CLASSPATH, "compile classpath",
+                            start, elements.size(), 0);
+                }
+                // Templates are looked up through the context loader, this
+                // lets the project supply its own. Threads started from here
+                // on inherit it.
+                thread.setContextClassLoader(strategyClassLoader);
+                long start = metrics.start();
+                initStrategies();
+                metrics.record(BuildMetrics.INIT, "strategies", start,
+                        runnerStrategies.size() + packagerStrategies.size(), 0);
+            } catch (MalformedURLException e) {
+                getLog().warn("Can't add compile classpath elements to mojo!", e);
+            } catch (DependencyResolutionRequiredException e) {
+                getLog().warn("Can't add compile classpath elements to mojo!", e);
+            } catch (ClassNotFoundException e) {
+                getLog().warn(e);
+            } catch (InstantiationException e) {
+                getLog().warn(e);
+            } catch (IllegalAccessException e) {
+                getLog().warn(e);
+            } catch (NoSuchMethodException e) {
+                getLog().warn(e);
+            } catch (InvocationTargetException e) {
+                getLog().warn(e);
+            }
+
+            try {
+                if (threads > 1) {
+                    executeParallel();
+                } else {
+                    executeSequential();
+                }
+            } finally {
+                reportMetrics();
+            }
+        } finally {
+            thread.setContextClassLoader(contextLoader);
+            strategyClassLoader = null;
+            if (projectLoader != null) {
+                try {
+                    projectLoader.close();
+                } catch (IOException e) {
+                    getLog().debug("Can't close the project class loader", e);
                 }
             }
-            initStrategies();
-        } catch (MalformedURLException e) {
-            getLog().warn("Can't add compile classpath elements to mojo!", e);
-        } catch (DependencyResolutionRequiredException e) {
-            getLog().warn("Can't add compile classpath elements to mojo!", e);
-        } catch (IntrospectionException e) {
-            getLog().warn("Can't add compile classpath elements to mojo!", e);
-        } catch (ClassNotFoundException e) {
-            getLog().warn(e);
-        } catch (InstantiationException e) {
-            getLog().warn(e);
-        } catch (IllegalAccessException e) {
-            getLog().warn(e);
         }
+        getLog().debug("Digest cache: " + digestCache.getHits() + " hits, "
+                + digestCache.getMisses() + " misses");
+        getLog().debug("Artifact index: " + artifactIndex.getHits()
+                + " hits, " + artifactIndex.getMisses() + " misses");
+        getLog().info("Javadrop complete.");
+    }
 
+    /**
+     * Logs the timing summary and writes the full metrics out as JSON. Not
+     * being able to write the metrics doesn't fail the build.
+     */
+    private void reportMetrics() {
+        metrics.logSummary(getLog());
+        File metricsFile = new File(workingDirectory, "javadrop-metrics.json");
+        try {
+            metrics.write(metricsFile);
+        } catch (IOException e) {
+            getLog().warn("Can't write " + metricsFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Processes the packagers and runners one after another, in pom order.
+     * 
+     * @throws MojoExecutionException
+     *             Problem processing templates or creating a package
+     */
+    private void executeSequential() throws MojoExecutionException {
         // Process runner scripts in the context of a packager.
-        TemplateProcessor processor = new VelocityTemplateProcessorImpl(
-                getLog());
-        for (PackagerStrategy packager : packagerStrategies) {
+        TemplateProcessor processor = new TimedTemplateProcessor(
+                new VelocityTemplateProcessorImpl(getLog()), metrics);
+        for (int index = 0; index < packagerStrategies.size(); index++) {
+            PackagerStrategy packager = packagerStrategies.get(index);
+            File manifest = fingerprintManifest(index);
+            long start = metrics.start();
+            PackageFingerprint fingerprint = fingerprint(packager,
+                    runnerStrategies);
+            boolean upToDate = isUpToDate(packager, fingerprint, manifest,
+                    getLog());
+            metrics.record(BuildMetrics.FINGERPRINT, getPackageName(packager),
+                    start);
+            if (upToDate) {
+                continue;
+            }
+            Map<String, Long> existingPackages = listPackages();
+
             for (RunnerStrategy runner : runnerStrategies) {
                 // Convert scripts
                 packager.processTemplates(runner, processor, workingDirectory);
 
                 // Do mappings, renames, whatever in the runner.
-                packager.postProcessArtifacts(runner, workingDirectory);
+                stageArtifacts(packager, runner, workingDirectory);
             }
             
             packager.createPackage(packageDirectory, workingDirectory,
                     filteredRunnerStrats(packager, runnerStrategies), getLog());
 //            packager.createPackage(packageDirectory, workingDirectory,
 //                    runnerStrategies, getLog());
+            recordFingerprint(fingerprint, manifest, existingPackages);
         }
-        getLog().info("Javadrop complete.");
+    }
+
+    /**
+     * Runs the packagers concurrently. Each packager gets its own runner
+     * strategies and its own log, the logs are written out in pom order as the
+     * packagers finish.
+     * 
+     * @throws MojoExecutionException
+     *             The first packager failure, in pom order
+     */
+    private void executeParallel() throws MojoExecutionException {
+        getLog().info("Processing " + packagerStrategies.size()
+                + " packager(s) with " + threads + " threads.");
+        ExecutorService packagerExecutor = Executors.newFixedThreadPool(Math
+                .max(1, Math.min(threads, packagerStrategies.size())));
+        // Render jobs get their own pool so a packager waiting on its templates
+        // can't starve them of threads.
+        final ExecutorService renderExecutor = Executors
+                .newFixedThreadPool(threads);
+        try {
+            // Packagers all write to the same package directory so it has to
+            // be looked at before any of them start.
+            final Map<String, Long> existingPackages = listPackages();
+            List<BufferedLog> logs = new ArrayList<BufferedLog>();
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int index = 0; index < packagerStrategies.size(); index++) {
+                final PackagerStrategy packager = packagerStrategies.get(index);
+                final File manifest = fingerprintManifest(index);
+                final BufferedLog log = new BufferedLog(getLog());
+                final List<RunnerStrategy> runners = createRunnerStrategies(log);
+                final File packagerWorkingDirectory = packagerStrategies
+                        .size() == 1 ? workingDirectory : new File(
+                        workingDirectory, "javadrop" + File.separator
+                                + "packager-" + index);
+                logs.add(log);
+                results.add(packagerExecutor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        packager.set_log(log);
+                        try {
+                            processInParallel(packager, runners, manifest,
+                                    packagerWorkingDirectory, existingPackages,
+                                    renderExecutor, log);
+                        } finally {
+                            // The buffer is only replayed once
+                            packager.set_log(getLog());
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            MojoExecutionException failure = null;
+            for (int index = 0; index < results.size(); index++) {
+                try {
+                    results.get(index).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if (failure == null) {
+                        failure = new MojoExecutionException(
+                                "Interrupted while packaging", e);
+                    }
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = asMojoException(e.getCause());
+                    }
+                }
+                logs.get(index).replay();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (ClassNotFoundException e) {
+            throw new MojoExecutionException("Can't create runner strategy", e);
+        } catch (InstantiationException e) {
+            throw new MojoExecutionException("Can't create runner strategy", e);
+        } catch (IllegalAccessException e) {
+            throw new MojoExecutionException("Can't create runner strategy", e);
+        } catch (NoSuchMethodException e) {
+            throw new MojoExecutionException("Can't create runner strategy", e);
+        } catch (InvocationTargetException e) {
+            throw new MojoExecutionException("Can't create runner strategy", e);
+        } finally {
+            packagerExecutor.shutdownNow();
+            renderExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * One packager's share of {@link #executeParallel()}: fingerprints it and,
+     * unless its package is up to date, seeds its working directory and
+     * builds the package.
+     */
+    private void processInParallel(PackagerStrategy packager,
+            List<RunnerStrategy> runners, File manifest,
+            File packagerWorkingDirectory, Map<String, Long> existingPackages,
+            ExecutorService renderExecutor, Log log) throws Exception {
+        long start = metrics.start();
+        PackageFingerprint fingerprint = fingerprint(packager, runners);
+        boolean upToDate = isUpToDate(packager, fingerprint, manifest, log);
+        metrics.record(BuildMetrics.FINGERPRINT, getPackageName(packager),
+                start);
+        if (upToDate) {
+            return;
+        }
+        if (packagerWorkingDirectory != workingDirectory) {
+            start = metrics.start();
+            seedWorkingDirectory(workingDirectory, packagerWorkingDirectory);
+            metrics.record(BuildMetrics.SEED, getPackageName(packager), start);
+        }
+        processPackager(packager, runners, packagerWorkingDirectory,
+                renderExecutor, log);
+        recordFingerprint(fingerprint, manifest, existingPackages);
+    }
+
+    /**
+     * Does the work for one packager: records every runner's templates and
+     * post-processes its artifacts, a runner at a time in the order the
+     * sequential build does, then renders all the runners' templates
+     * concurrently and creates the package. Post-processing only stages the
+     * build's jars and wars, it never reads or writes a rendered file, so
+     * leaving the rendering until last doesn't change the result.
+     */
+    private void processPackager(PackagerStrategy packager,
+            List<RunnerStrategy> runners, File packagerWorkingDirectory,
+            ExecutorService renderExecutor, Log log)
+            throws MojoExecutionException {
+        DeferredTemplateProcessor processor = new DeferredTemplateProcessor(
+                metrics);
+        for (RunnerStrategy runner : runners) {
+            packager.processTemplates(runner, processor,
+                    packagerWorkingDirectory);
+            stageArtifacts(packager, runner, packagerWorkingDirectory);
+        }
+        processor.renderAll(renderExecutor, log);
+
+        packager.createPackage(packageDirectory, packagerWorkingDirectory,
+                filteredRunnerStrats(packager, runners), log);
+    }
+
+    /**
+     * Post-processes a runner's artifacts, timing it.
+     */
+    private void stageArtifacts(PackagerStrategy packager,
+            RunnerStrategy runner, File packagerWorkingDirectory)
+            throws MojoExecutionException {
+        long start = metrics.start();
+        packager.postProcessArtifacts(runner, packagerWorkingDirectory);
+        metrics.record(BuildMetrics.STAGE, getPackageName(packager) + "/"
+                + BuildMetrics.subjectOf(runner), start);
+    }
+
+    private static String getPackageName(PackagerStrategy packager) {
+        return packager.getParameters().get("PKG_NAME");
+    }
+
+    /**
+     * Where the fingerprint of a packager's inputs is kept. Outside of the
+     * packagers' own working directories since those get cleaned out.
+     */
+    private File fingerprintManifest(int packagerIndex) {
+        return new File(workingDirectory, "javadrop" + File.separator
+                + "fingerprint-" + packagerIndex + ".properties");
+    }
+
+    /**
+     * Fingerprints a packager's inputs ahead of processing it.
+     * 
+     * @return The fingerprint, null if incremental builds are turned off
+     * @throws MojoExecutionException
+     *             Problem reading the inputs
+     */
+    private PackageFingerprint fingerprint(PackagerStrategy packager,
+            List<RunnerStrategy> runners) throws MojoExecutionException {
+        if (!incremental) {
+            return null;
+        }
+        try {
+            return PackageFingerprint.compute(packager, runners,
+                    workingDirectory, digestCache, artifactIndex);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Can't fingerprint package inputs",
+                    e);
+        }
+    }
+
+    /**
+     * Checks whether the package built last time is still good. If it isn't
+     * the old fingerprint is removed so it doesn't outlive a failed build.
+     */
+    private boolean isUpToDate(PackagerStrategy packager,
+            PackageFingerprint fingerprint, File manifest, Log log) {
+        if (fingerprint == null) {
+            return false;
+        }
+        if (fingerprint.isUpToDate(manifest, log)) {
+            log.info("Package " + getPackageName(packager)
+                    + " is up to date.");
+            return true;
+        }
+        manifest.delete();
+        return false;
+    }
+
+    /**
+     * Writes out the fingerprint of a package that has just been built along
+     * with the package files it produced.
+     */
+    private void recordFingerprint(PackageFingerprint fingerprint,
+            File manifest, Map<String, Long> existingPackages)
+            throws MojoExecutionException {
+        if (fingerprint == null) {
+            return;
+        }
+        List<File> outputs = new ArrayList<File>();
+        File[] packages = packageDirectory.listFiles();
+        if (packages != null) {
+            for (File pkg : packages) {
+                Long previous = existingPackages.get(pkg.getName());
+                if (pkg.isFile()
+                        && (previous == null || previous.longValue() != pkg
+                                .lastModified())) {
+                    outputs.add(pkg);
+                }
+            }
+        }
+        try {
+            fingerprint.write(manifest, outputs);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Can't write "
+                    + manifest.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * @return Name -> last modified time of the files in the package
+     *         directory.
+     */
+    private Map<String, Long> listPackages() {
+        Map<String, Long> packages = new HashMap<String, Long>();
+        File[] files = packageDirectory == null ? null : packageDirectory
+                .listFiles();
+        if (files != null) {
+            for (File file : files) {
+                packages.put(file.getName(), file.lastModified());
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * Gives a packager's private working directory the build artifacts the
+     * runners work from: the jars and wars at the top of the working directory
+     * and the contents of 'lib'. The artifacts are linked where possible
+     * rather than copied. An artifact seeded by a previous build is left alone
+     * while it is still the same file, or the same size and modification time,
+     * so only new and changed artifacts are staged. Anything else left over
+     * from a previous build is removed.
+     * 
+     * @param source
+     *            The mojo's working directory
+     * @param target
+     *            The packager's working directory
+     * @throws IOException
+     *             Problem staging the artifacts
+     */
+    private void seedWorkingDirectory(File source, File target)
+            throws IOException {
+        FilenameFilter artifactFilter = new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                String lowerName = name.toLowerCase();
+                return lowerName.endsWith(".jar") || lowerName.endsWith(".war");
+            }
+        };
+        Set<String> seeded = seedFiles(source, target, artifactFilter);
+        seeded.add("lib");
+        removeOthers(target, seeded);
+        File targetLib = new File(target, "lib");
+        removeOthers(targetLib, seedFiles(new File(source, "lib"), targetLib,
+                null));
+    }
+
+    /**
+     * Stages the files in one directory that aren't there already.
+     * 
+     * @return Names of the files seeded
+     */
+    private Set<String> seedFiles(File sourceDir, File targetDir,
+            FilenameFilter optionalFilter) throws IOException {
+        Set<String> seeded = new HashSet<String>();
+        targetDir.mkdirs();
+        List<ArtifactIndex.Entry> entries = artifactIndex.list(sourceDir);
+        if (entries == null) {
+            return seeded;
+        }
+        for (ArtifactIndex.Entry entry : entries) {
+            if (entry.isDirectory()
+                    || (optionalFilter != null && !optionalFilter.accept(
+                            sourceDir, entry.getName()))) {
+                continue;
+            }
+            File target = new File(targetDir, entry.getName());
+            if (!isSeeded(entry, target)) {
+                ArtifactStaging.stage(entry.getFile(), target);
+            }
+            seeded.add(entry.getName());
+        }
+        return seeded;
+    }
+
+    private static boolean isSeeded(ArtifactIndex.Entry source, File target)
+            throws IOException {
+        if (!target.isFile()) {
+            return false;
+        }
+        return Files.isSameFile(source.getFile().toPath(), target.toPath())
+                || (target.length() == source.getSize() && target
+                        .lastModified() == source.getLastModified());
+    }
+
+    private static void removeOthers(File dir, Set<String> keep) {
+        File[] contents = dir.listFiles();
+        if (contents != null) {
+            for (File content : contents) {
+                if (!keep.contains(content.getName())) {
+                    deleteRecursively(content);
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] contents = file.listFiles();
+        if (contents != null) {
+            for (File content : contents) {
+                deleteRecursively(content);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Converts whatever went wrong on a worker thread into something maven
+     * will report.
+     */
+    static MojoExecutionException asMojoException(Throwable cause) {
+        if (cause instanceof MojoExecutionException) {
+            return (MojoExecutionException) cause;
+        }
+        return new MojoExecutionException("Javadrop processing problem: "
+                + cause.getMessage(), cause);
     }
 
     private List<RunnerStrategy> filteredRunnerStrats(PackagerStrategy packagerStrat, List<RunnerStrategy> runnerStrats) {
@@ -171,22 +699,11 @@ public class JavadropMojo extends AbstractMojo {
         return filteredStrats;
     }
     
-    public void addURLToSystemClassLoader(URL url)
-            throws IntrospectionException {
-        URLClassLoader systemClassLoader = (URLClassLoader) ClassLoader
-                .getSystemClassLoader();
-        Class classLoaderClass = URLClassLoader.class;
-
-        try {
-            Method method = classLoaderClass.getDeclaredMethod("addURL",
-                    new Class[] { URL.class });
-            method.setAccessible(true);
-            method.invoke(systemClassLoader, new Object[] { url });
-        } catch (Throwable t) {
-            t.printStackTrace();
-            throw new IntrospectionException(
-                    "Error when adding url to system ClassLoader ");
+    private ClassLoader getStrategyClassLoader() {
+        if (strategyClassLoader == null) {
+            return getClass().getClassLoader();
         }
+        return strategyClassLoader;
     }
 
     /**
@@ -199,38 +716,65 @@ public class JavadropMojo extends AbstractMojo {
      *             Problems creating given strategy
      * @throws InstantiationException
      *             Problems creating given strategy
+     * @throws NoSuchMethodException
+     *             The strategy has no constructor without arguments
+     * @throws InvocationTargetException
+     *             The strategy's constructor failed
      */
     private void initStrategies() throws ClassNotFoundException,
-            InstantiationException, IllegalAccessException {
-        ClassLoader classLoader = getClass().getClassLoader();
-        
-        for (RunnerDefinition runnerDef : runnerDefinitions) {
-            String runnerClass = runnerDef.getRunnerClass();
-            Class<?> aClass = classLoader.loadClass(runnerClass);
-            RunnerStrategy runnerStrat = (RunnerStrategy) aClass.newInstance();
-            // Apply the mojo's parameters to the strategy so it knows how to
-            // process templates.
-            runnerStrat.applyParameters(runnerDef.getRunnerParameters());
-            runnerStrat.set_log(getLog());
-            runnerStrat.setRunnerDefinition(runnerDef);
-            runnerStrategies.add(runnerStrat);
-        }
+            InstantiationException, IllegalAccessException,
+            NoSuchMethodException, InvocationTargetException {
+        ClassLoader classLoader = getStrategyClassLoader();
+
+        runnerStrategies.addAll(createRunnerStrategies(getLog()));
 
         for (PackagerDefinition packagerDef : packagerDefinitions) {
             String packagerClass = packagerDef.getPackagerClass();
             Class<?> aClass = classLoader.loadClass(packagerClass);
             PackagerStrategy packagerStrat = (PackagerStrategy) aClass
-                    .newInstance(); 
+                    .getDeclaredConstructor().newInstance();
             // Apply the mojo's parameters to the strategyso it knows how to
             // process templates.
             packagerStrat.applyParameters(packagerDef.getPackagerParameters());
             packagerStrat.set_log(getLog());
+            packagerStrat.setMetrics(metrics);
+            packagerStrat.setDigestCache(digestCache);
             packagerStrat.setPackagerDefinition(packagerDef);
             packagerStrategies.add(packagerStrat);
         }
     }
 
 
+    /**
+     * Creates a fresh set of runner strategies from the runner definitions.
+     * 
+     * @param log
+     *            Log the strategies report to
+     * @return Runner strategies, in pom order
+     */
+    private List<RunnerStrategy> createRunnerStrategies(Log log)
+            throws ClassNotFoundException, InstantiationException,
+            IllegalAccessException, NoSuchMethodException,
+            InvocationTargetException {
+        ClassLoader classLoader = getStrategyClassLoader();
+        List<RunnerStrategy> strategies = new LinkedList<RunnerStrategy>();
+
+        for (RunnerDefinition runnerDef : runnerDefinitions) {
+            String runnerClass = runnerDef.getRunnerClass();
+            Class<?> aClass = classLoader.loadClass(runnerClass);
+            RunnerStrategy runnerStrat = (RunnerStrategy) aClass
+                    .getDeclaredConstructor().newInstance();
+            // Apply the mojo's parameters to the strategy so it knows how to
+            // process templates.
+            runnerStrat.applyParameters(runnerDef.getRunnerParameters());
+            runnerStrat.set_log(log);
+            runnerStrat.setArtifactIndex(artifactIndex);
+            runnerStrat.setRunnerDefinition(runnerDef);
+            strategies.add(runnerStrat);
+        }
+        return strategies;
+    }
+
     public List<RunnerDefinition> getRunnerDefinitions() {
         return runnerDefinitions;
     }
@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.maven.plugin.logging.Log;
+import org.javadrop.packaging.PackagerStrategy;
+import org.javadrop.runner.RunnerStrategy;
+
+/**
+ * Describes everything that goes into a package: the plugin itself, the
+ * templates, the merged template parameters of every runner and the content of
+ * the build artifacts. If the fingerprint of a packager matches the one
+ * recorded the last time its package was built, and the package is still
+ * there, the packager doesn't need to run again.
+ * 
+ * The fingerprint is stored as a properties file in the working directory.
+ * Inputs are kept individually (rather than as one hash) so it is possible to
+ * tell from the debug output what caused a package to be rebuilt.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public class PackageFingerprint {
+
+    private static final String INPUT_PREFIX = "input.";
+
+    private static final String OUTPUT_PREFIX = "output.";
+
+    /**
+     * Input name -> value or hash of the value
+     */
+    private final Map<String, String> inputs = new TreeMap<String, String>();
+
+    /**
+     * Computes the fingerprint for a packager and the runners it processes.
+     *
+     * @param packager
+     *            Packager being fingerprinted
+     * @param runners
+     *            All the runners the packager processes templates for
+     * @param workingDirectory
+     *            Directory the build artifacts are found in
+     * @param digestCache
+     *            Artifacts it already knows aren't read again
+     * @param artifactIndex
+     *            Where the artifacts are listed
+     * @return Fingerprint of the packager's inputs
+     * @throws IOException
+     *             Problem reading the templates or artifacts
+     */
+    public static PackageFingerprint compute(PackagerStrategy packager,
+            Collection<RunnerStrategy> runners, File workingDirectory,
+            DigestCache digestCache, ArtifactIndex artifactIndex)
+            throws IOException {
+        PackageFingerprint fingerprint = new PackageFingerprint();
+        fingerprint.addPlugin();
+
+        fingerprint.add("packager.class", packager.getClass().getName());
+        if (packager.getPackagerDefinition() != null) {
+            fingerprint.add("packager.excluded", packager
+                    .getPackagerDefinition().getExcludedRunners().toString());
+        }
+
+        int runnerIndex = 0;
+        for (RunnerStrategy runner : runners) {
+            String prefix = "runner." + runnerIndex++ + ".";
+            fingerprint.add(prefix + "class", runner.getClass().getName());
+            if (runner.getRunnerDefinition() != null) {
+                fingerprint.add(prefix + "name", String.valueOf(runner
+                        .getRunnerDefinition().getRunnerName()));
+            }
+
+            // Same merge as the packager does when it processes the templates.
+            Map<String, String> templateParameters = new HashMap<String, String>();
+            templateParameters.putAll(packager.getParameters());
+            templateParameters.putAll(runner.getParameters());
+            for (Map.Entry<String, String> param : templateParameters
+                    .entrySet()) {
+                fingerprint.add(prefix + "param." + param.getKey(),
+                        param.getValue());
+            }
+
+            Map<File, File> conversionFiles = new HashMap<File, File>();
+            conversionFiles.putAll(runner.getConversionFiles(workingDirectory));
+            conversionFiles.putAll(packager.getConversionFiles(
+                    workingDirectory, runner));
+            for (File source : conversionFiles.keySet()) {
+                // Same test processTemplates uses to tell binaries from
+                // templates. The binaries are covered by the artifacts.
+                if (!source.getName().toLowerCase().endsWith("jar")) {
+                    fingerprint.addTemplate(source.getPath());
+                }
+            }
+        }
+
+        fingerprint.addArtifacts(workingDirectory, digestCache, artifactIndex);
+        return fingerprint;
+    }
+
+    /**
+     * Checks this fingerprint against the one recorded in the given manifest.
+     *
+     * @param manifest
+     *            Manifest written by {@link #write(File, Collection)}
+     * @param log
+     *            Gets told (at debug) why a package isn't up to date
+     * @return True if all the inputs match and the outputs are still around
+     */
+    public boolean isUpToDate(File manifest, Log log) {
+        if (!manifest.isFile()) {
+            return false;
+        }
+        Properties recorded = new Properties();
+        try {
+            InputStream in = new FileInputStream(manifest);
+            try {
+                recorded.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.debug("Can't read " + manifest.getAbsolutePath(), e);
+            return false;
+        }
+
+        Map<String, String> recordedInputs = new TreeMap<String, String>();
+        int outputs = 0;
+        for (String key : recorded.stringPropertyNames()) {
+            if (key.startsWith(INPUT_PREFIX)) {
+                recordedInputs.put(key.substring(INPUT_PREFIX.length()),
+                        recorded.getProperty(key));
+            } else if (key.startsWith(OUTPUT_PREFIX)) {
+                outputs++;
+                File output = new File(recorded.getProperty(key));
+                if (!output.exists()) {
+                    log.debug("Output missing: " + output.getAbsolutePath());
+                    return false;
+                }
+            }
+        }
+        if (outputs == 0) {
+            log.debug("No outputs recorded in " + manifest.getAbsolutePath());
+            return false;
+        }
+
+        if (!recordedInputs.equals(inputs)) {
+            if (log.isDebugEnabled()) {
+                for (Map.Entry<String, String> input : inputs.entrySet()) {
+                    if (!input.getValue().equals(
+                            recordedInputs.get(input.getKey()))) {
+                        log.debug("Input changed: " + input.getKey());
+                    }
+                }
+                for (String recordedKey : recordedInputs.keySet()) {
+                    if (!inputs.containsKey(recordedKey)) {
+                        log.debug("Input removed: " + recordedKey);
+                    }
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records this fingerprint along with the files it produced.
+     *
+     * @param manifest
+     *            File to write the fingerprint to
+     * @param outputs
+     *            Files produced from the inputs. These must still exist for
+     *            the package to be considered up to date.
+     * @throws IOException
+     *             Problem writing the manifest
+     */
+    public void write(File manifest, Collection<File> outputs)
+            throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, String> input : inputs.entrySet()) {
+            properties.setProperty(INPUT_PREFIX + input.getKey(),
+                    input.getValue());
+        }
+        int outputIndex = 0;
+        for (File output : outputs) {
+            properties.setProperty(OUTPUT_PREFIX + outputIndex++,
+                    output.getAbsolutePath());
+        }
+        manifest.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(manifest);
+        try {
+            properties.store(out, "Javadrop package fingerprint");
+        } finally {
+            out.close();
+        }
+    }
+
+    private void add(String name, String value) {
+        inputs.put(name, value == null ? "" : value);
+    }
+
+    /**
+     * The plugin jar covers the templates pulled in indirectly as well as the
+     * defaults that are baked into the strategies.
+     */
+    private void addPlugin() {
+        CodeSource codeSource = getClass().getProtectionDomain()
+                .getCodeSource();
+        if (codeSource != null && codeSource.getLocation() != null) {
+            File pluginLocation = new File(codeSource.getLocation().getPath());
+            add("plugin", pluginLocation.getName() + ":"
+                    + pluginLocation.length() + ":"
+                    + pluginLocation.lastModified());
+        }
+    }
+
+    /**
+     * Adds a template using the same lookup velocity does.
+     */
+    private void addTemplate(String resourceName) throws IOException {
+        URL resource = null;
+        ClassLoader contextLoader = Thread.currentThread()
+                .getContextClassLoader();
+        if (contextLoader != null) {
+            resource = contextLoader.getResource(resourceName);
+        }
+        if (resource == null) {
+            resource = getClass().getClassLoader().getResource(resourceName);
+        }
+        if (resource == null) {
+            add("template." + resourceName, "missing");
+            return;
+        }
+
+        MessageDigest digest = newDigest();
+        InputStream in = resource.openStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        add("template." + resourceName, toHex(digest.digest()));
+    }
+
+    /**
+     * Adds the build artifacts the runners pick up: the jars and wars at the
+     * top of the working directory and everything in 'lib'. Artifacts are
+     * keyed by name since the packagers stage them from the top of the working
+     * directory into 'lib'.
+     */
+    private void addArtifacts(File workingDirectory, DigestCache digestCache,
+            ArtifactIndex artifactIndex) throws IOException {
+        List<ArtifactIndex.Entry> libFiles = artifactIndex.list(new File(
+                workingDirectory, "lib"));
+        if (libFiles != null) {
+            for (ArtifactIndex.Entry libFile : libFiles) {
+                if (!libFile.isDirectory()) {
+                    add("artifact." + libFile.getName(), digestCache
+                            .digest(libFile.getFile()).getSha256());
+                }
+            }
+        }
+        // Fresh build output trumps whatever was staged into lib last time.
+        List<ArtifactIndex.Entry> topFiles = artifactIndex
+                .list(workingDirectory);
+        if (topFiles != null) {
+            for (ArtifactIndex.Entry topFile : topFiles) {
+                String lowerName = topFile.getName().toLowerCase();
+                if (!topFile.isDirectory()
+                        && (lowerName.endsWith(".jar") || lowerName
+                                .endsWith(".war"))) {
+                    add("artifact." + topFile.getName(), digestCache
+                            .digest(topFile.getFile()).getSha256());
+                }
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to have SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
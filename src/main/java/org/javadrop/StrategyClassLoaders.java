@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class loaders that make the project's compile classpath (custom strategies,
+ * templates) visible to the plugin without touching the system class loader.
+ * 
+ * The jars on the classpath are loaded by a loader that is cached per unique
+ * set of jars, so the modules of a reactor, or the builds run by a long lived
+ * maven daemon, share it instead of opening the same jars over and over. A jar
+ * that changed on disk makes for a new loader. Directories (the project's own
+ * classes) are loaded by a child of the cached loader that only lives for one
+ * execution, since what's in them changes from build to build.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public final class StrategyClassLoaders {
+
+    /**
+     * How many jar loaders are kept. A loader that falls out of the cache is
+     * closed, releasing its jars, once the last execution using it is done.
+     */
+    private static final int MAX_CACHED = 16;
+
+    /**
+     * Cache key: the parent loader and the jars with their size and
+     * modification time
+     */
+    private static final class Key {
+        private final ClassLoader parent;
+        private final List<String> jars;
+
+        Key(ClassLoader parent, List<String> jars) {
+            this.parent = parent;
+            this.jars = jars;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key otherKey = (Key) other;
+            return parent == otherKey.parent && jars.equals(otherKey.jars);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(parent) * 31 + jars.hashCode();
+        }
+    }
+
+    /**
+     * A cached jar loader and the executions still using it
+     */
+    private static final class JarLoader {
+        private final URLClassLoader loader;
+        private int users;
+        private boolean evicted;
+
+        JarLoader(URLClassLoader loader) {
+            this.loader = loader;
+        }
+    }
+
+    /**
+     * The loader for one execution. Closing it lets go of the jar loader.
+     */
+    private static final class ExecutionLoader extends URLClassLoader {
+        private final JarLoader jarLoader;
+        private boolean closed;
+
+        ExecutionLoader(URL[] urls, ClassLoader parent, JarLoader jarLoader) {
+            super(urls, parent);
+            this.jarLoader = jarLoader;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                synchronized (StrategyClassLoaders.class) {
+                    if (!closed && jarLoader != null) {
+                        closed = true;
+                        jarLoader.users--;
+                        closeIfUnused(jarLoader);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final Map<Key, JarLoader> jarLoaders = new LinkedHashMap<Key, JarLoader>(
+            MAX_CACHED, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, JarLoader> eldest) {
+            if (size() > MAX_CACHED) {
+                eldest.getValue().evicted = true;
+                closeIfUnused(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private StrategyClassLoaders() {
+    }
+
+    /**
+     * Creates the loader for one execution of the plugin.
+     *
+     * @param classpathElements
+     *            The project's compile classpath: jars and directories
+     * @param parent
+     *            The plugin's class loader, so the strategies share the
+     *            plugin's interfaces
+     * @return Loader for the classpath. Close it once the execution is done,
+     *         that leaves the cached jar loader alone.
+     * @throws MalformedURLException
+     *             A classpath element can't be turned into a URL
+     */
+    public static URLClassLoader create(List<String> classpathElements,
+            ClassLoader parent) throws MalformedURLException {
+        List<URL> jarUrls = new ArrayList<URL>();
+        List<String> jarKeys = new ArrayList<String>();
+        List<URL> directoryUrls = new ArrayList<URL>();
+        for (String element : classpathElements) {
+            File file = new File(element);
+            if (file.isDirectory()) {
+                directoryUrls.add(file.toURI().toURL());
+            } else if (file.isFile()) {
+                jarUrls.add(file.toURI().toURL());
+                jarKeys.add(file.getAbsolutePath() + ":" + file.length() + ":"
+                        + file.lastModified());
+            }
+        }
+        if (jarUrls.isEmpty()) {
+            return new ExecutionLoader(directoryUrls
+                    .toArray(new URL[directoryUrls.size()]), parent, null);
+        }
+        synchronized (StrategyClassLoaders.class) {
+            JarLoader jarLoader = getJarLoader(new Key(parent, jarKeys),
+                    jarUrls);
+            jarLoader.users++;
+            return new ExecutionLoader(directoryUrls
+                    .toArray(new URL[directoryUrls.size()]), jarLoader.loader,
+                    jarLoader);
+        }
+    }
+
+    private static synchronized JarLoader getJarLoader(Key key,
+            List<URL> jarUrls) {
+        JarLoader jarLoader = jarLoaders.get(key);
+        if (jarLoader == null) {
+            jarLoader = new JarLoader(new URLClassLoader(
+                    jarUrls.toArray(new URL[jarUrls.size()]), key.parent));
+            jarLoaders.put(key, jarLoader);
+        }
+        return jarLoader;
+    }
+
+    /**
+     * Closes a loader that is out of the cache and no longer in use
+     */
+    private static void closeIfUnused(JarLoader jarLoader) {
+        if (jarLoader.evicted && jarLoader.users == 0) {
+            try {
+                jarLoader.loader.close();
+            } catch (IOException e) {
+                // Nothing more to do with it
+            }
+        }
+    }
+}
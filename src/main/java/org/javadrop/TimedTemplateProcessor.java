@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop;
+
+import java.io.File;
+import java.util.Map;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Template processor that times another one and records each template it
+ * renders, along with the size of the result, in the build metrics.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public class TimedTemplateProcessor implements TemplateProcessor {
+
+    private final TemplateProcessor processor;
+
+    private final BuildMetrics metrics;
+
+    public TimedTemplateProcessor(TemplateProcessor processor,
+            BuildMetrics metrics) {
+        this.processor = processor;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void applyVTemplate(File inputTemplateFile, File convertedFile,
+            Map<String, String> templateParams) throws MojoExecutionException {
+        long start = metrics.start();
+        processor.applyVTemplate(inputTemplateFile, convertedFile,
+                templateParams);
+        metrics.record(BuildMetrics.RENDER, convertedFile.getPath(), start, 1,
+                convertedFile.length());
+    }
+}
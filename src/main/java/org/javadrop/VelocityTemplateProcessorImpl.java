@@ -18,22 +18,111 @@ package org.javadrop;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.Velocity;
+import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader;
 
 /**
  * This uses velocity to process scripts.
  * 
+ * The velocity engine and the parsed templates are shared by every processor
+ * created within the plugin's classloader. In a reactor build the mojo is
+ * executed once per module so this keeps the engine setup and the template
+ * parsing down to once per JVM rather than once per file rendered.
+ * 
+ * Only the plugin's own templates are cached for the life of the JVM, by
+ * name, and anything they #parse always comes from the plugin. Templates
+ * found through the thread's context loader (the project's conf files, or a
+ * project's replacement for one of the plugin's templates) belong to that
+ * project: only the most recently used are kept, by location, and they are
+ * parsed again once the file changes.
+ * 
  * @author gcooperpdx
  * 
  */
 public class VelocityTemplateProcessorImpl implements TemplateProcessor {
+    /**
+     * Engine shared by all processors. Lazily created, see {@link #getEngine()}
+     */
+    private static VelocityEngine sharedEngine;
+
+    /**
+     * Parsed plugin templates keyed by their classpath resource name.
+     * Templates are immutable once parsed so they can be merged from several
+     * threads.
+     */
+    private static final Map<String, Template> templateCache = new ConcurrentHashMap<String, Template>();
+
+    /**
+     * Engine for the project's templates, which reads them every time it's
+     * asked. Lazily created, see {@link #getProjectEngine()}
+     */
+    private static VelocityEngine projectEngine;
+
+    /**
+     * Most project templates kept parsed at a time
+     */
+    private static final int MAX_PROJECT_TEMPLATES = 256;
+
+    /**
+     * Parsed project templates keyed by the location they were found at,
+     * least recently used first. Each execution gets a new class loader but
+     * the same files, so the loader isn't part of the key.
+     */
+    private static final Map<String, ProjectTemplate> projectTemplateCache = Collections
+            .synchronizedMap(new LinkedHashMap<String, ProjectTemplate>(
+                    MAX_PROJECT_TEMPLATES, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, ProjectTemplate> eldest) {
+                    return size() > MAX_PROJECT_TEMPLATES;
+                }
+            });
+
+    private static final class ProjectTemplate {
+        private final long lastModified;
+        private final Template template;
+
+        ProjectTemplate(long lastModified, Template template) {
+            this.lastModified = lastModified;
+            this.template = template;
+        }
+    }
+
+    /**
+     * Loads templates from the plugin's class loader only, so what the shared
+     * engine caches by name can't come from a project.
+     */
+    public static class PluginResourceLoader extends ClasspathResourceLoader {
+        @Override
+        public InputStream getResourceStream(String name)
+                throws ResourceNotFoundException {
+            InputStream in = getPluginLoader().getResourceAsStream(name);
+            if (in == null) {
+                throw new ResourceNotFoundException(
+                        "PluginResourceLoader: cannot find " + name);
+            }
+            return in;
+        }
+    }
+
     /**
      * Logging for build output
      */
@@ -62,22 +151,18 @@ public class VelocityTemplateProcessorImpl implements TemplateProcessor {
         for (Map.Entry<String, String> tParam : templateParams.entrySet()) {
             velContext.put(tParam.getKey(), tParam.getValue());
         }
-        // Get the .vm templates from the classpath
-        Properties props = new Properties();
-        props.setProperty("resource.loader", "classpath");
-        props.setProperty("classpath.resource.loader.class",
-                "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
         try {
-            Velocity.init(props);
             File outputDirectory = convertedFile.getParentFile();
             outputDirectory.mkdirs();
             BufferedWriter writer = new BufferedWriter(new FileWriter(
                     convertedFile));
-
-            Velocity.mergeTemplate(inputTemplateFile.getPath(), "UTF-8",
-                    velContext, writer);
-            writer.flush();
-            writer.close();
+            try {
+                getTemplate(inputTemplateFile.getPath()).merge(velContext,
+                        writer);
+                writer.flush();
+            } finally {
+                writer.close();
+            }
         } catch (ResourceNotFoundException rex) {
             getLog().warn("Resource not found:" + inputTemplateFile.getAbsolutePath());
         } catch (Exception e) {
@@ -87,4 +172,134 @@ public class VelocityTemplateProcessorImpl implements TemplateProcessor {
         }
     }
 
+    /**
+     * Returns the parsed template for the given classpath resource, parsing it
+     * on first use. The resource is looked up the way velocity would, through
+     * the thread's context loader first.
+     * 
+     * @param resourceName
+     *            Classpath location of the .vm template
+     * @return Parsed template
+     * @throws Exception
+     *             If the template is missing or can't be parsed
+     */
+    private static Template getTemplate(String resourceName) throws Exception {
+        ClassLoader contextLoader = Thread.currentThread()
+                .getContextClassLoader();
+        URL location = contextLoader == null ? null : contextLoader
+                .getResource(resourceName);
+        if (location == null
+                || isPluginResource(location, resourceName)) {
+            Template template = templateCache.get(resourceName);
+            if (template == null) {
+                // Two threads may race to parse the same template. That's
+                // harmless, the last one in wins.
+                template = getEngine().getTemplate(resourceName, "UTF-8");
+                templateCache.put(resourceName, template);
+            }
+            return template;
+        }
+
+        String key = location.toExternalForm();
+        long lastModified = getLastModified(location);
+        ProjectTemplate cached = projectTemplateCache.get(key);
+        if (cached == null || cached.lastModified != lastModified
+                || lastModified == 0) {
+            cached = new ProjectTemplate(lastModified, getProjectEngine()
+                    .getTemplate(resourceName, "UTF-8"));
+            projectTemplateCache.put(key, cached);
+        }
+        return cached.template;
+    }
+
+    /**
+     * @return When the file a template was found in (the file itself, or the
+     *         jar it is in) last changed, 0 if that isn't known
+     */
+    private static long getLastModified(URL location) {
+        try {
+            URL fileLocation = location;
+            if ("jar".equals(location.getProtocol())) {
+                fileLocation = ((JarURLConnection) location.openConnection())
+                        .getJarFileURL();
+            }
+            if ("file".equals(fileLocation.getProtocol())) {
+                return new File(fileLocation.toURI()).lastModified();
+            }
+        } catch (IOException e) {
+            // Unknown
+        } catch (URISyntaxException e) {
+            // Unknown
+        }
+        return 0;
+    }
+
+    private static boolean isPluginResource(URL location, String resourceName) {
+        URL pluginLocation = getPluginLoader().getResource(resourceName);
+        return pluginLocation != null
+                && pluginLocation.toExternalForm().equals(
+                        location.toExternalForm());
+    }
+
+    private static ClassLoader getPluginLoader() {
+        return VelocityTemplateProcessorImpl.class.getClassLoader();
+    }
+
+    /**
+     * Throws away the shared engine and every parsed template, so the next
+     * template rendered starts from scratch. For benchmarks and tests that
+     * want to measure or exercise a cold start.
+     */
+    public static synchronized void resetCache() {
+        templateCache.clear();
+        projectTemplateCache.clear();
+        sharedEngine = null;
+        projectEngine = null;
+    }
+
+    /**
+     * Gets the shared velocity engine, initializing it the first time through.
+     * 
+     * @return Velocity engine that loads the plugin's templates
+     * @throws Exception
+     *             Velocity initialization problem
+     */
+    private static synchronized VelocityEngine getEngine() throws Exception {
+        if (sharedEngine == null) {
+            // Lets velocity hang on to anything pulled in with #parse as well.
+            sharedEngine = createEngine(PluginResourceLoader.class, true);
+        }
+        return sharedEngine;
+    }
+
+    /**
+     * Gets the engine for the project's templates, initializing it the first
+     * time through.
+     * 
+     * @return Velocity engine that loads its templates from the classpath
+     * @throws Exception
+     *             Velocity initialization problem
+     */
+    private static synchronized VelocityEngine getProjectEngine()
+            throws Exception {
+        if (projectEngine == null) {
+            projectEngine = createEngine(ClasspathResourceLoader.class, false);
+        }
+        return projectEngine;
+    }
+
+    private static VelocityEngine createEngine(Class<?> loaderClass,
+            boolean cache) throws Exception {
+        // Get the .vm templates from the classpath
+        Properties props = new Properties();
+        props.setProperty("resource.loader", "classpath");
+        props.setProperty("classpath.resource.loader.class",
+                loaderClass.getName());
+        props.setProperty("classpath.resource.loader.cache",
+                String.valueOf(cache));
+        VelocityEngine engine = new VelocityEngine();
+        engine.init(props);
+        return engine;
+    }
+
 }
@@ -21,6 +21,8 @@ import java.util.Map;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
+import org.javadrop.BuildMetrics;
+import org.javadrop.DigestCache;
 import org.javadrop.PackagerDefinition;
 import org.javadrop.TemplateProcessor;
 import org.javadrop.runner.RunnerStrategy;
@@ -82,14 +84,34 @@ public interface PackagerStrategy {
 	/**
 	 * After templates have been processed it might also be desirable for the packager to
 	 * post-process artifacts of the build. This might include, but is not limited to, renaming
-	 * war files, moving files, etc...
+	 * war files, staging files, etc... The build artifacts themselves must be left in place
+	 * as other packagers may need them too.
 	 * 
 	 * @param runner The runner who's context the artifacts will be processed in.
 	 * @param workingDirectory Directory where the work is happening
+	 * @throws MojoExecutionException Problem with an artifact
 	 */
-    void postProcessArtifacts(RunnerStrategy runner, File workingDirectory);
+    void postProcessArtifacts(RunnerStrategy runner, File workingDirectory) throws MojoExecutionException;
 
     PackagerDefinition getPackagerDefinition();
+
+	/**
+	 * @return The packager's parameters: its defaults overridden by the values in the pom.
+	 */
+	Map<String, String> getParameters();
+
+	/**
+	 * Sets where the packager records the timings of its own work (install sets, building
+	 * the package).
+	 * @param metrics Metrics of the current run
+	 */
+	void setMetrics(BuildMetrics metrics);
+
+	/**
+	 * Sets where the packager looks up, and records, the digests of the files it packages.
+	 * @param digestCache Cache shared by all the packagers
+	 */
+	void setDigestCache(DigestCache digestCache);
 	
 }
 
@@ -16,12 +16,19 @@
 package org.javadrop.packaging.impl;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.Map.Entry;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
+import org.javadrop.ArtifactStaging;
+import org.javadrop.BuildMetrics;
+import org.javadrop.DigestCache;
 import org.javadrop.PackagerDefinition;
 import org.javadrop.TemplateProcessor;
 import org.javadrop.packaging.PackagerStrategy;
@@ -48,8 +55,25 @@ public abstract class BasePackagerStrategy  implements PackagerStrategy {
 	private Log _log;
 	
 	private PackagerDefinition packagerDefinition;
+
+	/**
+	 * Where timings are recorded. Replaced by the mojo's.
+	 */
+	private BuildMetrics metrics = new BuildMetrics();
+
+	/**
+	 * Digests of packaged files. Replaced by the mojo's.
+	 */
+	private DigestCache digestCache = new DigestCache(null);
+
+	/**
+	 * Build artifacts that were left where the build put them rather than staged into
+	 * the working directory, see {@link #leaveUnstaged()}. Staged location -> actual
+	 * location.
+	 */
+	private final Map<File, File> unstagedArtifacts = new HashMap<File, File>();
 	
-	private void applyDefaults()
+	protected void applyDefaults()
 	{
 		packagerVariables = new HashMap<String, String>();
 		packagerVariables.put("PKG_NAME", "service");
@@ -58,6 +82,8 @@ public abstract class BasePackagerStrategy  implements PackagerStrategy {
 		packagerVariables.put("PKG_GROUP", "javadrop");
 		packagerVariables.put("PKG_USERID", "55");
 		packagerVariables.put("PKG_GROUPID", "700");
+		// The host's java, see linkRuntime()
+		packagerVariables.put("PKG_RUNTIME", "system");
 		
 		packagerVariables.put("RUNNER_NAME", "service");
 		packagerVariables.put("RUNNER_INSTALL_LOC","/usr/local/javadrop/service");
@@ -71,6 +97,11 @@ public abstract class BasePackagerStrategy  implements PackagerStrategy {
 	    return packagerDefinition;
 	}
 	
+	@Override
+	public Map<String, String> getParameters() {
+	    return packagerVariables;
+	}
+
 	@Override
 	public void setPackagerDefinition(PackagerDefinition packageDef) {
 	    this.packagerDefinition = packageDef;
@@ -105,15 +136,139 @@ public abstract class BasePackagerStrategy  implements PackagerStrategy {
 		templateParameters.putAll(runner.getParameters());
 		conversionFiles.putAll(getConversionFiles(workingDirectory, runner));
 		for (Entry<File, File> cfile : conversionFiles.entrySet()) {
-		    // TODO - Quick and dirty fix to support copying binaries around
+		    // Jars are binaries, not templates: staged like any other artifact (linked where
+		    // possible, copied otherwise, see stageArtifact)
 		    if (cfile.getKey().getName().toLowerCase().endsWith("jar")) {
-		        cfile.getKey().renameTo(cfile.getValue());
+		        stageArtifact(cfile.getKey(), cfile.getValue());
 		    } else {
 		        processor.applyVTemplate(cfile.getKey(), cfile.getValue(), templateParameters);
 		    }
 		}
 	}
 
+	@Override
+	public void postProcessArtifacts(RunnerStrategy runner, File workingDirectory)
+			throws MojoExecutionException {
+		// Stage any files necessary.
+		Map<File, File> mapFiles = runner.getArtifactRenames(workingDirectory);
+		for (Entry<File, File> mapFile : mapFiles.entrySet()) {
+			stageArtifact(mapFile.getKey(), mapFile.getValue());
+		}
+	}
+
+	/**
+	 * @return True if the package is built straight from the build's artifacts, so
+	 *         staging one only records where it would have gone. False (the default)
+	 *         links or copies them into the working directory.
+	 */
+	protected boolean leaveUnstaged() {
+		return false;
+	}
+
+	/**
+	 * Puts a build artifact where the runner wants it in the working directory.
+	 * The artifact itself is left alone so other runners and packagers can
+	 * stage it too.
+	 * 
+	 * @param artifact The artifact as the build left it
+	 * @param stagedFile Where the runner expects to find it
+	 * @throws MojoExecutionException The artifact couldn't be linked or copied
+	 */
+	protected void stageArtifact(File artifact, File stagedFile) throws MojoExecutionException {
+		if (leaveUnstaged()) {
+			unstagedArtifacts.put(stagedFile.getAbsoluteFile(), artifact);
+			return;
+		}
+		try {
+			ArtifactStaging.stage(artifact, stagedFile);
+		} catch (IOException e) {
+			throw new MojoExecutionException("Unable to stage " + artifact.getAbsolutePath()
+					+ " as " + stagedFile.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * @param stagedFile Where a file is, or would be, staged
+	 * @return The file to read for it: the build artifact if it was left unstaged,
+	 *         otherwise the staged file itself
+	 */
+	protected File getUnstagedSource(File stagedFile) {
+		File source = unstagedArtifacts.get(stagedFile.getAbsoluteFile());
+		return source == null ? stagedFile : source;
+	}
+
+	/**
+	 * The artifacts that would have been staged into one of the install directories,
+	 * and picked up from there, but were left where they are.
+	 * 
+	 * @param installDirs Absolute install set directories in the working directory
+	 * @return Where each of them would have been staged
+	 */
+	protected Collection<File> getUnstagedArtifacts(Set<File> installDirs) {
+		Collection<File> stagedFiles = new ArrayList<File>();
+		for (File stagedFile : unstagedArtifacts.keySet()) {
+			if (installDirs.contains(stagedFile.getParentFile())) {
+				stagedFiles.add(stagedFile);
+			}
+		}
+		return stagedFiles;
+	}
+
+	/**
+	 * Forgets the unstaged artifacts once the package is built, or failed to be.
+	 */
+	protected void clearUnstagedArtifacts() {
+		unstagedArtifacts.clear();
+	}
+
+	/**
+	 * Asks the runner for its install set, recording how long it took and how many files
+	 * are in it.
+	 * 
+	 * @param runner Runner being packaged
+	 * @param workingDirectory Directory the runner's files are in
+	 * @return Directory -> files, as returned by the runner
+	 */
+	protected Map<File, Collection<File>> getInstallSet(RunnerStrategy runner, File workingDirectory) {
+		long start = metrics.start();
+		Map<File, Collection<File>> installSet = runner.getInstallSet(workingDirectory);
+		long files = 0;
+		for (Collection<File> dirFiles : installSet.values()) {
+			files += dirFiles.size();
+		}
+		metrics.record(BuildMetrics.INSTALL_SET, BuildMetrics.subjectOf(runner), start, files, 0);
+		return installSet;
+	}
+
+	/**
+	 * Records building a package.
+	 * 
+	 * @param packageFile The package that was built
+	 * @param start When building started, from {@link BuildMetrics#start()}
+	 */
+	protected void recordPackage(File packageFile, long start) {
+		metrics.record(BuildMetrics.PACKAGE, packageFile.getName(), start, 1,
+				packageFile.length());
+	}
+
+	@Override
+	public void setMetrics(BuildMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	protected BuildMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public void setDigestCache(DigestCache digestCache) {
+		this.digestCache = digestCache;
+	}
+
+	protected DigestCache getDigestCache() {
+		return digestCache;
+	}
+
 	/**
 	 * Returns the install location
 	 * 
@@ -123,6 +278,184 @@ public abstract class BasePackagerStrategy  implements PackagerStrategy {
 		return packagerVariables.get("PKG_INSTALL_LOC");
 	}
 
+	/**
+	 * Returns the value of a parameter the packager can't do without
+	 * 
+	 * @return The parameter's value
+	 * @throws MojoExecutionException
+	 *             Thrown if required variable is missing
+	 */
+	protected String getRequiredParam(String parameter)
+			throws MojoExecutionException {
+		String value = packagerVariables.get(parameter);
+		if (value == null) {
+			throw new MojoExecutionException("Missing required parameter: "
+					+ parameter);
+		}
+		return value;
+	}
+
+	protected int getIntParam(String parameter, int defaultValue)
+			throws MojoExecutionException {
+		String value = packagerVariables.get(parameter);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new MojoExecutionException("'" + parameter
+					+ "' is not a number: " + value);
+		}
+	}
+
+	/**
+	 * @return The payload compression from 'PKG_COMPRESSION' (gzip, xz or
+	 *         none), gzip if not set
+	 */
+	protected PayloadCompression getCompression() throws MojoExecutionException {
+		String codec = packagerVariables.get("PKG_COMPRESSION");
+		if (codec == null) {
+			return PayloadCompression.GZIP;
+		}
+		try {
+			return PayloadCompression.forName(codec.trim());
+		} catch (IllegalArgumentException e) {
+			throw new MojoExecutionException("Invalid 'PKG_COMPRESSION': "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * @return 'PKG_COMPRESSION_LEVEL', or the compression's default level
+	 */
+	protected int getCompressionLevel(PayloadCompression compression)
+			throws MojoExecutionException {
+		int level = getIntParam("PKG_COMPRESSION_LEVEL",
+				compression.getDefaultLevel());
+		if (level < 0 || level > 9) {
+			throw new MojoExecutionException(
+					"'PKG_COMPRESSION_LEVEL' must be between 0 and 9");
+		}
+		return level;
+	}
+
+	/**
+	 * @return 'PKG_COMPRESSION_THREADS', 1 if not set. 0 means one per
+	 *         processor.
+	 */
+	protected int getCompressionThreads(PayloadCompression compression)
+			throws MojoExecutionException {
+		int threads = getIntParam("PKG_COMPRESSION_THREADS", 1);
+		if (threads == 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		if (threads < 0) {
+			throw new MojoExecutionException(
+					"'PKG_COMPRESSION_THREADS' can't be negative");
+		}
+		if (threads > 1 && compression != PayloadCompression.GZIP) {
+			get_log().warn(
+					"'PKG_COMPRESSION_THREADS' only applies to gzip, "
+							+ compression.name().toLowerCase()
+							+ " compresses on one thread");
+		}
+		return threads;
+	}
+
+
+	/**
+	 * Links the java runtime the package ships, when 'PKG_RUNTIME' is 'jlink'. It has the
+	 * modules jdeps finds the jars need, plus those in 'PKG_JLINK_MODULES', from the JDK in
+	 * 'PKG_JLINK_JDK' or, if not set, the one running the build.
+	 * 
+	 * @param workingDirectory The runtime is linked into 'runtime' in here
+	 * @param jars Jars the package installs
+	 * @return The runtime, or null if the package runs on the host's java
+	 * @throws MojoExecutionException The runtime couldn't be linked
+	 */
+	protected JlinkRuntime linkRuntime(File workingDirectory, Collection<File> jars)
+			throws MojoExecutionException {
+		String runtimeType = packagerVariables.get("PKG_RUNTIME");
+		if (runtimeType == null || "system".equals(runtimeType)) {
+			return null;
+		}
+		if (!"jlink".equals(runtimeType)) {
+			throw new MojoExecutionException("Invalid 'PKG_RUNTIME': " + runtimeType
+					+ " (system or jlink)");
+		}
+		String jdk = packagerVariables.get("PKG_JLINK_JDK");
+		JlinkRuntime runtime = new JlinkRuntime(new File(jdk == null ? System
+				.getProperty("java.home") : jdk), workingDirectory);
+		long start = metrics.start();
+		try {
+			runtime.addModulesFor(jars);
+			if (packagerVariables.containsKey("PKG_JLINK_MODULES")) {
+				runtime.addModules(packagerVariables.get("PKG_JLINK_MODULES"));
+			}
+			boolean linked = runtime.link();
+			get_log().info((linked ? "Linked" : "Kept") + " java " + runtime.getVersion()
+					+ " runtime of " + runtime.getModules());
+		} catch (IOException e) {
+			throw new MojoExecutionException("Unable to link the runtime for "
+					+ packagerVariables.get("PKG_NAME"), e);
+		}
+		metrics.record(BuildMetrics.RUNTIME, packagerVariables.get("PKG_NAME"), start);
+		return runtime;
+	}
+
+	/**
+	 * A package with its own runtime is for the architecture the runtime was linked for.
+	 * 
+	 * @return The architecture as dpkg and OCI images name it: 'amd64', 'arm64'...
+	 * @throws MojoExecutionException The runtime's JDK doesn't say
+	 */
+	protected String getArchitecture(JlinkRuntime runtime) throws MojoExecutionException {
+		String architecture;
+		try {
+			architecture = runtime.getArchitecture();
+		} catch (IOException e) {
+			throw new MojoExecutionException("Unable to tell the runtime's architecture", e);
+		}
+		if ("x86_64".equals(architecture)) {
+			return "amd64";
+		}
+		if ("aarch64".equals(architecture)) {
+			return "arm64";
+		}
+		return architecture;
+	}
+
+	/**
+	 * Where a directory of an install set goes, relative to the install location. Runners
+	 * stage their files in flat directories, 'runners/bin' is installed as 'bin'. The
+	 * runtime keeps its layout.
+	 * 
+	 * @param installSetDir Install set directory, relative to the working directory
+	 * @return Path relative to the install location
+	 */
+	protected String getInstallSubdirectory(File installSetDir) {
+		String path = installSetDir.getPath().replace(File.separatorChar, '/');
+		if (path.startsWith(JlinkRuntime.DIRECTORY + "/")) {
+			return path;
+		}
+		return installSetDir.getName();
+	}
+
+	/**
+	 * @return The jars among the files a package installs. Empty placeholders, which jdeps
+	 *         won't open, are left out.
+	 */
+	protected static Collection<File> getJars(Collection<File> files) {
+		Collection<File> jars = new ArrayList<File>();
+		for (File file : files) {
+			if (file.getName().endsWith(".jar") && file.length() > 0) {
+				jars.add(file);
+			}
+		}
+		return jars;
+	}
+
 
 	public void set_log(Log _log) {
 		this._log = _log;
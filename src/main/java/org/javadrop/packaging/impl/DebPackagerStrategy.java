@@ -0,0 +1,334 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.packaging.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.freecompany.redline.Util;
+import org.javadrop.runner.RunnerStrategy;
+import org.javadrop.runner.impl.JavaAppStrategy;
+import org.javadrop.runner.impl.JettyStrategy;
+import org.javadrop.runner.impl.MainServiceStrategy;
+
+/**
+ * Builds a .deb of the same files the rpm packager would install, with
+ * {@link StreamingDebBuilder}. Build artifacts are read from wherever the
+ * build left them, and only once.
+ * 
+ * The rpm's preinstall, postinstall and postremove scripts are rendered from
+ * the same templates and become the preinst, postinst and postrm maintainer
+ * scripts. Each is prefixed with a translation of dpkg's arguments into the
+ * install count rpm would have passed. A prerm stops the service before it is
+ * removed, and its rc.d links go when the package is purged.
+ * 
+ * Init scripts go to /etc/init.d. Files in /etc and in the install
+ * location's conf directory are conffiles.
+ * 
+ * Optional parameters: PKG_MAINTAINER, PKG_DEPENDS, PKG_DESCRIPTION, and the
+ * rpm packager's PKG_COMPRESSION, PKG_COMPRESSION_LEVEL and
+ * PKG_COMPRESSION_THREADS.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public class DebPackagerStrategy extends BasePackagerStrategy {
+
+    /**
+     * Maintainer script -> what turns dpkg's arguments into rpm's
+     */
+    private static final Map<String, String> SCRIPT_PROLOGUES = new LinkedHashMap<String, String>();
+
+    /**
+     * Maintainer script -> the rendered rpm script it runs
+     */
+    private static final Map<String, String> RPM_SCRIPTS = new HashMap<String, String>();
+
+    static {
+        SCRIPT_PROLOGUES.put("preinst", "case \"$1\" in\n"
+                + "    install) set -- 1 ;;\n"
+                + "    upgrade) set -- 2 ;;\n"
+                + "    *) exit 0 ;;\n"
+                + "esac\n");
+        SCRIPT_PROLOGUES.put("postinst", "case \"$1\" in\n"
+                + "    configure) if [ -z \"$2\" ]; then set -- 1; else set -- 2; fi ;;\n"
+                + "    *) exit 0 ;;\n"
+                + "esac\n");
+        SCRIPT_PROLOGUES.put("postrm", "case \"$1\" in\n"
+                + "    remove) set -- 0 ;;\n"
+                + "    upgrade) set -- 1 ;;\n"
+                + "    *) exit 0 ;;\n"
+                + "esac\n");
+        RPM_SCRIPTS.put("preinst", "preinstall.sh");
+        RPM_SCRIPTS.put("postinst", "postinstall.sh");
+        RPM_SCRIPTS.put("postrm", "postremove.sh");
+    }
+
+    @Override
+    protected void applyDefaults() {
+        super.applyDefaults();
+        // The rpm scripts the deb shares check it, debs only do init.d
+        packagerVariables.put("PKG_SERVICE_MANAGER", "sysv");
+        // Nor does a deb install the rpm's sysctl.d drop-in
+        packagerVariables.put("PKG_SYSCTL", "false");
+    }
+
+    /**
+     * The package is built straight from the artifacts.
+     */
+    @Override
+    protected boolean leaveUnstaged() {
+        return true;
+    }
+
+    @Override
+    public void createPackage(File packagerDirectory, File workingDirectory,
+            Collection<RunnerStrategy> runners, Log log)
+            throws MojoExecutionException {
+        if (packagerDirectory == null) {
+            get_log().error("'packagerDirectory' is null");
+            throw new MojoExecutionException("'packagerDirectory' is null");
+        }
+        String manager = packagerVariables.get("PKG_SERVICE_MANAGER");
+        if (manager != null && !"sysv".equals(manager)) {
+            throw new MojoExecutionException("Invalid 'PKG_SERVICE_MANAGER': "
+                    + manager + " (debs only install sysv init scripts)");
+        }
+        long start = getMetrics().start();
+        String name = getRequiredParam("PKG_NAME");
+        if (!name.matches("[a-z0-9][a-z0-9+.-]+")) {
+            throw new MojoExecutionException("Invalid 'PKG_NAME' for a deb: "
+                    + name + " (lower case letters, digits, '+', '-' and '.')");
+        }
+        String version = getRequiredParam("PKG_VERSION").replaceFirst(
+                "-SNAPSHOT", "")
+                + "-" + getRequiredParam("PKG_RELEASE");
+        if (!version.matches("[0-9][A-Za-z0-9.+~-]*")) {
+            throw new MojoExecutionException("Invalid deb version: " + version
+                    + " (from 'PKG_VERSION' and 'PKG_RELEASE')");
+        }
+
+        StreamingDebBuilder builder = new StreamingDebBuilder(name, version);
+        builder.setControlField("Maintainer", getParam("PKG_MAINTAINER",
+                System.getProperty("user.name", name)));
+        builder.setControlField("Section", "misc");
+        builder.setControlField("Priority", "optional");
+        if (packagerVariables.containsKey("PKG_DEPENDS")) {
+            builder.setControlField("Depends",
+                    packagerVariables.get("PKG_DEPENDS"));
+        }
+        builder.setControlField("Description", getParam("PKG_DESCRIPTION",
+                name));
+        PayloadCompression compression = getCompression();
+        builder.setCompression(compression, getCompressionLevel(compression),
+                getCompressionThreads(compression));
+        builder.setDigestCache(getDigestCache());
+
+        try {
+            // Install path -> file
+            Map<String, File> payload = new LinkedHashMap<String, File>();
+            Set<File> installDirs = new HashSet<File>();
+            for (RunnerStrategy runner : runners) {
+                Map<File, Collection<File>> installSet = getInstallSet(
+                        runner, workingDirectory);
+                for (Map.Entry<File, Collection<File>> instEntry : installSet
+                        .entrySet()) {
+                    File sourceDir = new File(workingDirectory.getPath()
+                            + File.separator + instEntry.getKey());
+                    installDirs.add(sourceDir.getAbsoluteFile());
+                    for (File destFile : instEntry.getValue()) {
+                        addPayloadFile(payload,
+                                getInstallSubdirectory(instEntry.getKey()),
+                                new File(sourceDir, destFile.getName()));
+                    }
+                }
+            }
+            for (File stagedFile : getUnstagedArtifacts(installDirs)) {
+                addPayloadFile(payload, stagedFile.getParentFile().getName(),
+                        stagedFile);
+            }
+            JlinkRuntime runtime = linkRuntime(workingDirectory,
+                    getJars(payload.values()));
+            if (runtime != null) {
+                builder.setControlField("Architecture",
+                        getArchitecture(runtime));
+                for (Map.Entry<File, Collection<File>> runtimeEntry : runtime
+                        .getInstallSet().entrySet()) {
+                    for (File runtimeFile : runtimeEntry.getValue()) {
+                        addPayloadFile(payload,
+                                getInstallSubdirectory(runtimeEntry.getKey()),
+                                new File(workingDirectory + File.separator
+                                        + runtimeEntry.getKey(), runtimeFile
+                                        .getName()));
+                    }
+                }
+            }
+
+            addMaintainerScripts(builder, workingDirectory, payload
+                    .containsKey("/etc/init.d/" + name) ? name : null);
+
+            String confDir = Util.normalizePath(new File(getInstallLoc()
+                    + File.separator + "conf").getAbsolutePath())
+                    + "/";
+            for (Map.Entry<String, File> payloadFile : payload.entrySet()) {
+                // Same as the rpm, files that aren't there are skipped.
+                if (!payloadFile.getValue().isFile()) {
+                    continue;
+                }
+                String path = payloadFile.getKey();
+                if (path.startsWith("/etc/")) {
+                    builder.addFile(path, payloadFile.getValue(), 0755,
+                            "root", 0, "root", 0, true);
+                } else {
+                    builder.addFile(path, payloadFile.getValue(), 0755,
+                            getUser(), getUid(), getGroup(), getGid(),
+                            path.startsWith(confDir));
+                }
+            }
+            String debName = builder.build(packagerDirectory);
+            recordPackage(new File(packagerDirectory, debName), start);
+            get_log().info("Created deb: " + debName);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error packaging distribution files.", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new MojoExecutionException("This system does not support MD5 digests.", e);
+        } finally {
+            clearUnstagedArtifacts();
+        }
+    }
+
+    /**
+     * Turns the rendered rpm scripts into maintainer scripts. They end with
+     * exit 0 as, unlike rpm, dpkg fails the install on any script that
+     * doesn't.
+     * 
+     * The init script is a conffile so it is still there when the package is
+     * removed, and update-rc.d won't drop the links of a script that exists.
+     * As dh_installinit does, prerm stops the service on remove and postrm
+     * removes the links on purge.
+     * 
+     * @param initScript Name of the init script in /etc/init.d, null if the
+     *            package hasn't one
+     */
+    private void addMaintainerScripts(StreamingDebBuilder builder,
+            File workingDirectory, String initScript) throws IOException {
+        for (Map.Entry<String, String> prologue : SCRIPT_PROLOGUES.entrySet()) {
+            File rpmScript = new File(workingDirectory + File.separator
+                    + "rpm" + File.separator
+                    + RPM_SCRIPTS.get(prologue.getKey()));
+            String purge = "";
+            if ("postrm".equals(prologue.getKey()) && initScript != null) {
+                // Before the prologue, which ignores purge
+                purge = "if [ \"$1\" = purge ] && [ -x /usr/sbin/update-rc.d ]; then\n"
+                        + "    update-rc.d " + initScript + " remove >/dev/null\n"
+                        + "fi\n";
+            }
+            if (!rpmScript.isFile()) {
+                if (purge.length() > 0) {
+                    builder.setMaintainerScript(prologue.getKey(),
+                            "#!/bin/sh\n" + purge + "exit 0\n");
+                }
+                continue;
+            }
+            String body = new String(Files.readAllBytes(rpmScript.toPath()),
+                    StandardCharsets.UTF_8);
+            if (body.startsWith("#!")) {
+                body = body.substring(body.indexOf('\n') + 1);
+            }
+            builder.setMaintainerScript(prologue.getKey(), "#!/bin/sh\n"
+                    + "# Generated from " + rpmScript.getName()
+                    + ", with dpkg's arguments as rpm's install count\n"
+                    + purge + prologue.getValue() + body + "\nexit 0\n");
+        }
+        if (initScript != null) {
+            builder.setMaintainerScript("prerm", "#!/bin/sh\n"
+                    + "if [ \"$1\" = remove ] && [ -x /etc/init.d/"
+                    + initScript + " ]; then\n"
+                    + "    invoke-rc.d " + initScript + " stop || exit 1\n"
+                    + "fi\n"
+                    + "exit 0\n");
+        }
+    }
+
+    /**
+     * Adds a file to the payload, reading it from wherever it actually is.
+     * The first file for a given install path wins.
+     * 
+     * @param payload Install path -> file to read
+     * @param leafDirName Where the file goes, 'init.d' or a path relative to
+     *            the install location
+     * @param stagedFile Where the file is, or would be, staged
+     */
+    private void addPayloadFile(Map<String, File> payload, String leafDirName,
+            File stagedFile) {
+        String installDir;
+        if ("init.d".equals(leafDirName)) {
+            installDir = File.separator + "etc" + File.separator + "init.d";
+        } else {
+            installDir = getInstallLoc() + File.separator + leafDirName;
+        }
+        String installPath = Util.normalizePath(new File(installDir)
+                .getAbsolutePath() + "/" + stagedFile.getName());
+        if (payload.containsKey(installPath)) {
+            return;
+        }
+        payload.put(installPath, getUnstagedSource(stagedFile));
+    }
+
+    private String getParam(String parameter, String defaultValue) {
+        String value = packagerVariables.get(parameter);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * The rpm packager's scripts, rendered to the same place.
+     */
+    @Override
+    public Map<File, File> getConversionFiles(File outputDirectory,
+            RunnerStrategy runner) {
+
+        Map<File, File> conversionFiles = new HashMap<File, File>();
+
+        if ((runner instanceof MainServiceStrategy)
+                || (runner instanceof JettyStrategy)
+                || (runner instanceof JavaAppStrategy)) {
+            for (String rpmScript : RPM_SCRIPTS.values()) {
+                conversionFiles.put(new File(getRpmPrefix() + File.separator
+                        + rpmScript.replace(".sh", ".vm")), new File(
+                        outputDirectory + File.separator + "rpm"
+                                + File.separator + rpmScript));
+            }
+        }
+        return conversionFiles;
+    }
+
+    private String getRpmPrefix() {
+        return "org" + File.separator + "javadrop" + File.separator
+                + "packagerstrategy" + File.separator + "rpm";
+    }
+
+}
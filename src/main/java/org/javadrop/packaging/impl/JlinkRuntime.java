@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.packaging.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A minimal java runtime for a package, linked by the JDK's jlink from the
+ * modules jdeps finds the package's jars need. Debug information is stripped,
+ * the module image compressed and the default class data sharing archive
+ * generated, so the service starts faster on a smaller runtime than a full
+ * JDK, and runs on the JVM it was built with whatever the host has.
+ * 
+ * The runtime is linked into 'runtime' in the working directory. Linking
+ * takes a few seconds, so a runtime linked by the same JDK for the same
+ * modules is kept.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+final class JlinkRuntime {
+
+    /**
+     * Where the runtime goes, in the working directory and in the install
+     * location
+     */
+    static final String DIRECTORY = "runtime";
+
+    /**
+     * What the runtime in the working directory was linked from, next to it
+     * rather than in it so it isn't packaged
+     */
+    private static final String LINKED = DIRECTORY + ".linked";
+
+    private final File jdk;
+
+    private final File directory;
+
+    private final SortedSet<String> modules = new TreeSet<String>();
+
+    private Properties release;
+
+    /**
+     * @param jdk JDK with jdeps, jlink and the jmods to link
+     * @param workingDirectory Directory the runtime goes in
+     */
+    JlinkRuntime(File jdk, File workingDirectory) {
+        this.jdk = jdk;
+        this.directory = new File(workingDirectory, DIRECTORY);
+    }
+
+    /**
+     * Adds the modules the jars need, as far as jdeps can tell. Modules only
+     * loaded by reflection or service loaders have to be added by name.
+     */
+    void addModulesFor(Collection<File> jars) throws IOException {
+        if (jars.isEmpty()) {
+            return;
+        }
+        StringBuilder classPath = new StringBuilder();
+        for (File jar : jars) {
+            if (classPath.length() > 0) {
+                classPath.append(File.pathSeparatorChar);
+            }
+            classPath.append(jar.getAbsolutePath());
+        }
+        List<String> command = new ArrayList<String>();
+        command.add(getTool("jdeps"));
+        command.add("--ignore-missing-deps");
+        command.add("--print-module-deps");
+        command.add("--multi-release");
+        command.add(String.valueOf(getFeatureVersion()));
+        command.add("--class-path");
+        command.add(classPath.toString());
+        for (File jar : jars) {
+            command.add(jar.getAbsolutePath());
+        }
+        String output = run(command);
+        // Warnings come first, the modules are the last line
+        String[] lines = output.trim().split("\\r?\\n");
+        String moduleList = lines[lines.length - 1].trim();
+        if (!moduleList.matches("[\\w.]+(,[\\w.]+)*")) {
+            throw new IOException("Unexpected jdeps output: " + output);
+        }
+        addModules(moduleList);
+    }
+
+    /**
+     * @param moduleList Comma or space separated module names
+     */
+    void addModules(String moduleList) {
+        for (String module : moduleList.trim().split("[,\\s]+")) {
+            if (module.length() > 0) {
+                modules.add(module);
+            }
+        }
+    }
+
+    /**
+     * Links the runtime, unless the one already there was linked by the same
+     * JDK from the same modules.
+     *
+     * @return True if it was linked, false if the existing one was kept
+     */
+    boolean link() throws IOException {
+        // Every runtime has java.base, adding it makes the stamp the same
+        // whether jdeps found anything or not.
+        modules.add("java.base");
+        List<String> command = new ArrayList<String>();
+        command.add(getTool("jlink"));
+        command.add("--add-modules");
+        command.add(join(modules, ","));
+        command.add("--strip-debug");
+        command.add("--no-header-files");
+        command.add("--no-man-pages");
+        // zip-6 replaced the numbered levels in 21
+        command.add(getFeatureVersion() >= 21 ? "--compress=zip-6"
+                : "--compress=2");
+        // The default CDS archive of the JDK classes. Before jlink could
+        // make it, in 18, the runtime makes its own.
+        boolean cdsPlugin = getFeatureVersion() >= 18;
+        if (cdsPlugin) {
+            command.add("--generate-cds-archive");
+        }
+        command.add("--output");
+        command.add(directory.getAbsolutePath());
+
+        File linked = new File(directory.getParentFile(), LINKED);
+        // Distribution JDKs leave out some of the keys, Debian's has no
+        // IMPLEMENTOR_VERSION, so only JAVA_VERSION is required.
+        String stamp = getRelease("JAVA_VERSION") + " "
+                + getRelease("JAVA_RUNTIME_VERSION", "") + " "
+                + getRelease("IMPLEMENTOR", "") + " "
+                + getRelease("IMPLEMENTOR_VERSION", "") + " "
+                + jdk.getAbsolutePath() + "\n" + join(command.subList(1,
+                        command.size() - 1), " ") + "\n";
+        if (directory.isDirectory() && linked.isFile()
+                && stamp.equals(new String(Files.readAllBytes(linked.toPath()),
+                        StandardCharsets.UTF_8))) {
+            return false;
+        }
+        linked.delete();
+        delete(directory);
+        run(command);
+        if (!cdsPlugin) {
+            run(Arrays.asList(new File(directory, "bin" + File.separator
+                    + "java").getAbsolutePath(), "-Xshare:dump"));
+        }
+        Files.write(linked.toPath(), stamp.getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
+
+    /**
+     * @return The runtime's files: directory relative to the working
+     *         directory -> files in it
+     */
+    Map<File, Collection<File>> getInstallSet() {
+        Map<File, Collection<File>> installSet = new TreeMap<File, Collection<File>>();
+        addFiles(installSet, new File(DIRECTORY), directory);
+        return installSet;
+    }
+
+    private void addFiles(Map<File, Collection<File>> installSet,
+            File relativeDir, File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Collection<File> dirFiles = new ArrayList<File>();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addFiles(installSet, new File(relativeDir, file.getName()),
+                        file);
+            } else if (file.isFile()) {
+                dirFiles.add(new File(file.getName()));
+            }
+        }
+        if (!dirFiles.isEmpty()) {
+            installSet.put(relativeDir, dirFiles);
+        }
+    }
+
+    SortedSet<String> getModules() {
+        return modules;
+    }
+
+    /**
+     * @return The JDK's version, '17.0.9' say
+     */
+    String getVersion() throws IOException {
+        return getRelease("JAVA_VERSION");
+    }
+
+    /**
+     * @return The JDK's architecture, as in its release file: 'x86_64',
+     *         'aarch64'...
+     */
+    String getArchitecture() throws IOException {
+        return getRelease("OS_ARCH");
+    }
+
+    private int getFeatureVersion() throws IOException {
+        String version = getVersion();
+        if (version.startsWith("1.")) {
+            throw new IOException("jlink needs a JDK 9 or later, "
+                    + jdk.getAbsolutePath() + " is " + version);
+        }
+        return Integer.parseInt(version.replaceFirst("[^0-9].*", ""));
+    }
+
+    private String getRelease(String key) throws IOException {
+        String value = getRelease(key, null);
+        if (value == null) {
+            throw new IOException("No " + key + " in "
+                    + jdk.getAbsolutePath() + File.separator + "release");
+        }
+        return value;
+    }
+
+    /**
+     * @return The value of a key in the JDK's release file, 'defaultValue'
+     *         if it isn't there
+     */
+    private String getRelease(String key, String defaultValue)
+            throws IOException {
+        if (release == null) {
+            File releaseFile = new File(jdk, "release");
+            if (!releaseFile.isFile()) {
+                throw new IOException("Not a JDK: " + jdk.getAbsolutePath());
+            }
+            release = new Properties();
+            InputStream in = Files.newInputStream(releaseFile.toPath());
+            try {
+                release.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        String value = release.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        return value.replaceAll("^\"|\"$", "");
+    }
+
+    private String getTool(String tool) throws IOException {
+        File executable = new File(jdk, "bin" + File.separator + tool);
+        if (!executable.canExecute()) {
+            throw new IOException("No " + tool + " in " + jdk.getAbsolutePath()
+                    + ", it takes a JDK to link a runtime");
+        }
+        return executable.getAbsolutePath();
+    }
+
+    /**
+     * Runs a JDK tool.
+     *
+     * @return What it printed
+     */
+    private static String run(List<String> command) throws IOException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                .start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        InputStream in = process.getInputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        int exitCode;
+        try {
+            exitCode = process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted running " + command.get(0));
+        }
+        String printed = new String(output.toByteArray(),
+                StandardCharsets.UTF_8);
+        if (exitCode != 0) {
+            throw new IOException(new File(command.get(0)).getName()
+                    + " failed (" + exitCode + "): " + printed.trim());
+        }
+        return printed;
+    }
+
+    private static String join(Collection<String> values, String separator) {
+        StringBuilder joined = new StringBuilder();
+        for (String value : values) {
+            if (joined.length() > 0) {
+                joined.append(separator);
+            }
+            joined.append(value);
+        }
+        return joined.toString();
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Can't delete " + file.getAbsolutePath());
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.packaging.impl;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for OCI image layouts: objects are read into
+ * LinkedHashMaps, arrays into Lists, numbers into BigDecimals, and written
+ * back out compactly in the same order, so the same content always gives the
+ * same bytes (and digest).
+ * 
+ * @author gcooperpdx
+ * 
+ */
+final class Json {
+
+    private final String text;
+
+    private int position;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @param text A JSON document
+     * @return Map, List, String, BigDecimal, Boolean or null
+     * @throws IOException The text isn't JSON
+     */
+    static Object parse(String text) throws IOException {
+        Json json = new Json(text);
+        Object value = json.readValue();
+        json.skipWhitespace();
+        if (json.position != text.length()) {
+            throw json.error("Unexpected text after the JSON");
+        }
+        return value;
+    }
+
+    /**
+     * @param value Map, List, String, Number, Boolean or null
+     * @return The value as compact JSON
+     */
+    static String write(Object value) {
+        StringBuilder out = new StringBuilder();
+        write(value, out);
+        return out.toString();
+    }
+
+    private static void write(Object value, StringBuilder out) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                writeString(String.valueOf(entry.getKey()), out);
+                out.append(':');
+                write(entry.getValue(), out);
+            }
+            out.append('}');
+        } else if (value instanceof List) {
+            out.append('[');
+            boolean first = true;
+            for (Object item : (List<?>) value) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                write(item, out);
+            }
+            out.append(']');
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value);
+        } else {
+            writeString(value.toString(), out);
+        }
+    }
+
+    private static void writeString(String value, StringBuilder out) {
+        out.append('"');
+        for (int index = 0; index < value.length(); index++) {
+            char c = value.charAt(index);
+            switch (c) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+        }
+        out.append('"');
+    }
+
+    private Object readValue() throws IOException {
+        skipWhitespace();
+        if (position >= text.length()) {
+            throw error("Unexpected end of JSON");
+        }
+        char c = text.charAt(position);
+        if (c == '{') {
+            position++;
+            Map<String, Object> object = new LinkedHashMap<String, Object>();
+            skipWhitespace();
+            if (peek('}')) {
+                return object;
+            }
+            do {
+                skipWhitespace();
+                String key = readString();
+                skipWhitespace();
+                expect(':');
+                object.put(key, readValue());
+                skipWhitespace();
+            } while (peek(','));
+            expect('}');
+            return object;
+        }
+        if (c == '[') {
+            position++;
+            List<Object> array = new ArrayList<Object>();
+            skipWhitespace();
+            if (peek(']')) {
+                return array;
+            }
+            do {
+                array.add(readValue());
+                skipWhitespace();
+            } while (peek(','));
+            expect(']');
+            return array;
+        }
+        if (c == '"') {
+            return readString();
+        }
+        if (text.startsWith("true", position)) {
+            position += 4;
+            return Boolean.TRUE;
+        }
+        if (text.startsWith("false", position)) {
+            position += 5;
+            return Boolean.FALSE;
+        }
+        if (text.startsWith("null", position)) {
+            position += 4;
+            return null;
+        }
+        int start = position;
+        while (position < text.length()
+                && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+            position++;
+        }
+        try {
+            return new BigDecimal(text.substring(start, position));
+        } catch (NumberFormatException e) {
+            throw error("Bad value");
+        }
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        StringBuilder value = new StringBuilder();
+        while (position < text.length()) {
+            char c = text.charAt(position++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (position >= text.length()) {
+                break;
+            }
+            char escaped = text.charAt(position++);
+            switch (escaped) {
+            case 'b':
+                value.append('\b');
+                break;
+            case 'f':
+                value.append('\f');
+                break;
+            case 'n':
+                value.append('\n');
+                break;
+            case 'r':
+                value.append('\r');
+                break;
+            case 't':
+                value.append('\t');
+                break;
+            case 'u':
+                if (position + 4 > text.length()) {
+                    throw error("Bad escape");
+                }
+                try {
+                    value.append((char) Integer.parseInt(text.substring(
+                            position, position + 4), 16));
+                } catch (NumberFormatException e) {
+                    throw error("Bad escape");
+                }
+                position += 4;
+                break;
+            default:
+                value.append(escaped);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private void skipWhitespace() {
+        while (position < text.length()
+                && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+    }
+
+    private boolean peek(char c) {
+        if (position < text.length() && text.charAt(position) == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) throws IOException {
+        if (!peek(c)) {
+            throw error("Expecting '" + c + "'");
+        }
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at character " + position);
+    }
+}
@@ -0,0 +1,677 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.packaging.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.freecompany.redline.Util;
+
+/**
+ * Writes an OCI image layout as a single tar, ready for skopeo, crane or
+ * podman to push as 'oci-archive:', without a container daemon.
+ * 
+ * Layers are reproducible: entries are sorted, every timestamp is the epoch
+ * and ownership is numeric, so a layer whose files haven't changed has the
+ * same digest as last time and the registry already has it. Gzip layers are
+ * always written as a series of fixed size gzip members, so the digest doesn't
+ * depend on how many threads compressed them either. Each layer is
+ * streamed into the tar while it is digested, the tar header is written with
+ * a placeholder and fixed up once the digest and size are known, so nothing is
+ * staged.
+ * 
+ * Optionally the layers go on top of a base image, itself an OCI image layout
+ * directory (skopeo copy docker://eclipse-temurin:17-jre oci:base, say). Its
+ * layers are copied in and its config is the starting point for this one.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public class OciImageBuilder {
+
+    static final String INDEX_TYPE = "application/vnd.oci.image.index.v1+json";
+
+    static final String MANIFEST_TYPE = "application/vnd.oci.image.manifest.v1+json";
+
+    static final String CONFIG_TYPE = "application/vnd.oci.image.config.v1+json";
+
+    static final String LAYER_TYPE = "application/vnd.oci.image.layer.v1.tar";
+
+    private static final String DOCKER_LIST_TYPE = "application/vnd.docker.distribution.manifest.list.v2+json";
+
+    private static final String DOCKER_MANIFEST_TYPE = "application/vnd.docker.distribution.manifest.v2+json";
+
+    /**
+     * Time of every entry and of the image, so rebuilding gives the same
+     * digests
+     */
+    private static final String CREATED = "1970-01-01T00:00:00Z";
+
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Files and directories that go in one layer
+     */
+    public static final class Layer {
+        private final String description;
+
+        /**
+         * Path in the layer (directories end with '/') -> entry
+         */
+        private final SortedMap<String, LayerEntry> entries = new TreeMap<String, LayerEntry>();
+
+        private Layer(String description) {
+            this.description = description;
+        }
+
+        /**
+         * Adds a file. Its directories are added, owned by root, unless added
+         * themselves.
+         *
+         * @param path Absolute path in the image
+         * @param source File to read
+         */
+        public void addFile(String path, File source, int mode, int uid,
+                int gid) {
+            String entryPath = path.replaceFirst("^/+", "");
+            addParents(entryPath);
+            entries.put(entryPath, new LayerEntry(source, mode, uid, gid));
+        }
+
+        /**
+         * @param path Absolute path of a directory in the image
+         */
+        public void addDirectory(String path, int mode, int uid, int gid) {
+            String entryPath = path.replaceFirst("^/+", "").replaceFirst(
+                    "/*$", "/");
+            addParents(entryPath);
+            entries.put(entryPath, new LayerEntry(null, mode, uid, gid));
+        }
+
+        private void addParents(String entryPath) {
+            int slash = entryPath.lastIndexOf('/', entryPath.length() - 2);
+            while (slash > 0) {
+                String parent = entryPath.substring(0, slash + 1);
+                if (!entries.containsKey(parent)) {
+                    entries.put(parent, new LayerEntry(null, 0755, 0, 0));
+                }
+                slash = entryPath.lastIndexOf('/', slash - 1);
+            }
+        }
+
+        public boolean isEmpty() {
+            return entries.isEmpty();
+        }
+    }
+
+    private static final class LayerEntry {
+        private final File source;
+        private final int mode;
+        private final int uid;
+        private final int gid;
+
+        LayerEntry(File source, int mode, int uid, int gid) {
+            this.source = source;
+            this.mode = mode;
+            this.uid = uid;
+            this.gid = gid;
+        }
+    }
+
+    /**
+     * Counts what goes through it
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private final String name;
+
+    private final String tag;
+
+    private final List<Layer> layers = new ArrayList<Layer>();
+
+    private File baseLayout;
+
+    private String architecture = "amd64";
+
+    private String user;
+
+    private String workingDir;
+
+    private List<String> entrypoint;
+
+    private final Map<String, String> env = new LinkedHashMap<String, String>();
+
+    private final List<String> exposedPorts = new ArrayList<String>();
+
+    private PayloadCompression compression = PayloadCompression.GZIP;
+
+    private int compressionLevel = PayloadCompression.GZIP.getDefaultLevel();
+
+    private int compressionThreads = 1;
+
+    /**
+     * @param name Image name, used for the file name
+     * @param tag Tag the image is given in index.json
+     */
+    public OciImageBuilder(String name, String tag) {
+        this.name = name;
+        this.tag = tag;
+    }
+
+    /**
+     * Adds a layer, on top of those added before. Layers that end up empty
+     * are left out.
+     *
+     * @param description What's in it, for the image history
+     */
+    public Layer addLayer(String description) {
+        Layer layer = new Layer(description);
+        layers.add(layer);
+        return layer;
+    }
+
+    /**
+     * @param layout OCI image layout directory with the base image
+     */
+    public void setBase(File layout) {
+        this.baseLayout = layout;
+    }
+
+    /**
+     * @param architecture GOARCH style, amd64 or arm64 say. Picks the image
+     *            from a multi-platform base.
+     */
+    public void setArchitecture(String architecture) {
+        this.architecture = architecture;
+    }
+
+    /**
+     * @param user uid:gid the entrypoint runs as
+     */
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    public void setWorkingDir(String workingDir) {
+        this.workingDir = workingDir;
+    }
+
+    /**
+     * @param entrypoint Command and arguments. Replaces the base image's
+     *            entrypoint and command.
+     */
+    public void setEntrypoint(List<String> entrypoint) {
+        this.entrypoint = entrypoint;
+    }
+
+    /**
+     * Adds an environment variable, overriding the base image's
+     */
+    public void addEnv(String variable, String value) {
+        env.put(variable, value);
+    }
+
+    /**
+     * @param port '8080/tcp' say
+     */
+    public void addExposedPort(String port) {
+        exposedPorts.add(port);
+    }
+
+    /**
+     * Sets how the layers are compressed, gzip or none. Layers only dedupe
+     * with ones built with the same compression and level, the number of
+     * threads doesn't matter.
+     */
+    public void setCompression(PayloadCompression compression, int level,
+            int threads) {
+        if (compression == PayloadCompression.XZ) {
+            throw new IllegalArgumentException(
+                    "OCI layers are gzip or uncompressed, not xz");
+        }
+        this.compression = compression;
+        this.compressionLevel = level;
+        this.compressionThreads = threads;
+    }
+
+    public String getFileName() {
+        return name + "-" + tag + ".oci.tar";
+    }
+
+    /**
+     * Writes the image layout tar.
+     *
+     * @param directory Where it goes
+     * @return The file name
+     */
+    @SuppressWarnings("unchecked")
+    public String build(File directory) throws IOException,
+            NoSuchAlgorithmException {
+        Map<String, Object> config = new LinkedHashMap<String, Object>();
+        List<Map<String, Object>> layerDescriptors = new ArrayList<Map<String, Object>>();
+        List<Object> diffIds = new ArrayList<Object>();
+        List<Object> history = new ArrayList<Object>();
+        if (baseLayout != null) {
+            Map<String, Object> manifest = findBaseManifest();
+            config.putAll((Map<String, Object>) Json.parse(readBlob(
+                    (String) ((Map<String, Object>) manifest.get("config"))
+                            .get("digest"))));
+            layerDescriptors.addAll((List<Map<String, Object>>) manifest
+                    .get("layers"));
+            Map<String, Object> rootfs = (Map<String, Object>) config
+                    .get("rootfs");
+            if (rootfs != null && rootfs.get("diff_ids") != null) {
+                diffIds.addAll((List<Object>) rootfs.get("diff_ids"));
+            }
+            if (config.get("history") != null) {
+                history.addAll((List<Object>) config.get("history"));
+            }
+        }
+
+        String fileName = getFileName();
+        RandomAccessFile imageFile = new RandomAccessFile(new File(directory,
+                fileName), "rw");
+        FileChannel image = imageFile.getChannel();
+        Set<String> blobs = new HashSet<String>();
+        try {
+            image.truncate(0);
+            writeEntry(image, "oci-layout", utf8("{\"imageLayoutVersion\":\"1.0.0\"}"));
+            write(image, TarHeader.create("blobs/", 0, 0755, 0,
+                    TarHeader.DIRECTORY, "", 0, "", 0));
+            write(image, TarHeader.create("blobs/sha256/", 0, 0755, 0,
+                    TarHeader.DIRECTORY, "", 0, "", 0));
+
+            for (Map<String, Object> descriptor : layerDescriptors) {
+                String digest = (String) descriptor.get("digest");
+                if (blobs.add(digest)) {
+                    copyBaseBlob(image, digest);
+                }
+            }
+            for (Layer layer : layers) {
+                if (layer.isEmpty()) {
+                    continue;
+                }
+                String[] digests = writeLayer(image, layer, blobs);
+                Map<String, Object> descriptor = new LinkedHashMap<String, Object>();
+                descriptor.put("mediaType", compression == PayloadCompression.NONE ? LAYER_TYPE
+                        : LAYER_TYPE + "+gzip");
+                descriptor.put("digest", digests[0]);
+                descriptor.put("size", Long.valueOf(digests[1]));
+                layerDescriptors.add(descriptor);
+                diffIds.add(digests[2]);
+                Map<String, Object> step = new LinkedHashMap<String, Object>();
+                step.put("created", CREATED);
+                step.put("created_by", "javadrop: " + layer.description);
+                history.add(step);
+            }
+
+            Map<String, Object> rootfs = new LinkedHashMap<String, Object>();
+            rootfs.put("type", "layers");
+            rootfs.put("diff_ids", diffIds);
+            completeConfig(config);
+            config.put("rootfs", rootfs);
+            config.put("history", history);
+            Map<String, Object> configDescriptor = writeBlob(image, CONFIG_TYPE,
+                    utf8(Json.write(config)), blobs);
+
+            Map<String, Object> manifest = new LinkedHashMap<String, Object>();
+            manifest.put("schemaVersion", Integer.valueOf(2));
+            manifest.put("mediaType", MANIFEST_TYPE);
+            manifest.put("config", configDescriptor);
+            manifest.put("layers", layerDescriptors);
+            Map<String, Object> manifestDescriptor = writeBlob(image,
+                    MANIFEST_TYPE, utf8(Json.write(manifest)), blobs);
+
+            Map<String, Object> annotations = new LinkedHashMap<String, Object>();
+            annotations.put("org.opencontainers.image.ref.name", tag);
+            manifestDescriptor.put("annotations", annotations);
+            List<Object> manifests = new ArrayList<Object>();
+            manifests.add(manifestDescriptor);
+            Map<String, Object> index = new LinkedHashMap<String, Object>();
+            index.put("schemaVersion", Integer.valueOf(2));
+            index.put("mediaType", INDEX_TYPE);
+            index.put("manifests", manifests);
+            writeEntry(image, "index.json", utf8(Json.write(index)));
+            write(image, TarHeader.end());
+        } finally {
+            imageFile.close();
+        }
+        return fileName;
+    }
+
+    /**
+     * The base image's settings, with this image's on top. The base's Cmd
+     * would become arguments to the new entrypoint so it goes.
+     */
+    @SuppressWarnings("unchecked")
+    private void completeConfig(Map<String, Object> config) {
+        config.put("created", CREATED);
+        if (!config.containsKey("architecture")) {
+            config.put("architecture", architecture);
+        }
+        if (!config.containsKey("os")) {
+            config.put("os", "linux");
+        }
+        Map<String, Object> runConfig = (Map<String, Object>) config
+                .get("config");
+        if (runConfig == null) {
+            runConfig = new LinkedHashMap<String, Object>();
+            config.put("config", runConfig);
+        }
+        if (user != null) {
+            runConfig.put("User", user);
+        }
+        if (workingDir != null) {
+            runConfig.put("WorkingDir", workingDir);
+        }
+        if (entrypoint != null) {
+            runConfig.put("Entrypoint", new ArrayList<Object>(entrypoint));
+            runConfig.remove("Cmd");
+        }
+        Map<String, String> mergedEnv = new LinkedHashMap<String, String>();
+        List<Object> baseEnv = (List<Object>) runConfig.get("Env");
+        if (baseEnv != null) {
+            for (Object variable : baseEnv) {
+                String setting = String.valueOf(variable);
+                int equals = setting.indexOf('=');
+                mergedEnv.put(equals < 0 ? setting : setting.substring(0,
+                        equals), equals < 0 ? "" : setting.substring(equals + 1));
+            }
+        }
+        mergedEnv.putAll(env);
+        if (!mergedEnv.isEmpty()) {
+            List<Object> envList = new ArrayList<Object>();
+            for (Map.Entry<String, String> variable : mergedEnv.entrySet()) {
+                envList.add(variable.getKey() + "=" + variable.getValue());
+            }
+            runConfig.put("Env", envList);
+        }
+        if (!exposedPorts.isEmpty()) {
+            Map<String, Object> ports = (Map<String, Object>) runConfig
+                    .get("ExposedPorts");
+            if (ports == null) {
+                ports = new LinkedHashMap<String, Object>();
+                runConfig.put("ExposedPorts", ports);
+            }
+            for (String port : exposedPorts) {
+                ports.put(port, new LinkedHashMap<String, Object>());
+            }
+        }
+    }
+
+    /**
+     * Finds the base image's manifest for the architecture, going through
+     * nested indexes.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> findBaseManifest() throws IOException {
+        File indexFile = new File(baseLayout, "index.json");
+        if (!indexFile.isFile()) {
+            throw new IOException("Not an OCI image layout: "
+                    + baseLayout.getAbsolutePath());
+        }
+        Map<String, Object> manifest = findManifest((Map<String, Object>) Json
+                .parse(new String(Files.readAllBytes(indexFile.toPath()),
+                        StandardCharsets.UTF_8)));
+        if (manifest == null) {
+            throw new IOException("No linux/" + architecture + " image in "
+                    + baseLayout.getAbsolutePath());
+        }
+        return manifest;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> findManifest(Map<String, Object> index)
+            throws IOException {
+        for (Object item : (List<Object>) index.get("manifests")) {
+            Map<String, Object> descriptor = (Map<String, Object>) item;
+            Map<String, Object> platform = (Map<String, Object>) descriptor
+                    .get("platform");
+            if (platform != null
+                    && (!architecture.equals(platform.get("architecture")) || !"linux"
+                            .equals(platform.get("os")))) {
+                continue;
+            }
+            Object mediaType = descriptor.get("mediaType");
+            Map<String, Object> blob = (Map<String, Object>) Json
+                    .parse(readBlob((String) descriptor.get("digest")));
+            if (INDEX_TYPE.equals(mediaType)
+                    || DOCKER_LIST_TYPE.equals(mediaType)) {
+                Map<String, Object> manifest = findManifest(blob);
+                if (manifest != null) {
+                    return manifest;
+                }
+            } else if (MANIFEST_TYPE.equals(mediaType)
+                    || DOCKER_MANIFEST_TYPE.equals(mediaType)) {
+                return blob;
+            }
+        }
+        return null;
+    }
+
+    private File getBaseBlob(String digest) throws IOException {
+        if (digest == null || !digest.startsWith("sha256:")) {
+            throw new IOException("Unsupported digest in base image: "
+                    + digest);
+        }
+        return new File(baseLayout, "blobs" + File.separator + "sha256"
+                + File.separator + digest.substring("sha256:".length()));
+    }
+
+    private String readBlob(String digest) throws IOException {
+        return new String(Files.readAllBytes(getBaseBlob(digest).toPath()),
+                StandardCharsets.UTF_8);
+    }
+
+    private void copyBaseBlob(FileChannel image, String digest)
+            throws IOException {
+        File blob = getBaseBlob(digest);
+        long size = blob.length();
+        write(image, TarHeader.create(blobPath(digest), size, 0644, 0,
+                TarHeader.FILE, "", 0, "", 0));
+        FileChannel in = new FileInputStream(blob).getChannel();
+        try {
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, image);
+            }
+        } finally {
+            in.close();
+        }
+        write(image, new byte[TarHeader.padding(size)]);
+    }
+
+    /**
+     * Streams a layer into the image.
+     *
+     * @return Digest, size and diff id (digest of the uncompressed tar)
+     */
+    private String[] writeLayer(FileChannel image, Layer layer,
+            Set<String> blobs) throws IOException, NoSuchAlgorithmException {
+        long headerPosition = image.position();
+        write(image, new byte[TarHeader.BLOCK_SIZE]);
+
+        MessageDigest blobDigest = MessageDigest.getInstance("SHA-256");
+        MessageDigest diffIdDigest = MessageDigest.getInstance("SHA-256");
+        // Closing the compressor must not close the image file.
+        BufferedOutputStream buffered = new BufferedOutputStream(
+                Channels.newOutputStream(image), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        CountingOutputStream blob = new CountingOutputStream(
+                new DigestOutputStream(buffered, blobDigest));
+        OutputStream compressor;
+        if (compression == PayloadCompression.GZIP) {
+            // Always gzip members of one block each, however many threads
+            // there are, so the digest is the same on any build machine.
+            compressor = new ParallelGzipOutputStream(blob, compressionLevel,
+                    Math.max(1, compressionThreads));
+        } else {
+            compressor = compression.compress(blob, compressionLevel,
+                    compressionThreads);
+        }
+        try {
+            OutputStream tar = new BufferedOutputStream(new DigestOutputStream(
+                    compressor, diffIdDigest), BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (Map.Entry<String, LayerEntry> entry : layer.entries
+                    .entrySet()) {
+                LayerEntry layerEntry = entry.getValue();
+                if (layerEntry.source == null) {
+                    tar.write(TarHeader.create(entry.getKey(), 0,
+                            layerEntry.mode, 0, TarHeader.DIRECTORY, "",
+                            layerEntry.uid, "", layerEntry.gid));
+                    continue;
+                }
+                long length = layerEntry.source.length();
+                tar.write(TarHeader.create(entry.getKey(), length,
+                        layerEntry.mode, 0, TarHeader.FILE, "", layerEntry.uid,
+                        "", layerEntry.gid));
+                InputStream in = new FileInputStream(layerEntry.source);
+                long size = 0;
+                try {
+                    int read;
+                    while (size < length
+                            && (read = in.read(buffer, 0, (int) Math.min(
+                                    buffer.length, length - size))) > 0) {
+                        tar.write(buffer, 0, read);
+                        size += read;
+                    }
+                } finally {
+                    in.close();
+                }
+                if (size != length) {
+                    throw new IOException(layerEntry.source.getAbsolutePath()
+                            + " changed size while being packaged");
+                }
+                tar.write(new byte[TarHeader.padding(size)]);
+            }
+            tar.write(TarHeader.end());
+            tar.close();
+        } finally {
+            PayloadCompression.abort(compressor);
+        }
+
+        String digest = "sha256:" + Util.hex(blobDigest.digest());
+        long size = blob.count;
+        if (!blobs.add(digest)) {
+            // Same as a layer already in the image
+            image.truncate(headerPosition);
+            image.position(headerPosition);
+        } else {
+            write(image, new byte[TarHeader.padding(size)]);
+            writeAt(image, headerPosition, TarHeader.create(blobPath(digest),
+                    size, 0644, 0, TarHeader.FILE, "", 0, "", 0));
+        }
+        return new String[] { digest, String.valueOf(size),
+                "sha256:" + Util.hex(diffIdDigest.digest()) };
+    }
+
+    /**
+     * Writes a blob held in memory.
+     *
+     * @return Its descriptor
+     */
+    private Map<String, Object> writeBlob(FileChannel image, String mediaType,
+            byte[] content, Set<String> blobs) throws NoSuchAlgorithmException,
+            IOException {
+        String digest = "sha256:"
+                + Util.hex(MessageDigest.getInstance("SHA-256").digest(content));
+        if (blobs.add(digest)) {
+            writeEntry(image, blobPath(digest), content);
+        }
+        Map<String, Object> descriptor = new LinkedHashMap<String, Object>();
+        descriptor.put("mediaType", mediaType);
+        descriptor.put("digest", digest);
+        descriptor.put("size", Integer.valueOf(content.length));
+        return descriptor;
+    }
+
+    private static String blobPath(String digest) {
+        return "blobs/sha256/" + digest.substring("sha256:".length());
+    }
+
+    private static void writeEntry(FileChannel image, String path,
+            byte[] content) throws IOException {
+        write(image, TarHeader.create(path, content.length, 0644, 0,
+                TarHeader.FILE, "", 0, "", 0));
+        write(image, content);
+        write(image, new byte[TarHeader.padding(content.length)]);
+    }
+
+    private static void write(FileChannel channel, byte[] bytes)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void writeAt(FileChannel channel, long position,
+            byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
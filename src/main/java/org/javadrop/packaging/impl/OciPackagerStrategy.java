@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.packaging.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.freecompany.redline.Util;
+import org.javadrop.runner.RunnerStrategy;
+import org.javadrop.runner.impl.JavaAppStrategy;
+import org.javadrop.runner.impl.JettyStrategy;
+import org.javadrop.runner.impl.MainServiceStrategy;
+
+/**
+ * Builds an OCI image of the files the rpm packager would install, with
+ * {@link OciImageBuilder}. No container daemon is needed; push the result
+ * with 'skopeo copy oci-archive:...' or similar.
+ * 
+ * The files are split by how often they change. Third party jars in lib go in
+ * one layer and the project's own artifacts, launch scripts and configuration
+ * in another, so a release that doesn't change its dependencies only pushes
+ * the second. Init scripts are left out, the container runs the launch script
+ * in the foreground instead.
+ * 
+ * Optional parameters:
+ *   PKG_OCI_BASE - OCI image layout directory of the base image, e.g. a JRE
+ *   PKG_OCI_ARCH - Architecture, amd64 if not set or, with a jlink runtime,
+ *     the runtime's
+ *   PKG_OCI_ENTRYPOINT - Command, split on spaces, instead of the runner's
+ *     launch script
+ * and PKG_COMPRESSION (gzip or none), PKG_COMPRESSION_LEVEL and
+ * PKG_COMPRESSION_THREADS.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public class OciPackagerStrategy extends BasePackagerStrategy {
+
+    /**
+     * The image is built straight from the artifacts.
+     */
+    @Override
+    protected boolean leaveUnstaged() {
+        return true;
+    }
+
+    @Override
+    public void createPackage(File packagerDirectory, File workingDirectory,
+            Collection<RunnerStrategy> runners, Log log)
+            throws MojoExecutionException {
+        if (packagerDirectory == null) {
+            get_log().error("'packagerDirectory' is null");
+            throw new MojoExecutionException("'packagerDirectory' is null");
+        }
+        long start = getMetrics().start();
+        String name = getRequiredParam("PKG_NAME");
+        String tag = getRequiredParam("PKG_VERSION") + "-"
+                + getRequiredParam("PKG_RELEASE");
+        if (!tag.matches("[A-Za-z0-9_][A-Za-z0-9._-]{0,127}")) {
+            throw new MojoExecutionException("Invalid image tag: " + tag
+                    + " (from 'PKG_VERSION' and 'PKG_RELEASE')");
+        }
+
+        OciImageBuilder builder = new OciImageBuilder(name, tag);
+        if (packagerVariables.containsKey("PKG_OCI_BASE")) {
+            builder.setBase(new File(packagerVariables.get("PKG_OCI_BASE")));
+        }
+        if (packagerVariables.containsKey("PKG_OCI_ARCH")) {
+            builder.setArchitecture(packagerVariables.get("PKG_OCI_ARCH"));
+        }
+        PayloadCompression compression = getCompression();
+        if (compression == PayloadCompression.XZ) {
+            throw new MojoExecutionException(
+                    "Invalid 'PKG_COMPRESSION' for an image: xz (gzip or none)");
+        }
+        builder.setCompression(compression, getCompressionLevel(compression),
+                getCompressionThreads(compression));
+        builder.setUser(getUid() + ":" + getGid());
+        builder.setWorkingDir(getInstallLoc());
+        // The launch scripts exec the JVM rather than backgrounding it
+        builder.addEnv("foreground", "true");
+
+        try {
+            // Install path -> file, for each layer
+            Map<String, File> dependencies = new TreeMap<String, File>();
+            Map<String, File> application = new TreeMap<String, File>();
+            Set<File> installDirs = new HashSet<File>();
+            List<String> entrypoint = null;
+            for (RunnerStrategy runner : runners) {
+                Map<File, Collection<File>> installSet = getInstallSet(
+                        runner, workingDirectory);
+                for (Map.Entry<File, Collection<File>> instEntry : installSet
+                        .entrySet()) {
+                    String leafDirName = instEntry.getKey().getName();
+                    if ("init.d".equals(leafDirName)) {
+                        continue;
+                    }
+                    File sourceDir = new File(workingDirectory.getPath()
+                            + File.separator + instEntry.getKey());
+                    installDirs.add(sourceDir.getAbsoluteFile());
+                    for (File destFile : instEntry.getValue()) {
+                        addImageFile(dependencies, application,
+                                getInstallSubdirectory(instEntry.getKey()),
+                                new File(sourceDir, destFile.getName()));
+                    }
+                }
+                List<String> runnerEntrypoint = getEntrypoint(runner);
+                if (entrypoint == null) {
+                    entrypoint = runnerEntrypoint;
+                } else if (runnerEntrypoint != null) {
+                    get_log().warn(
+                            "An image has one entrypoint, "
+                                    + runnerEntrypoint.get(0)
+                                    + " won't be run");
+                }
+            }
+            for (File stagedFile : getUnstagedArtifacts(installDirs)) {
+                addImageFile(dependencies, application, stagedFile
+                        .getParentFile().getName(), stagedFile);
+            }
+
+            String entrypointParam = packagerVariables
+                    .get("PKG_OCI_ENTRYPOINT");
+            if (entrypointParam != null) {
+                entrypoint = Arrays.asList(entrypointParam.trim().split("\\s+"));
+            }
+            if (entrypoint != null) {
+                builder.setEntrypoint(entrypoint);
+            }
+            for (RunnerStrategy runner : runners) {
+                String port = runner.getParameters().get("JTY_WEB_PORT");
+                if (runner instanceof JettyStrategy && port != null) {
+                    builder.addExposedPort(port + "/tcp");
+                }
+            }
+
+            // The runtime changes least of all
+            Collection<File> jars = new ArrayList<File>(getJars(dependencies
+                    .values()));
+            jars.addAll(getJars(application.values()));
+            JlinkRuntime runtime = linkRuntime(workingDirectory, jars);
+            if (runtime != null) {
+                String architecture = getArchitecture(runtime);
+                String imageArchitecture = packagerVariables
+                        .get("PKG_OCI_ARCH");
+                if (imageArchitecture != null
+                        && !imageArchitecture.equals(architecture)) {
+                    throw new MojoExecutionException("'PKG_OCI_ARCH' is "
+                            + imageArchitecture + " but the runtime is "
+                            + architecture);
+                }
+                builder.setArchitecture(architecture);
+                Map<String, File> runtimeFiles = new TreeMap<String, File>();
+                for (Map.Entry<File, Collection<File>> runtimeEntry : runtime
+                        .getInstallSet().entrySet()) {
+                    for (File runtimeFile : runtimeEntry.getValue()) {
+                        runtimeFiles.put(Util.normalizePath(new File(
+                                getInstallLoc() + File.separator
+                                        + runtimeEntry.getKey()
+                                        + File.separator
+                                        + runtimeFile.getName())
+                                .getAbsolutePath()), new File(workingDirectory
+                                + File.separator + runtimeEntry.getKey(),
+                                runtimeFile.getName()));
+                    }
+                }
+                addLayer(builder.addLayer("java " + runtime.getVersion()
+                        + " runtime"), runtimeFiles);
+            }
+            addLayer(builder.addLayer("third party libraries"), dependencies);
+            OciImageBuilder.Layer layer = builder.addLayer(name + " " + tag);
+            // Where the service writes its pid and logs
+            layer.addDirectory(getInstallLoc(), 0755, getUid(), getGid());
+            layer.addDirectory(getInstallLoc() + "/log", 0755, getUid(),
+                    getGid());
+            addLayer(layer, application);
+
+            String imageName = builder.build(packagerDirectory);
+            recordPackage(new File(packagerDirectory, imageName), start);
+            get_log().info("Created OCI image: " + imageName);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error packaging distribution files.", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new MojoExecutionException("This system does not support SHA-256 digests.", e);
+        } finally {
+            clearUnstagedArtifacts();
+        }
+    }
+
+    private void addLayer(OciImageBuilder.Layer layer, Map<String, File> files) {
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            // Same as the rpm, files that aren't there are skipped.
+            if (file.getValue().isFile()) {
+                layer.addFile(file.getKey(), file.getValue(), 0755, getUid(),
+                        getGid());
+            }
+        }
+    }
+
+    /**
+     * Adds a file to its layer, reading it from wherever it actually is.
+     * Jars in lib that aren't build artifacts are dependencies, everything
+     * else is the application. The first file for a given install path wins.
+     * 
+     * @param leafDirName Where the file goes, relative to the install location
+     * @param stagedFile Where the file is, or would be, staged
+     */
+    private void addImageFile(Map<String, File> dependencies,
+            Map<String, File> application, String leafDirName,
+            File stagedFile) {
+        String installPath = Util.normalizePath(new File(getInstallLoc()
+                + File.separator + leafDirName).getAbsolutePath()
+                + "/" + stagedFile.getName());
+        if (dependencies.containsKey(installPath)
+                || application.containsKey(installPath)) {
+            return;
+        }
+        File source = getUnstagedSource(stagedFile);
+        if (source == stagedFile && "lib".equals(leafDirName)) {
+            dependencies.put(installPath, stagedFile);
+        } else {
+            application.put(installPath, source);
+        }
+    }
+
+    /**
+     * @return The runner's launch script, run in the foreground, or null if
+     *         it doesn't have one
+     */
+    private List<String> getEntrypoint(RunnerStrategy runner) {
+        Map<String, String> runnerParams = runner.getParameters();
+        String bin = getInstallLoc() + "/bin/";
+        List<String> entrypoint = new ArrayList<String>();
+        if (runner instanceof MainServiceStrategy) {
+            entrypoint.add(bin + runnerParams.get("SVC_NAME") + ".sh");
+            entrypoint.add("start");
+            entrypoint.add("-x");
+            entrypoint.add(runnerParams.get("PKG_STANDALONE"));
+        } else if (runner instanceof JettyStrategy) {
+            entrypoint.add(bin + runnerParams.get("JTY_NAME") + ".sh");
+        } else if (runner instanceof JavaAppStrategy) {
+            entrypoint.add(bin + runnerParams.get("APP_NAME") + ".sh");
+        } else {
+            return null;
+        }
+        return entrypoint;
+    }
+
+    /**
+     * Nothing beyond the runner's own files.
+     */
+    @Override
+    public Map<File, File> getConversionFiles(File outputDirectory,
+            RunnerStrategy runner) {
+        return new HashMap<File, File>();
+    }
+
+}
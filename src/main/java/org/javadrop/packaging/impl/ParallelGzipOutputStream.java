@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.packaging.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip output stream that compresses on several threads. The data is cut into
+ * fixed size blocks and every block is compressed into a gzip member of its
+ * own. The members are written out in order, and a series of gzip members is
+ * itself valid gzip.
+ * 
+ * Only a couple of blocks per thread are held in memory at a time.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * Compression threads are daemons so an abandoned stream can't keep the
+     * JVM (or a long lived maven daemon) from exiting.
+     */
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "javadrop-gzip-"
+                    + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final OutputStream out;
+
+    private final int level;
+
+    private final ExecutorService executor;
+
+    /**
+     * Blocks being compressed, in the order they have to be written
+     */
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+    private final int maxPending;
+
+    private byte[] block = new byte[BLOCK_SIZE];
+
+    private int used;
+
+    private boolean written;
+
+    private boolean closed;
+
+    /**
+     * @param out Where the gzip members go
+     * @param level Deflate level
+     * @param threads Number of threads to compress with
+     */
+    public ParallelGzipOutputStream(OutputStream out, int level, int threads) {
+        this.out = out;
+        this.level = level;
+        this.executor = Executors.newFixedThreadPool(threads, THREAD_FACTORY);
+        this.maxPending = threads * 2;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[used++] = (byte) b;
+        if (used == block.length) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, block.length - used);
+            System.arraycopy(b, off, block, used, count);
+            used += count;
+            off += count;
+            len -= count;
+            if (used == block.length) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Writes out the blocks that are already compressed. A partly filled
+     * block stays where it is, flushing it would only make the output bigger.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty() && pending.getFirst().isDone()) {
+            writeFirst();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // An empty payload still has to be valid gzip.
+            if (used > 0 || !written) {
+                submitBlock();
+            }
+            while (!pending.isEmpty()) {
+                writeFirst();
+            }
+        } finally {
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    /**
+     * Stops the compression threads without writing anything more, for when
+     * the payload is being abandoned. Does nothing once the stream is closed.
+     * 'out' is left open.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        executor.shutdownNow();
+        pending.clear();
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] data = block;
+        final int length = used;
+        block = new byte[BLOCK_SIZE];
+        used = 0;
+        written = true;
+        pending.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                ByteArrayOutputStream member = new ByteArrayOutputStream(
+                        length / 2 + 64);
+                GZIPOutputStream compressor = new GZIPOutputStream(member) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+                compressor.write(data, 0, length);
+                compressor.close();
+                return member.toByteArray();
+            }
+        }));
+        while (pending.size() >= maxPending) {
+            writeFirst();
+        }
+    }
+
+    private void writeFirst() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted compressing payload");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Problem compressing payload", e.getCause());
+        }
+    }
+}
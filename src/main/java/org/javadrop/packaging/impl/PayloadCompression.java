@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.packaging.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.UnsupportedOptionsException;
+import org.tukaani.xz.XZOutputStream;
+
+/**
+ * The ways an rpm payload can be compressed. Selected with 'PKG_COMPRESSION'.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public enum PayloadCompression {
+
+    /**
+     * What rpm has always used. With more than one thread the payload is cut
+     * into blocks that are compressed separately and written out as a series
+     * of gzip members, which zlib (and so rpm) reads as one stream.
+     */
+    GZIP("gzip", 9) {
+        @Override
+        OutputStream compress(OutputStream out, final int level, int threads)
+                throws IOException {
+            if (threads > 1) {
+                return new ParallelGzipOutputStream(out, level, threads);
+            }
+            return new GZIPOutputStream(out, BUFFER_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+    },
+
+    /**
+     * Smaller than gzip but a good deal slower to build. Always single
+     * threaded; rpm only reads the first stream of a concatenated xz file so
+     * the gzip trick doesn't work here.
+     */
+    XZ("xz", 6) {
+        @Override
+        OutputStream compress(OutputStream out, int level, int threads)
+                throws IOException {
+            try {
+                return new XZOutputStream(out, new LZMA2Options(level));
+            } catch (UnsupportedOptionsException e) {
+                throw new IOException("Invalid xz compression level: "
+                        + level, e);
+            }
+        }
+    },
+
+    /**
+     * No compression at all, for packages that only travel between hosts on
+     * a fast network. 'ufdio' is rpm's name for plain, uncompressed file IO.
+     */
+    NONE("ufdio", 0) {
+        @Override
+        OutputStream compress(OutputStream out, int level, int threads) {
+            return out;
+        }
+    };
+
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Value of the PAYLOADCOMPRESSOR header
+     */
+    private final String headerName;
+
+    private final int defaultLevel;
+
+    private PayloadCompression(String headerName, int defaultLevel) {
+        this.headerName = headerName;
+        this.defaultLevel = defaultLevel;
+    }
+
+    /**
+     * Wraps the stream the payload is written to. Closing the returned stream
+     * finishes the compression and closes 'out'.
+     *
+     * @param out Where the compressed payload goes
+     * @param level Compression level
+     * @param threads Number of threads to compress with, if the codec can
+     * @return Stream to write the uncompressed payload to
+     * @throws IOException Problem setting up the compressor
+     */
+    abstract OutputStream compress(OutputStream out, int level, int threads)
+            throws IOException;
+
+    /**
+     * Stops any threads behind a stream returned by
+     * {@link #compress(OutputStream, int, int)} when the payload is given up
+     * on part way. Harmless after the stream has been closed, so it can go in
+     * a finally block.
+     *
+     * @param compressor Stream returned by compress
+     */
+    static void abort(OutputStream compressor) {
+        if (compressor instanceof ParallelGzipOutputStream) {
+            ((ParallelGzipOutputStream) compressor).abort();
+        }
+    }
+
+    /**
+     * @return Value of the PAYLOADCOMPRESSOR header
+     */
+    public String getHeaderName() {
+        return headerName;
+    }
+
+    /**
+     * @return Level used when 'PKG_COMPRESSION_LEVEL' isn't given
+     */
+    public int getDefaultLevel() {
+        return defaultLevel;
+    }
+
+    /**
+     * Looks up a compression by the name used in 'PKG_COMPRESSION'.
+     *
+     * @param name gzip, xz or none (case doesn't matter)
+     * @return The matching compression
+     * @throws IllegalArgumentException Unknown or unsupported name
+     */
+    public static PayloadCompression forName(String name) {
+        if ("zstd".equalsIgnoreCase(name)) {
+            throw new IllegalArgumentException(
+                    "zstd payloads aren't supported, there is no zstd codec available to the plugin");
+        }
+        for (PayloadCompression compression : values()) {
+            if (compression.name().equalsIgnoreCase(name)) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("Unknown payload compression: "
+                + name);
+    }
+}
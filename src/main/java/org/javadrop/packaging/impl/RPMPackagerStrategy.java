@@ -16,16 +16,29 @@
 package org.javadrop.packaging.impl;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.tools.ant.Project;
+import org.freecompany.redline.Util;
 import org.freecompany.redline.ant.RedlineTask;
 import org.freecompany.redline.ant.RpmFileSet;
+import org.freecompany.redline.header.Architecture;
+import org.freecompany.redline.header.Header.HeaderTag;
+import org.freecompany.redline.header.Os;
+import org.freecompany.redline.header.RpmType;
+import org.freecompany.redline.payload.Directive;
 import org.javadrop.runner.RunnerStrategy;
 import org.javadrop.runner.impl.JavaAppStrategy;
 import org.javadrop.runner.impl.JettyStrategy;
@@ -38,22 +51,153 @@ import org.javadrop.runner.impl.MainServiceStrategy;
  * The 'mapping' this rpm strategy uses is simple. It takes the destination
  * files and mirrors them on the
  * 
+ * PKG_SERVICE_MANAGER=systemd installs a systemd unit, with the resource
+ * controls in services/systemd/service_unit.vm, in place of each init.d script.
+ * PKG_SYSTEMD_VERSION is the oldest systemd the package is installed on, 219
+ * (EL7) and up. From 246 the unit is Type=notify and can have a watchdog,
+ * before that it is Type=forking.
+ * 
+ * PKG_NOFILE, PKG_NPROC and PKG_MEMLOCK install a limits.d entry for the
+ * service user (or go in the unit with systemd), and PKG_SYSCTL=true a sysctl.d
+ * drop-in sizing the kernel's accept backlog. Both are owned by root.
+ * 
  * @author gcooperpdx
  * 
  */
 public class RPMPackagerStrategy extends BasePackagerStrategy {
 
+    /**
+     * Value of 'PKG_RPM_BUILDER' that selects the streaming builder
+     */
+    private static final String STREAM_BUILDER = "stream";
+
+    /**
+     * Value of 'PKG_SERVICE_MANAGER' that installs systemd units rather than
+     * init.d scripts
+     */
+    private static final String SYSTEMD = "systemd";
+
+    /**
+     * Oldest systemd the units work with, and the one assumed when
+     * 'PKG_SYSTEMD_VERSION' isn't given (EL7)
+     */
+    private static final int MIN_SYSTEMD_VERSION = 219;
+
+    /**
+     * First systemd whose systemd-notify waits for the message to be handled.
+     * Before that the message can be dropped once systemd-notify has exited,
+     * as systemd can no longer tell which unit sent it.
+     */
+    private static final int NOTIFY_SYSTEMD_VERSION = 246;
+
+    /**
+     * Working directory the packager's own system config files are staged in
+     */
+    private static final String SYSTEM_CONFIG_DIR = "rpm";
+
+    /**
+     * The streaming builder builds the package straight from the artifacts,
+     * redline's ant task needs them staged.
+     */
     @Override
-    public void postProcessArtifacts(RunnerStrategy runner,
-            File workingDirectory) {
-        // Rename any files necessary.
-        Map<File, File> mapFiles = runner.getArtifactRenames(workingDirectory);
-        for (Entry<File, File> mapFile : mapFiles.entrySet()) {
-            File oldFile = mapFile.getKey();
-            File newFile = mapFile.getValue();
-            newFile.getParentFile().mkdirs();
-            
-            oldFile.renameTo(newFile);
+    protected boolean leaveUnstaged() {
+        return isStreaming();
+    }
+
+    /**
+     * @return True if 'PKG_RPM_BUILDER' asks for the streaming builder, or any
+     *         of the compression parameters are given (the ant task only does
+     *         gzip on one thread). The default is redline's ant task.
+     */
+    private boolean isStreaming() {
+        return STREAM_BUILDER.equals(packagerVariables.get("PKG_RPM_BUILDER"))
+                || packagerVariables.containsKey("PKG_COMPRESSION")
+                || packagerVariables.containsKey("PKG_COMPRESSION_LEVEL")
+                || packagerVariables.containsKey("PKG_COMPRESSION_THREADS");
+    }
+
+    /**
+     * Sets up the payload compression from 'PKG_COMPRESSION' (gzip, xz or
+     * none), 'PKG_COMPRESSION_LEVEL' and 'PKG_COMPRESSION_THREADS'. A thread
+     * count of 0 means one per processor.
+     */
+    private void configureCompression(StreamingRpmBuilder builder)
+            throws MojoExecutionException {
+        PayloadCompression compression = getCompression();
+        builder.setCompression(compression, getCompressionLevel(compression),
+                getCompressionThreads(compression));
+    }
+
+    /**
+     * @return True if 'PKG_SERVICE_MANAGER' asks for systemd units. The
+     *         default, 'sysv', installs the init.d scripts.
+     */
+    private boolean isSystemd() {
+        return SYSTEMD.equals(packagerVariables.get("PKG_SERVICE_MANAGER"));
+    }
+
+    private void checkServiceManager() throws MojoExecutionException {
+        String manager = packagerVariables.get("PKG_SERVICE_MANAGER");
+        if (manager != null && !"sysv".equals(manager)
+                && !SYSTEMD.equals(manager)) {
+            throw new MojoExecutionException(
+                    "Invalid 'PKG_SERVICE_MANAGER': " + manager
+                            + " (expecting sysv or systemd)");
+        }
+        if (!isSystemd()) {
+            return;
+        }
+        int version = getSystemdVersion();
+        if (version < MIN_SYSTEMD_VERSION) {
+            throw new MojoExecutionException("Invalid 'PKG_SYSTEMD_VERSION': "
+                    + packagerVariables.get("PKG_SYSTEMD_VERSION")
+                    + " (expecting " + MIN_SYSTEMD_VERSION + " or later)");
+        }
+        if (version < NOTIFY_SYSTEMD_VERSION
+                && packagerVariables.containsKey("PKG_WATCHDOG_SEC")) {
+            throw new MojoExecutionException(
+                    "'PKG_WATCHDOG_SEC' needs 'PKG_SYSTEMD_VERSION' "
+                            + NOTIFY_SYSTEMD_VERSION
+                            + " or later, older systemd can drop the watchdog"
+                            + " pings and kill a healthy service");
+        }
+    }
+
+    /**
+     * @return 'PKG_SYSTEMD_VERSION', or -1 if it isn't a number
+     */
+    private int getSystemdVersion() {
+        String version = packagerVariables.get("PKG_SYSTEMD_VERSION");
+        if (version == null) {
+            return MIN_SYSTEMD_VERSION;
+        }
+        try {
+            return Integer.parseInt(version.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    protected void applyDefaults() {
+        super.applyDefaults();
+        // init.d scripts unless asked for systemd units
+        packagerVariables.put("PKG_SERVICE_MANAGER", "sysv");
+        // No sysctl.d drop-in unless asked for
+        packagerVariables.put("PKG_SYSCTL", "false");
+    }
+
+    /**
+     * Works out SYSTEMD_NOTIFY for the unit and its start script: 'true' if
+     * every host has a systemd that reliably takes notifications from the
+     * start script. Bad values are reported by createPackage.
+     */
+    @Override
+    public void applyParameters(Map<String, String> paramMap) {
+        super.applyParameters(paramMap);
+        packagerVariables.remove("SYSTEMD_NOTIFY");
+        if (getSystemdVersion() >= NOTIFY_SYSTEMD_VERSION) {
+            packagerVariables.put("SYSTEMD_NOTIFY", "true");
         }
     }
 
@@ -68,6 +212,13 @@ public class RPMPackagerStrategy extends BasePackagerStrategy {
             get_log().error("'packagerDirectory' is null");
             throw new MojoExecutionException("'packagerDirectory' is null");
         }
+        checkServiceManager();
+        long start = getMetrics().start();
+        if (isStreaming()) {
+            createStreamedPackage(packagerDirectory, workingDirectory, runners,
+                    start);
+            return;
+        }
         Project project = new Project();
         //project.setCoreLoader(getClass().getClassLoader());
         project.setCoreLoader(ClassLoader.getSystemClassLoader());
@@ -76,7 +227,6 @@ public class RPMPackagerStrategy extends BasePackagerStrategy {
         task.setProject(project);
         task.setDestination(packagerDirectory);
         task.setName(getRequiredParam("PKG_NAME"));
-        task.setArchitecture("NOARCH");
         task.setLicense("proprietary");
         // RPM has VERY SUBTLE and very bad behavior with text in the version.  It appears to work but doesn't upon
         // rpm -e 
@@ -93,15 +243,23 @@ public class RPMPackagerStrategy extends BasePackagerStrategy {
                 + "rpm" + File.separator + "postremove.sh"));
 
         // Get the mapping for the files that the runner(s) need to install.
-        for (RunnerStrategy runner : runners) {
-            Map<File, Collection<File>> installSet = runner
-                    .getInstallSet(workingDirectory);
+        Collection<Map<File, Collection<File>>> installSets = getInstallSets(
+                runners, workingDirectory);
+        Architecture architecture = Architecture.NOARCH;
+        JlinkRuntime runtime = linkRuntime(workingDirectory, getJars(
+                getStagedFiles(installSets, workingDirectory)));
+        if (runtime != null) {
+            architecture = getRpmArchitecture(runtime);
+            installSets.add(runtime.getInstallSet());
+        }
+        task.setArchitecture(architecture.name());
+        for (Map<File, Collection<File>> installSet : installSets) {
             for (Map.Entry<File, Collection<File>> instEntry : installSet
                     .entrySet()) {
-                String leafDirName = instEntry.getKey().getName();
+                String leafDirName = getInstallSubdirectory(instEntry.getKey());
                 File installDir;
-                if (isServiceDir(leafDirName)) {
-                    installDir = new File(getServiceDirectory());
+                if (getSystemDirectory(leafDirName) != null) {
+                    installDir = new File(getSystemDirectory(leafDirName));
                 } else {
                     installDir = new File(getInstallLoc() + File.separator
                             + leafDirName);
@@ -125,10 +283,17 @@ public class RPMPackagerStrategy extends BasePackagerStrategy {
                     fs.setConfig(true);
                     fs.setNoReplace(true);
                     fs.setDoc(true);
-                    fs.setGroup(getGroup());
-                    fs.setGid(getGid());
-                    fs.setUserName(getUser());
-                    fs.setUid(getUid());
+                    if (isRootOwned(leafDirName)) {
+                        fs.setGroup("root");
+                        fs.setGid(0);
+                        fs.setUserName("root");
+                        fs.setUid(0);
+                    } else {
+                        fs.setGroup(getGroup());
+                        fs.setGid(getGid());
+                        fs.setUserName(getUser());
+                        fs.setUid(getUid());
+                    }
                     fs.setFileMode("0755");
                     task.addRpmfileset(fs);
                 }
@@ -137,6 +302,190 @@ public class RPMPackagerStrategy extends BasePackagerStrategy {
 
         // Create the rpm
         task.execute();
+        recordPackage(new File(packagerDirectory, getRequiredParam("PKG_NAME")
+                + "-" + snapshotStripped(getRequiredParam("PKG_VERSION"))
+                + "-" + getRequiredParam("PKG_RELEASE") + "."
+                + architecture.name().toLowerCase() + ".rpm"),
+                start);
+    }
+
+    /**
+     * Builds the rpm with {@link StreamingRpmBuilder}. Same package as the ant
+     * task builds except the build artifacts are read from wherever the build
+     * left them, and only once.
+     */
+    private void createStreamedPackage(File packagerDirectory,
+            File workingDirectory, Collection<RunnerStrategy> runners,
+            long start) throws MojoExecutionException {
+        StreamingRpmBuilder builder = new StreamingRpmBuilder();
+        builder.setPackage(getRequiredParam("PKG_NAME"),
+                snapshotStripped(getRequiredParam("PKG_VERSION")),
+                getRequiredParam("PKG_RELEASE"));
+        builder.setType(RpmType.BINARY);
+        builder.setPlatform(Architecture.NOARCH, Os.LINUX);
+        builder.setGroup("Application/Office");
+        builder.setBuildHost(getBuildHost());
+        builder.setSummary("");
+        builder.setDescription("");
+        builder.setLicense("proprietary");
+        builder.setPackager(System.getProperty("user.name", ""));
+        builder.setDistribution("");
+        builder.setVendor("");
+        builder.setUrl("");
+        builder.setProvides(getRequiredParam("PKG_NAME"));
+        builder.addHeaderEntry(HeaderTag.SOURCERPM,
+                getRequiredParam("PKG_NAME") + getRequiredParam("PKG_VERSION")
+                        + ".src.rpm");
+
+        configureCompression(builder);
+        builder.setDigestCache(getDigestCache());
+
+        Directive directive = new Directive(Directive.RPMFILE_CONFIG
+                | Directive.RPMFILE_NOREPLACE | Directive.RPMFILE_DOC);
+        try {
+            builder.setPreInstallScript(new File(workingDirectory
+                    + File.separator + "rpm" + File.separator
+                    + "preinstall.sh"));
+            builder.setPostInstallScript(new File(workingDirectory
+                    + File.separator + "rpm" + File.separator
+                    + "postinstall.sh"));
+            builder.setPostUninstallScript(new File(workingDirectory
+                    + File.separator + "rpm" + File.separator
+                    + "postremove.sh"));
+
+            // Install path -> file
+            Map<String, File> payload = new LinkedHashMap<String, File>();
+            Set<File> installDirs = new HashSet<File>();
+            Set<String> rootOwned = new HashSet<String>();
+            for (Map<File, Collection<File>> installSet : getInstallSets(
+                    runners, workingDirectory)) {
+                for (Map.Entry<File, Collection<File>> instEntry : installSet
+                        .entrySet()) {
+                    File sourceDir = new File(workingDirectory.getPath()
+                            + File.separator + instEntry.getKey());
+                    installDirs.add(sourceDir.getAbsoluteFile());
+                    for (File destFile : instEntry.getValue()) {
+                        String installPath = addPayloadFile(payload,
+                                getInstallSubdirectory(instEntry.getKey()),
+                                new File(sourceDir, destFile.getName()));
+                        if (isRootOwned(instEntry.getKey().getName())) {
+                            rootOwned.add(installPath);
+                        }
+                    }
+                }
+            }
+            for (File stagedFile : getUnstagedArtifacts(installDirs)) {
+                addPayloadFile(payload, stagedFile.getParentFile().getName(),
+                        stagedFile);
+            }
+            JlinkRuntime runtime = linkRuntime(workingDirectory,
+                    getJars(payload.values()));
+            if (runtime != null) {
+                builder.setPlatform(getRpmArchitecture(runtime), Os.LINUX);
+                for (Map.Entry<File, Collection<File>> runtimeEntry : runtime
+                        .getInstallSet().entrySet()) {
+                    for (File runtimeFile : runtimeEntry.getValue()) {
+                        addPayloadFile(payload,
+                                getInstallSubdirectory(runtimeEntry.getKey()),
+                                new File(workingDirectory + File.separator
+                                        + runtimeEntry.getKey(), runtimeFile
+                                        .getName()));
+                    }
+                }
+            }
+
+            for (Map.Entry<String, File> payloadFile : payload.entrySet()) {
+                // The ant file sets quietly skip files that aren't there.
+                if (!payloadFile.getValue().isFile()) {
+                    continue;
+                }
+                if (rootOwned.contains(payloadFile.getKey())) {
+                    builder.addFile(payloadFile.getKey(),
+                            payloadFile.getValue(), 0755, 0755, directive,
+                            "root", "root");
+                } else {
+                    builder.addFile(payloadFile.getKey(),
+                            payloadFile.getValue(), 0755, 0755, directive,
+                            getUser(), getGroup());
+                }
+            }
+            String rpmName = builder.build(packagerDirectory);
+            recordPackage(new File(packagerDirectory, rpmName), start);
+            get_log().info("Created rpm: " + rpmName);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error packaging distribution files.", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new MojoExecutionException("This system does not support MD5 digests.", e);
+        } finally {
+            clearUnstagedArtifacts();
+        }
+    }
+
+    /**
+     * Adds a file to the payload, reading it from wherever it actually is.
+     * The first file for a given install path wins.
+     * 
+     * @param payload Install path -> file to read
+     * @param leafDirName Where the file goes, a system directory's name or a
+     *            path relative to the install location
+     * @param stagedFile Where the file is, or would be, staged
+     * @return The install path
+     */
+    private String addPayloadFile(Map<String, File> payload, String leafDirName,
+            File stagedFile) {
+        String installDir = getSystemDirectory(leafDirName);
+        if (installDir == null) {
+            installDir = getInstallLoc() + File.separator + leafDirName;
+        }
+        String installPath = Util.normalizePath(new File(installDir)
+                .getAbsolutePath() + "/" + stagedFile.getName());
+        if (payload.containsKey(installPath)) {
+            return installPath;
+        }
+        payload.put(installPath, getUnstagedSource(stagedFile));
+        return installPath;
+    }
+
+    /**
+     * @return The staged files of the install sets
+     */
+    private Collection<File> getStagedFiles(
+            Collection<Map<File, Collection<File>>> installSets,
+            File workingDirectory) {
+        Collection<File> stagedFiles = new ArrayList<File>();
+        for (Map<File, Collection<File>> installSet : installSets) {
+            for (Map.Entry<File, Collection<File>> instEntry : installSet
+                    .entrySet()) {
+                for (File destFile : instEntry.getValue()) {
+                    stagedFiles.add(new File(workingDirectory.getPath()
+                            + File.separator + instEntry.getKey(), destFile
+                            .getName()));
+                }
+            }
+        }
+        return stagedFiles;
+    }
+
+    /**
+     * The rpm architecture of a runtime. Redline's only 64 bit architecture
+     * that a JDK is built for is x86_64.
+     */
+    private Architecture getRpmArchitecture(JlinkRuntime runtime)
+            throws MojoExecutionException {
+        String architecture = getArchitecture(runtime);
+        if ("amd64".equals(architecture)) {
+            return Architecture.X86_64;
+        }
+        throw new MojoExecutionException("Can't build an rpm for a "
+                + architecture + " runtime");
+    }
+
+    private String getBuildHost() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "";
+        }
     }
 
     /**
@@ -149,27 +498,134 @@ public class RPMPackagerStrategy extends BasePackagerStrategy {
     }
 
     /**
-     * Checks to see if the given directory 'leaf' name is that of the service
-     * script directory for the system.
+     * Get the system directory files staged in the given directory go to,
+     * rather than under the install location. Currently this is very CentOS
+     * oriented
      * 
      * @param dirName
-     *            Leaf name of the directory in question
-     * @return True if 'dirName' is the name of the os-specific location for
-     *         service scripts
+     *            Leaf name of the directory the files are staged in
+     * @return The system-specific path for the service start scripts, units,
+     *         limits or sysctl settings. Null if 'dirName' isn't one of those.
      */
-    private boolean isServiceDir(String dirName) {
-        return "init.d".equals(dirName);
+    private String getSystemDirectory(String dirName) {
+        if ("init.d".equals(dirName)) {
+            return File.separator + "etc" + File.separator + "rc.d"
+                    + File.separator + "init.d";
+        }
+        if (SYSTEMD.equals(dirName)) {
+            return File.separator + "usr" + File.separator + "lib"
+                    + File.separator + "systemd" + File.separator + "system";
+        }
+        if ("limits.d".equals(dirName)) {
+            return File.separator + "etc" + File.separator + "security"
+                    + File.separator + "limits.d";
+        }
+        if ("sysctl.d".equals(dirName)) {
+            return File.separator + "etc" + File.separator + "sysctl.d";
+        }
+        return null;
     }
 
     /**
-     * Get the directory that contains the service launching scripts. Currently
-     * this is very CentOS oriented
+     * The service user could otherwise raise its own limits, or change kernel
+     * settings on the next boot. init.d scripts have always been the service
+     * user's.
      * 
-     * @return The system-specific path for where the service start scripts are.
+     * @param dirName
+     *            Leaf name of the directory the files are staged in
+     * @return True if the files installed from 'dirName' belong to root
+     */
+    private boolean isRootOwned(String dirName) {
+        return getSystemDirectory(dirName) != null && !"init.d".equals(dirName);
+    }
+
+    /**
+     * @return The install set of each runner, then the packager's own limits
+     *         and sysctl files, which are installed once whatever the runners.
      */
-    private String getServiceDirectory() {
-        return File.separator + "etc" + File.separator + "rc.d"
-                + File.separator + "init.d";
+    private Collection<Map<File, Collection<File>>> getInstallSets(
+            Collection<RunnerStrategy> runners, File workingDirectory) {
+        Collection<Map<File, Collection<File>>> installSets = new ArrayList<Map<File, Collection<File>>>();
+        for (RunnerStrategy runner : runners) {
+            installSets.add(getInstallSet(runner, workingDirectory));
+        }
+        Map<File, Collection<File>> systemConfig = new HashMap<File, Collection<File>>();
+        if (hasLimitsConf()) {
+            Collection<File> limits = new ArrayList<File>();
+            limits.add(new File(getLimitsConfName()));
+            systemConfig.put(new File(SYSTEM_CONFIG_DIR + File.separator
+                    + "limits.d"), limits);
+        }
+        if (hasSysctlConf()) {
+            Collection<File> sysctl = new ArrayList<File>();
+            sysctl.add(new File(getSysctlConfName()));
+            systemConfig.put(new File(SYSTEM_CONFIG_DIR + File.separator
+                    + "sysctl.d"), sysctl);
+        }
+        installSets.add(systemConfig);
+        return installSets;
+    }
+
+    /**
+     * @return True if a limits.d entry is wanted. With systemd the limits go
+     *         in the unit, pam_limits doesn't apply to services it starts.
+     */
+    private boolean hasLimitsConf() {
+        return !isSystemd()
+                && (packagerVariables.containsKey("PKG_NOFILE")
+                        || packagerVariables.containsKey("PKG_NPROC")
+                        || packagerVariables.containsKey("PKG_MEMLOCK"));
+    }
+
+    private boolean hasSysctlConf() {
+        return "true".equals(packagerVariables.get("PKG_SYSCTL"));
+    }
+
+    private String getLimitsConfName() {
+        return packagerVariables.get("PKG_NAME") + ".conf";
+    }
+
+    /**
+     * @return Name of the sysctl drop-in, late in the order so it overrides
+     *         the distribution's settings
+     */
+    private String getSysctlConfName() {
+        return "90-" + packagerVariables.get("PKG_NAME") + ".conf";
+    }
+
+    /**
+     * With systemd the runner's init.d scripts are swapped for units, each
+     * with a start script in bin.
+     */
+    @Override
+    protected Map<File, Collection<File>> getInstallSet(RunnerStrategy runner,
+            File workingDirectory) {
+        Map<File, Collection<File>> installSet = super.getInstallSet(runner,
+                workingDirectory);
+        if (!isSystemd()) {
+            return installSet;
+        }
+        Collection<File> initScripts = installSet.remove(getInitDir());
+        if (initScripts == null) {
+            return installSet;
+        }
+        File binDir = new File("runners" + File.separator + "bin");
+        Collection<File> binFiles = new ArrayList<File>();
+        if (installSet.containsKey(binDir)) {
+            binFiles.addAll(installSet.get(binDir));
+        }
+        Collection<File> units = new ArrayList<File>();
+        for (File initScript : initScripts) {
+            units.add(new File(initScript.getName() + ".service"));
+            binFiles.add(new File(initScript.getName() + "-systemd.sh"));
+        }
+        installSet.put(new File("runners" + File.separator + SYSTEMD), units);
+        installSet.put(binDir, binFiles);
+        return installSet;
+    }
+
+    private File getInitDir() {
+        return new File("runners" + File.separator + "init.d");
     }
 
     @Override
@@ -193,26 +649,41 @@ public class RPMPackagerStrategy extends BasePackagerStrategy {
                     + "preinstall.vm"),
                     new File(outputDirectory + File.separator + "rpm"
                             + File.separator + "preinstall.sh"));
+            if (hasLimitsConf()) {
+                conversionFiles.put(new File(getPrefix() + File.separator
+                        + "limits_conf.vm"), new File(outputDirectory
+                        + File.separator + SYSTEM_CONFIG_DIR + File.separator
+                        + "limits.d" + File.separator + getLimitsConfName()));
+            }
+            if (hasSysctlConf()) {
+                conversionFiles.put(new File(getPrefix() + File.separator
+                        + "sysctl_conf.vm"), new File(outputDirectory
+                        + File.separator + SYSTEM_CONFIG_DIR + File.separator
+                        + "sysctl.d" + File.separator + getSysctlConfName()));
+            }
         }
 
-        return conversionFiles;
-    }
-
-    /**
-     * Returns the install location
-     * 
-     * @return Where the package is to be installed... As a string.
-     * @throws MojoExecutionException
-     *             Thrown if required variable is missing
-     */
-    protected String getRequiredParam(String parameter)
-            throws MojoExecutionException {
-        String value = packagerVariables.get(parameter);
-        if (value == null) {
-            throw new MojoExecutionException("Missing required parameter: "
-                    + parameter);
+        if (isSystemd()
+                && ((runner instanceof MainServiceStrategy) || (runner instanceof JettyStrategy))) {
+            // A unit and start script in place of the runner's init.d script
+            Collection<File> initScripts = runner.getInstallSet(outputDirectory)
+                    .get(getInitDir());
+            if (initScripts != null && !initScripts.isEmpty()) {
+                String serviceName = initScripts.iterator().next().getName();
+                conversionFiles.put(new File(getServicesPrefix()
+                        + File.separator + "systemd" + File.separator
+                        + "service_unit.vm"), new File(outputDirectory
+                        + File.separator + "runners" + File.separator
+                        + SYSTEMD + File.separator + serviceName + ".service"));
+                conversionFiles.put(new File(getServicesPrefix()
+                        + File.separator + "bin" + File.separator
+                        + "systemd_sh.vm"), new File(outputDirectory
+                        + File.separator + "runners" + File.separator + "bin"
+                        + File.separator + serviceName + "-systemd.sh"));
+            }
         }
-        return value;
+
+        return conversionFiles;
     }
 
     private String getPrefix() {
@@ -220,4 +691,9 @@ public class RPMPackagerStrategy extends BasePackagerStrategy {
                 + "packagerstrategy" + File.separator + "rpm";
     }
 
+    private String getServicesPrefix() {
+        return "org" + File.separator + "javadrop" + File.separator
+                + "runnerstrategy" + File.separator + "services";
+    }
+
 }
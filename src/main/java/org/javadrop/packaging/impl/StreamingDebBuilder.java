@@ -0,0 +1,444 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.packaging.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.freecompany.redline.Util;
+import org.javadrop.DigestCache;
+
+/**
+ * Writes a .deb in a single pass over the payload files.
+ * 
+ * A deb is an ar archive of 'debian-binary', 'control.tar' and 'data.tar'.
+ * control.tar holds the md5sums of the payload, so can only be written once
+ * the payload has been read, but has to come first. control.tar is left
+ * uncompressed so its size is known up front: space is reserved for it, the
+ * files are streamed into the compressed data.tar while being digested, and
+ * control.tar is written into the space afterwards. The same way the ar
+ * header of data.tar is written with a placeholder size and fixed up at the
+ * end. Nothing is staged or read twice.
+ * 
+ * Needs dpkg 1.17.6 or later, the first to take an uncompressed control.tar.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public class StreamingDebBuilder {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final int AR_HEADER_SIZE = 60;
+
+    /**
+     * Length of a hex encoded MD5
+     */
+    private static final int MD5_HEX_LENGTH = 32;
+
+    /**
+     * A file that goes in data.tar
+     */
+    private static final class PayloadFile {
+        private final String path;
+        private final File source;
+        private final int mode;
+        private final String user;
+        private final int uid;
+        private final String group;
+        private final int gid;
+
+        PayloadFile(String path, File source, int mode, String user, int uid,
+                String group, int gid) {
+            this.path = path;
+            this.source = source;
+            this.mode = mode;
+            this.user = user;
+            this.uid = uid;
+            this.group = group;
+            this.gid = gid;
+        }
+    }
+
+    private final String name;
+
+    private final String version;
+
+    /**
+     * Control file fields, in the order they are written
+     */
+    private final Map<String, String> controlFields = new LinkedHashMap<String, String>();
+
+    /**
+     * Maintainer script name (preinst, postinst...) -> script
+     */
+    private final Map<String, String> scripts = new LinkedHashMap<String, String>();
+
+    private final List<PayloadFile> files = new ArrayList<PayloadFile>();
+
+    private final List<String> conffiles = new ArrayList<String>();
+
+    private PayloadCompression compression = PayloadCompression.GZIP;
+
+    private int compressionLevel = PayloadCompression.GZIP.getDefaultLevel();
+
+    private int compressionThreads = 1;
+
+    private DigestCache digestCache = new DigestCache(null);
+
+    private final long buildTime = System.currentTimeMillis() / 1000;
+
+    /**
+     * @param name Package name
+     * @param version Full version, upstream version and revision
+     */
+    public StreamingDebBuilder(String name, String version) {
+        this.name = name;
+        this.version = version;
+        controlFields.put("Package", name);
+        controlFields.put("Version", version);
+        controlFields.put("Architecture", "all");
+    }
+
+    /**
+     * Sets a control file field. Installed-Size is worked out from the files.
+     *
+     * @param field Field name, 'Depends' say
+     * @param value Its value. Continuation lines of a Description start with
+     *            a space.
+     */
+    public void setControlField(String field, String value) {
+        controlFields.put(field, value);
+    }
+
+    /**
+     * @param scriptName preinst, postinst, prerm or postrm
+     * @param script The whole script
+     */
+    public void setMaintainerScript(String scriptName, String script) {
+        scripts.put(scriptName, script);
+    }
+
+    /**
+     * Sets how data.tar is compressed. The default is gzip at level 9 on a
+     * single thread. dpkg reads the series of gzip members the parallel gzip
+     * writes as one stream.
+     */
+    public void setCompression(PayloadCompression compression, int level,
+            int threads) {
+        this.compression = compression;
+        this.compressionLevel = level;
+        this.compressionThreads = threads;
+    }
+
+    /**
+     * Sets where the digests of the payload files are looked up, same as
+     * {@link StreamingRpmBuilder#setDigestCache(DigestCache)}.
+     */
+    public void setDigestCache(DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
+    /**
+     * Adds a file to the payload. Its directories are added, owned by root.
+     *
+     * @param path Absolute install path
+     * @param source File to read the content from
+     * @param mode Permission bits
+     * @param conffile True if dpkg is to keep local changes to the file
+     */
+    public void addFile(String path, File source, int mode, String user,
+            int uid, String group, int gid, boolean conffile) {
+        files.add(new PayloadFile(path, source, mode, user, uid, group, gid));
+        if (conffile) {
+            conffiles.add(path);
+        }
+    }
+
+    /**
+     * @return Name of the package file, as dpkg-name would have it
+     */
+    public String getFileName() {
+        return name + "_" + version.replaceFirst("^[0-9]+:", "") + "_"
+                + controlFields.get("Architecture") + ".deb";
+    }
+
+    /**
+     * Writes the package.
+     *
+     * @param directory Where the package goes
+     * @return The package's file name
+     */
+    public String build(File directory) throws IOException,
+            NoSuchAlgorithmException {
+        String fileName = getFileName();
+        long installedSize = 0;
+        for (PayloadFile file : files) {
+            installedSize += (file.source.length() + 1023) / 1024;
+        }
+        String[] md5s = new String[files.size()];
+        char[] placeholder = new char[MD5_HEX_LENGTH];
+        Arrays.fill(placeholder, '0');
+        Arrays.fill(md5s, new String(placeholder));
+        byte[] control = controlTar(md5s, installedSize);
+        String dataName = "data.tar" + getExtension();
+
+        RandomAccessFile debFile = new RandomAccessFile(new File(directory,
+                fileName), "rw");
+        FileChannel deb = debFile.getChannel();
+        try {
+            deb.truncate(0);
+            write(deb, ascii("!<arch>\n"));
+            writeMember(deb, "debian-binary", ascii("2.0\n"));
+
+            // Space for control.tar, filled in once the md5sums are known
+            long controlStart = deb.position();
+            write(deb, arHeader("control.tar", control.length));
+            write(deb, new byte[control.length + control.length % 2]);
+
+            long dataStart = deb.position();
+            write(deb, arHeader(dataName, 0));
+            // Closing the compressor must not close the deb file.
+            BufferedOutputStream buffered = new BufferedOutputStream(
+                    Channels.newOutputStream(deb), BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+            OutputStream data = compression.compress(buffered,
+                    compressionLevel, compressionThreads);
+            if (data == buffered) {
+                data = new BufferedOutputStream(buffered, BUFFER_SIZE);
+            }
+            try {
+                writeData(data, md5s);
+                data.close();
+            } finally {
+                PayloadCompression.abort(data);
+            }
+            long dataSize = deb.position() - dataStart - AR_HEADER_SIZE;
+            if (dataSize % 2 != 0) {
+                write(deb, ascii("\n"));
+            }
+
+            // Now the sizes and digests are known, fill in the gaps.
+            writeAt(deb, dataStart, arHeader(dataName, dataSize));
+            byte[] finalControl = controlTar(md5s, installedSize);
+            if (finalControl.length != control.length) {
+                throw new IOException("control.tar changed size from "
+                        + control.length + " to " + finalControl.length);
+            }
+            writeAt(deb, controlStart + AR_HEADER_SIZE, finalControl);
+        } finally {
+            debFile.close();
+        }
+        return fileName;
+    }
+
+    private String getExtension() {
+        switch (compression) {
+        case XZ:
+            return ".xz";
+        case NONE:
+            return "";
+        default:
+            return ".gz";
+        }
+    }
+
+    /**
+     * Writes data.tar: the directories, then the files, digesting those the
+     * cache doesn't know.
+     */
+    private void writeData(OutputStream data, String[] md5s)
+            throws IOException, NoSuchAlgorithmException {
+        SortedSet<String> dirs = new TreeSet<String>();
+        for (PayloadFile file : files) {
+            String dir = file.path;
+            while ((dir = parentOf(dir)) != null) {
+                dirs.add(dir);
+            }
+        }
+        data.write(TarHeader.create("./", 0, 0755, buildTime,
+                TarHeader.DIRECTORY, "root", 0, "root", 0));
+        for (String dir : dirs) {
+            data.write(TarHeader.create("." + dir + "/", 0, 0755, buildTime,
+                    TarHeader.DIRECTORY, "root", 0, "root", 0));
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (int index = 0; index < files.size(); index++) {
+            PayloadFile file = files.get(index);
+            DigestCache.Digests known = digestCache.get(file.source);
+            MessageDigest md5 = null;
+            MessageDigest sha256 = null;
+            if (known == null) {
+                md5 = MessageDigest.getInstance("MD5");
+                sha256 = MessageDigest.getInstance("SHA-256");
+            }
+            InputStream in = new FileInputStream(file.source);
+            long size = 0;
+            try {
+                long length = file.source.length();
+                data.write(TarHeader.create("." + file.path, length,
+                        file.mode, file.source.lastModified() / 1000,
+                        TarHeader.FILE, file.user, file.uid, file.group,
+                        file.gid));
+                int read;
+                while (size < length && (read = in.read(buffer, 0,
+                        (int) Math.min(buffer.length, length - size))) > 0) {
+                    data.write(buffer, 0, read);
+                    if (md5 != null) {
+                        md5.update(buffer, 0, read);
+                        sha256.update(buffer, 0, read);
+                    }
+                    size += read;
+                }
+                if (size != length) {
+                    throw new IOException(file.source.getAbsolutePath()
+                            + " changed size while being packaged");
+                }
+            } finally {
+                in.close();
+            }
+            data.write(new byte[TarHeader.padding(size)]);
+            if (known == null) {
+                md5s[index] = Util.hex(md5.digest());
+                digestCache.put(file.source, new DigestCache.Digests(Util
+                        .hex(sha256.digest()), md5s[index], size));
+            } else {
+                md5s[index] = known.getMd5();
+            }
+        }
+        data.write(TarHeader.end());
+    }
+
+    private byte[] controlTar(String[] md5s, long installedSize)
+            throws IOException {
+        StringBuilder controlFile = new StringBuilder();
+        for (Map.Entry<String, String> field : controlFields.entrySet()) {
+            if (!"Description".equals(field.getKey())) {
+                controlFile.append(field.getKey()).append(": ")
+                        .append(field.getValue()).append('\n');
+            }
+        }
+        controlFile.append("Installed-Size: ").append(installedSize)
+                .append('\n');
+        String description = controlFields.get("Description");
+        controlFile.append("Description: ")
+                .append(description == null ? name : description)
+                .append('\n');
+
+        StringBuilder md5sums = new StringBuilder();
+        for (int index = 0; index < files.size(); index++) {
+            md5sums.append(md5s[index]).append("  ")
+                    .append(files.get(index).path.substring(1)).append('\n');
+        }
+
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        tar.write(TarHeader.create("./", 0, 0755, buildTime,
+                TarHeader.DIRECTORY, "root", 0, "root", 0));
+        addControlFile(tar, "control", controlFile.toString(), 0644);
+        addControlFile(tar, "md5sums", md5sums.toString(), 0644);
+        if (!conffiles.isEmpty()) {
+            StringBuilder conffileList = new StringBuilder();
+            for (String conffile : conffiles) {
+                conffileList.append(conffile).append('\n');
+            }
+            addControlFile(tar, "conffiles", conffileList.toString(), 0644);
+        }
+        for (Map.Entry<String, String> script : scripts.entrySet()) {
+            addControlFile(tar, script.getKey(), script.getValue(), 0755);
+        }
+        tar.write(TarHeader.end());
+        return tar.toByteArray();
+    }
+
+    private void addControlFile(ByteArrayOutputStream tar, String fileName,
+            String content, int mode) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        tar.write(TarHeader.create("./" + fileName, bytes.length, mode,
+                buildTime, TarHeader.FILE, "root", 0, "root", 0));
+        tar.write(bytes);
+        tar.write(new byte[TarHeader.padding(bytes.length)]);
+    }
+
+    private static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash > 0 ? path.substring(0, slash) : null;
+    }
+
+    /**
+     * ar member header. Sizes are decimal, space padded, so a placeholder can
+     * be overwritten with the real size.
+     */
+    private byte[] arHeader(String memberName, long size) throws IOException {
+        if (size > 9999999999L) {
+            throw new IOException(memberName + " is too big for a deb");
+        }
+        return ascii(String.format("%-16s%-12d%-6d%-6d%-8s%-10d`\n",
+                memberName, buildTime, 0, 0, "100644", size));
+    }
+
+    private void writeMember(FileChannel deb, String memberName, byte[] content)
+            throws IOException {
+        write(deb, arHeader(memberName, content.length));
+        write(deb, content);
+        if (content.length % 2 != 0) {
+            write(deb, ascii("\n"));
+        }
+    }
+
+    private static void write(FileChannel channel, byte[] bytes)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void writeAt(FileChannel channel, long position,
+            byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,435 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.packaging.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.freecompany.redline.Builder;
+import org.freecompany.redline.Util;
+import org.freecompany.redline.header.AbstractHeader.Entry;
+import org.freecompany.redline.header.Header;
+import org.freecompany.redline.header.Header.HeaderTag;
+import org.freecompany.redline.header.Signature.SignatureTag;
+import org.freecompany.redline.payload.CpioHeader;
+import org.javadrop.DigestCache;
+
+/**
+ * Redline builder that reads each payload file only once.
+ * 
+ * The stock builder digests every file up front, because the digests go in the
+ * header and the header comes before the payload, and then reads every file a
+ * second time to write the payload. This builder writes the header with
+ * placeholder digests, streams the files into the payload while digesting
+ * them, and then rewrites the header in place. The file digests are fixed
+ * length so the header doesn't change size. The signature digests of the
+ * header and payload are computed last, by reading back the compressed
+ * payload, which is a fraction of the size of the files that went into it.
+ * 
+ * The resulting rpm is laid out exactly as the stock builder lays it out.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public class StreamingRpmBuilder extends Builder {
+
+    /**
+     * Length of a hex encoded MD5
+     */
+    private static final int MD5_HEX_LENGTH = 32;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Largest size the rpm's 32 bit size tags, and the cpio headers of the
+     * payload, can hold
+     */
+    private static final long MAX_INT32_SIZE = 0xFFFFFFFFL;
+
+    /**
+     * Cpio entries are aligned to 4 bytes
+     */
+    private static final int CPIO_ALIGNMENT = 3;
+
+    private PayloadCompression compression = PayloadCompression.GZIP;
+
+    private int compressionLevel = PayloadCompression.GZIP.getDefaultLevel();
+
+    private int compressionThreads = 1;
+
+    private DigestCache digestCache = new DigestCache(null);
+
+    /**
+     * Channel the cpio archive is written to. Counts what goes through it and,
+     * while a file is being copied in, digests it.
+     */
+    private static class PayloadChannel implements WritableByteChannel {
+        private final WritableByteChannel target;
+        private MessageDigest digest;
+        private MessageDigest contentDigest;
+        private long count;
+
+        PayloadChannel(WritableByteChannel target) {
+            this.target = target;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (digest != null) {
+                digest.update(src.duplicate());
+            }
+            if (contentDigest != null) {
+                contentDigest.update(src.duplicate());
+            }
+            int written = 0;
+            while (src.hasRemaining()) {
+                written += target.write(src);
+            }
+            count += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            target.close();
+        }
+    }
+
+    /**
+     * Sets how the payload is compressed. The default is gzip at level 9 on a
+     * single thread, same as the stock builder.
+     *
+     * @param compression Codec to use
+     * @param level Compression level, meaning depends on the codec
+     * @param threads Threads to compress with, where the codec supports it
+     */
+    public void setCompression(PayloadCompression compression, int level,
+            int threads) {
+        this.compression = compression;
+        this.compressionLevel = level;
+        this.compressionThreads = threads;
+        if (compression == PayloadCompression.XZ) {
+            addDependencyLess("rpmlib(PayloadIsXz)", "5.2-1");
+        }
+    }
+
+    /**
+     * Sets where the digests of the payload files are looked up. Files the
+     * cache knows are copied into the payload without being digested, the
+     * rest are digested on the way in and added to the cache.
+     *
+     * @param digestCache Cache to use
+     */
+    public void setDigestCache(DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
+    /**
+     * Fails the build if a size won't fit the 32 bit field it is written to.
+     * Redline keeps the sizes as ints, which rpm reads as unsigned, so up to
+     * 4 GiB is fine and past that they would silently wrap.
+     *
+     * @param what What the size is of, for the message
+     * @param size Size in bytes
+     * @throws IOException The size is too big
+     */
+    private static void checkSize(String what, long size) throws IOException {
+        if (size > MAX_INT32_SIZE) {
+            throw new IOException(what + " is " + size
+                    + " bytes, more than the " + MAX_INT32_SIZE
+                    + " an rpm without 64 bit size tags can hold");
+        }
+    }
+
+    /**
+     * Writes a cpio header into the payload. Redline only uses the running
+     * total to align the entry, so it is handed the offset within the
+     * alignment rather than a total that could overflow an int.
+     *
+     * @return The total after the header
+     */
+    private static long writeEntry(CpioHeader entry,
+            WritableByteChannel payload, long total) throws IOException {
+        int offset = (int) (total & CPIO_ALIGNMENT);
+        return total - offset + entry.write(payload, offset);
+    }
+
+    /**
+     * Pads the payload after an entry's data, see
+     * {@link #writeEntry(CpioHeader, WritableByteChannel, long)}.
+     *
+     * @return The number of bytes of padding written
+     */
+    private static int skipEntry(CpioHeader entry,
+            WritableByteChannel payload, long total) throws IOException {
+        return entry.skip(payload, (int) (total & CPIO_ALIGNMENT));
+    }
+
+    @Override
+    public void build(FileChannel original) throws NoSuchAlgorithmException,
+            IOException {
+        // Real digests are filled in once the payload has been written.
+        List<CpioHeader> entries = new ArrayList<CpioHeader>();
+        long totalSize = 0;
+        for (CpioHeader entry : contents.headers()) {
+            entries.add(entry);
+            Object source = contents.getSource(entry);
+            if (source instanceof File) {
+                long size = ((File) source).length();
+                checkSize(String.valueOf(source), size);
+                totalSize += size;
+            } else {
+                totalSize += entry.getFileSize() & MAX_INT32_SIZE;
+            }
+        }
+        checkSize("The package content", totalSize);
+
+        Header header = format.getHeader();
+        header.createEntry(HeaderTag.EPOCH, 0);
+        header.createEntry(HeaderTag.REQUIRENAME, dependencies.keySet()
+                .toArray(new String[dependencies.size()]));
+        header.createEntry(HeaderTag.REQUIREVERSION, dependencies.values()
+                .toArray(new String[dependencies.size()]));
+        header.createEntry(HeaderTag.REQUIREFLAGS, convert(flags.values()
+                .toArray(new Integer[flags.size()])));
+        header.createEntry(HeaderTag.SIZE, contents.getTotalSize());
+        header.createEntry(HeaderTag.DIRNAMES, contents.getDirNames());
+        header.createEntry(HeaderTag.DIRINDEXES, contents.getDirIndexes());
+        header.createEntry(HeaderTag.BASENAMES, contents.getBaseNames());
+
+        String[] md5s = new String[entries.size()];
+        char[] placeholder = new char[MD5_HEX_LENGTH];
+        Arrays.fill(placeholder, '0');
+        for (int index = 0; index < md5s.length; index++) {
+            Object source = contents.getSource(entries.get(index));
+            if (source instanceof File || source instanceof URL) {
+                md5s[index] = new String(placeholder);
+            } else {
+                md5s[index] = "";
+            }
+        }
+        Entry<String[]> md5Entry = header.createEntry(HeaderTag.FILEMD5S,
+                md5s);
+
+        header.createEntry(HeaderTag.FILESIZES, contents.getSizes());
+        header.createEntry(HeaderTag.FILEMODES, contents.getModes());
+        header.createEntry(HeaderTag.FILERDEVS, contents.getRdevs());
+        header.createEntry(HeaderTag.FILEMTIMES, contents.getMtimes());
+        header.createEntry(HeaderTag.FILELINKTOS, contents.getLinkTos());
+        header.createEntry(HeaderTag.FILEFLAGS, contents.getFlags());
+        header.createEntry(HeaderTag.FILEUSERNAME, contents.getUsers());
+        header.createEntry(HeaderTag.FILEGROUPNAME, contents.getGroups());
+        header.createEntry(HeaderTag.FILEVERIFYFLAGS,
+                contents.getVerifyFlags());
+        header.createEntry(HeaderTag.FILEDEVICES, contents.getDevices());
+        header.createEntry(HeaderTag.FILEINODES, contents.getInodes());
+        header.createEntry(HeaderTag.FILELANGS, contents.getLangs());
+        header.createEntry(HeaderTag.FILECONTEXTS, contents.getContexts());
+        header.createEntry(HeaderTag.PAYLOADCOMPRESSOR,
+                compression.getHeaderName());
+        header.createEntry(HeaderTag.PAYLOADFLAGS,
+                new String[] { String.valueOf(compressionLevel) });
+
+        @SuppressWarnings("unchecked")
+        Entry<int[]> sigsizeEntry = (Entry<int[]>) format.getSignature()
+                .addEntry(SignatureTag.LEGACY_SIGSIZE, 1);
+        @SuppressWarnings("unchecked")
+        Entry<int[]> payloadEntry = (Entry<int[]>) format.getSignature()
+                .addEntry(SignatureTag.PAYLOADSIZE, 1);
+        @SuppressWarnings("unchecked")
+        Entry<byte[]> md5SigEntry = (Entry<byte[]>) format.getSignature()
+                .addEntry(SignatureTag.LEGACY_MD5, 16);
+        @SuppressWarnings("unchecked")
+        Entry<String[]> shaEntry = (Entry<String[]>) format.getSignature()
+                .addEntry(SignatureTag.SHA1HEADER, 1);
+        shaEntry.setSize(41);
+
+        format.getLead().write(original);
+        signature.setValues(getSignature(format.getSignature().count()));
+        Util.empty(original, ByteBuffer.allocate(format.getSignature().write(
+                original)));
+
+        long headerStart = original.position();
+        immutable.setValues(getImmutable(header.count()));
+        header.write(original);
+        int headerLength = (int) (original.position() - headerStart);
+
+        // Payload
+        // Closing the compressor must not close the rpm file.
+        BufferedOutputStream buffered = new BufferedOutputStream(
+                Channels.newOutputStream(original), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        OutputStream compressor = compression.compress(buffered,
+                compressionLevel, compressionThreads);
+        if (compressor == buffered) {
+            compressor = new BufferedOutputStream(buffered, BUFFER_SIZE);
+        }
+        try {
+            PayloadChannel payload = new PayloadChannel(
+                    Channels.newChannel(compressor));
+            long total = 0;
+            for (int index = 0; index < entries.size(); index++) {
+                CpioHeader entry = entries.get(index);
+                String path = entry.getName();
+                if (path.startsWith("/")) {
+                    entry.setName("." + path);
+                }
+                total = writeEntry(entry, payload, total);
+
+                Object source = contents.getSource(entry);
+                if (source instanceof File) {
+                    File file = (File) source;
+                    DigestCache.Digests known = digestCache.get(file);
+                    if (known == null) {
+                        payload.digest = MessageDigest.getInstance("MD5");
+                        payload.contentDigest = MessageDigest
+                                .getInstance("SHA-256");
+                    }
+                    FileChannel in = new FileInputStream(file).getChannel();
+                    long size;
+                    try {
+                        size = in.size();
+                        long position = 0;
+                        while (position < size) {
+                            position += in.transferTo(position, size - position,
+                                    payload);
+                        }
+                        total += size;
+                    } finally {
+                        in.close();
+                    }
+                    if (known == null) {
+                        md5s[index] = Util.hex(payload.digest.digest());
+                        digestCache.put(file, new DigestCache.Digests(
+                                Util.hex(payload.contentDigest.digest()),
+                                md5s[index], size));
+                        payload.digest = null;
+                        payload.contentDigest = null;
+                    } else {
+                        md5s[index] = known.getMd5();
+                    }
+                    total += skipEntry(entry, payload, total);
+                } else if (source instanceof URL) {
+                    payload.digest = MessageDigest.getInstance("MD5");
+                    ReadableByteChannel in = Channels.newChannel(((URL) source)
+                            .openConnection().getInputStream());
+                    try {
+                        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                        while (in.read(buffer) > 0) {
+                            buffer.flip();
+                            total += payload.write(buffer);
+                            buffer.clear();
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    md5s[index] = Util.hex(payload.digest.digest());
+                    payload.digest = null;
+                    total += skipEntry(entry, payload, total);
+                } else if (source instanceof CharSequence) {
+                    CharSequence target = (CharSequence) source;
+                    total += payload.write(ByteBuffer.wrap(String.valueOf(
+                            target).getBytes()));
+                    total += entry.skip(payload, target.length());
+                }
+            }
+            CpioHeader trailer = new CpioHeader();
+            trailer.setLast();
+            total = writeEntry(trailer, payload, total);
+            skipEntry(trailer, payload, total);
+            long payloadLength = payload.count;
+            int pad = Util.difference((int) (payloadLength & CPIO_ALIGNMENT),
+                    CPIO_ALIGNMENT);
+            Util.empty(payload, ByteBuffer.allocate(pad));
+            payloadLength += pad;
+            checkSize("The package payload", payloadLength);
+            payloadEntry.setValues(new int[] { (int) payloadLength });
+            compressor.close();
+        } finally {
+            PayloadCompression.abort(compressor);
+        }
+        long end = original.position();
+
+        // Now the digests are known, write the header again.
+        md5Entry.setValues(md5s);
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(
+                headerLength);
+        header.write(Channels.newChannel(headerBytes));
+        if (headerBytes.size() != headerLength) {
+            throw new IOException("RPM header changed size from "
+                    + headerLength + " to " + headerBytes.size());
+        }
+        byte[] headerData = headerBytes.toByteArray();
+        ByteBuffer headerBuffer = ByteBuffer.wrap(headerData);
+        long position = headerStart;
+        while (headerBuffer.hasRemaining()) {
+            position += original.write(headerBuffer, position);
+        }
+
+        MessageDigest sha = MessageDigest.getInstance("SHA");
+        sha.update(headerData);
+        shaEntry.setValues(new String[] { Util.hex(sha.digest()) });
+
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        md5.update(headerData);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        position = headerStart + headerData.length;
+        while (position < end) {
+            buffer.clear();
+            if (end - position < buffer.capacity()) {
+                buffer.limit((int) (end - position));
+            }
+            int read = original.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+            buffer.flip();
+            md5.update(buffer);
+        }
+        md5SigEntry.setValues(md5.digest());
+        checkSize("The package header and payload", end - headerStart);
+        sigsizeEntry.setValues(new int[] { (int) (end - headerStart) });
+
+        format.getSignature().writePending(original);
+        original.close();
+    }
+
+}
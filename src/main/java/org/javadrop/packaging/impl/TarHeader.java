@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.packaging.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * ustar headers, for the tar files the deb and OCI image builders write
+ * without staging anything.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+final class TarHeader {
+
+    static final int BLOCK_SIZE = 512;
+
+    static final char FILE = '0';
+
+    static final char DIRECTORY = '5';
+
+    private TarHeader() {
+    }
+
+    /**
+     * Builds a header. Paths over 100 characters are split into the prefix
+     * field.
+     *
+     * @param path Entry path, directories end with '/'
+     * @param size Size of the content that follows
+     * @param mode Permission bits
+     * @param mtime Modification time, in seconds
+     * @param type {@link #FILE} or {@link #DIRECTORY}
+     * @return The 512 byte header
+     * @throws IOException The path or size doesn't fit in a ustar header
+     */
+    static byte[] create(String path, long size, int mode, long mtime,
+            char type, String user, int uid, String group, int gid)
+            throws IOException {
+        byte[] header = new byte[BLOCK_SIZE];
+        String prefix = "";
+        String entryName = path;
+        if (utf8(path).length > 100) {
+            int split = path.lastIndexOf('/', path.length() - 2);
+            while (split > 0
+                    && (utf8(path.substring(0, split)).length > 155 || utf8(path
+                            .substring(split + 1)).length > 100)) {
+                split = path.lastIndexOf('/', split - 1);
+            }
+            if (split <= 0) {
+                throw new IOException("Path too long for a tar entry: " + path);
+            }
+            prefix = path.substring(0, split);
+            entryName = path.substring(split + 1);
+        }
+        if (size > 077777777777L) {
+            throw new IOException("File too big for a tar entry: " + path);
+        }
+        put(header, 0, 100, utf8(entryName));
+        putOctal(header, 100, 8, mode);
+        putOctal(header, 108, 8, uid);
+        putOctal(header, 116, 8, gid);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, mtime);
+        header[156] = (byte) type;
+        put(header, 257, 8, ascii("ustar\0" + "00"));
+        put(header, 265, 32, utf8(user));
+        put(header, 297, 32, utf8(group));
+        put(header, 345, 155, utf8(prefix));
+        // The checksum is taken with its own field as spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        put(header, 148, 8, ascii(String.format("%06o", checksum) + "\0 "));
+        return header;
+    }
+
+    /**
+     * @return Zeros needed after 'size' bytes of content to fill the block
+     */
+    static int padding(long size) {
+        return (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+    }
+
+    /**
+     * @return The two empty blocks that end a tar
+     */
+    static byte[] end() {
+        return new byte[BLOCK_SIZE * 2];
+    }
+
+    private static void putOctal(byte[] header, int offset, int length,
+            long value) {
+        put(header, offset, length, ascii(String.format("%0" + (length - 1)
+                + "o", value)));
+    }
+
+    private static void put(byte[] header, int offset, int length, byte[] value) {
+        System.arraycopy(value, 0, header, offset, Math.min(length,
+                value.length));
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
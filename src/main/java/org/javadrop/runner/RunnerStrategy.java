@@ -19,7 +19,9 @@ import java.io.File;
 import java.util.Collection;
 import java.util.Map;
 
+import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
+import org.javadrop.ArtifactIndex;
 import org.javadrop.RunnerDefinition;
 
 /**
@@ -49,8 +51,9 @@ public interface RunnerStrategy {
      * Returns a list of target artifacts to be renamed.
      * @param workingDirectory Target directory where the artifacts live
      * @return Mapping of old file -> new file of artifacts produced in the build.
+     * @throws MojoExecutionException An artifact couldn't be produced
      */
-    Map<File, File> getArtifactRenames(File workingDirectory);
+    Map<File, File> getArtifactRenames(File workingDirectory) throws MojoExecutionException;
     
 	/**
 	 * Provides a list of the names of the template files that this strategy needs converted. 
@@ -80,6 +83,12 @@ public interface RunnerStrategy {
 	 */
 	Map<File, Collection<File>> getInstallSet(File workingDirectory);
 
+	/**
+	 * Sets where the runner lists the directories it finds artifacts in.
+	 * @param artifactIndex Index shared by all the runners and packagers
+	 */
+	void setArtifactIndex(ArtifactIndex artifactIndex);
+
 	/**
 	 * Sets to point at the maven logger
 	 * @param log Maven logger
@@ -17,14 +17,19 @@ package org.javadrop.runner.impl;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
+import org.javadrop.ArtifactIndex;
 import org.javadrop.RunnerDefinition;
 import org.javadrop.runner.RunnerStrategy;
 
@@ -58,6 +63,8 @@ public abstract class BaseRunnerStrategy implements RunnerStrategy {
     
     private RunnerDefinition      runnerDefinition;
 
+    private ArtifactIndex         artifactIndex     = new ArtifactIndex();
+
     @Override
     public void setRunnerDefinition(RunnerDefinition runnerDef) {
         this.runnerDefinition = runnerDef;
@@ -68,10 +75,55 @@ public abstract class BaseRunnerStrategy implements RunnerStrategy {
         return this.runnerDefinition;
     }
     
+    /**
+     * Builds lib/javadrop-classpath.jar when CLASSPATH_MODE is 'ordered' or
+     * 'merged', see ClasspathJar. The project's jars are the ones in the
+     * working directory, the rest of the jars in lib are its dependencies.
+     * CLASSPATH_ORDER is the class loading log of a training run, run with
+     * lib/* or an 'ordered' classpath, that decides which jars go first.
+     */
     @Override
-    public Map<File, File> getArtifactRenames(File workingDirectory) {
-        // Default to doing nothing
-        return new HashMap<File, File>();
+    public Map<File, File> getArtifactRenames(File workingDirectory)
+            throws MojoExecutionException {
+        Map<File, File> renameMap = new HashMap<File, File>();
+        String mode = getClasspathMode();
+        if (ClasspathJar.WILDCARD.equals(mode)) {
+            return renameMap;
+        }
+        if (!ClasspathJar.ORDERED.equals(mode)
+                && !ClasspathJar.MERGED.equals(mode)) {
+            throw new MojoExecutionException("Invalid 'CLASSPATH_MODE': "
+                    + mode + " (wildcard, ordered or merged)");
+        }
+
+        Collection<File> projectJars = getDirFiles(workingDirectory,
+                new JarFilenameFilter());
+        ClasspathJar classpathJar = new ClasspathJar(projectJars,
+                getDependencyJars(workingDirectory, projectJars));
+        File jar = new File(workingDirectory, "javadrop" + File.separator
+                + "classpath" + File.separator + ClasspathJar.FILE_NAME);
+        try {
+            String order = runnerVariables.get("CLASSPATH_ORDER");
+            if (order != null) {
+                classpathJar.readClassLoadingLog(new File(order));
+            }
+            if (ClasspathJar.MERGED.equals(mode)) {
+                classpathJar.writeMerged(jar);
+                if (classpathJar.getShadowedEntries() > 0) {
+                    get_log().warn(
+                            classpathJar.getShadowedEntries()
+                                    + " entries of the dependencies are shadowed by ones earlier on the classpath");
+                }
+            } else {
+                classpathJar.writeOrdered(jar);
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to write "
+                    + jar.getAbsolutePath(), e);
+        }
+        renameMap.put(jar, new File(workingDirectory, "lib" + File.separator
+                + ClasspathJar.FILE_NAME));
+        return renameMap;
     }
 
     @Override
@@ -108,6 +160,14 @@ public abstract class BaseRunnerStrategy implements RunnerStrategy {
         runnerVariables.put("JAVA_INSTALL_LOC", "/usr/java/latest");
         runnerVariables.put("RUNNER_USER", "javadrop");
         runnerVariables.put("RUNNER_GROUP", "javadrop");
+        // GC and heap settings, see common/jvm_profile.vm
+        runnerVariables.put("JVM_PROFILE", "none");
+        // How the init script knows the service started, see
+        // services/init.d/service_template_main.vm
+        runnerVariables.put("READY_PROBE", "none");
+        // How the launch scripts put lib on the classpath, see
+        // getArtifactRenames()
+        runnerVariables.put("CLASSPATH_MODE", ClasspathJar.WILDCARD);
 
         // Deprecated
         runnerVariables.put("SVC_NAME", "service");
@@ -118,6 +178,25 @@ public abstract class BaseRunnerStrategy implements RunnerStrategy {
 
     }
 
+    /**
+     * The template for bin/[service]-warmup.sh, which the init script runs
+     * once the service is ready. That's the project's own script, WARMUP_SCRIPT
+     * on the classpath, or requests to WARMUP_URLS.
+     * 
+     * @return Template to convert, null if the service has no warm-up script
+     */
+    protected File getWarmupTemplate() {
+        String warmupScript = runnerVariables.get("WARMUP_SCRIPT");
+        if (warmupScript != null) {
+            return new File(warmupScript);
+        }
+        if (runnerVariables.get("WARMUP_URLS") != null) {
+            return new File("org" + File.separator + "javadrop" + File.separator + "runnerstrategy"
+                    + File.separator + "services" + File.separator + "bin" + File.separator + "warmup_sh.vm");
+        }
+        return null;
+    }
+
     /**
      * Get a bunch of files from a given directory. Generally used to grab a set of generated files (libraries, e.g.)
      * @param dir Directory to grab the files from
@@ -126,25 +205,76 @@ public abstract class BaseRunnerStrategy implements RunnerStrategy {
      */
     protected Collection<File> getDirFiles(File dir, FilenameFilter optionalFilter) {
         
-        ArrayList<File> fileList = new ArrayList<File>();
-
-        File [] dirList;
-        if (optionalFilter == null) {
-            dirList = dir.listFiles(); }
-        else {
-            dirList = dir.listFiles(optionalFilter);
-        }
-        
+        List<File> dirList = artifactIndex.listFiles(dir, optionalFilter);
         if (dirList == null) {
             get_log().warn("Directory is missing or empty: " + dir.getAbsolutePath());
-            return fileList;
+            return new ArrayList<File>();
         }
-        for (File file : dirList) {
-            fileList.add(file);
-        }
-        return fileList;
+        return dirList;
+    }
+
+    @Override
+    public void setArtifactIndex(ArtifactIndex artifactIndex) {
+        this.artifactIndex = artifactIndex;
+    }
+
+    protected ArtifactIndex getArtifactIndex() {
+        return artifactIndex;
     }
     
+    /**
+     * The jars in lib to install. With CLASSPATH_MODE 'merged' the
+     * dependencies are installed as lib/javadrop-classpath.jar rather than
+     * their own jars.
+     * 
+     * @param workingDirectory Directory lib is in
+     * @return Jars in lib
+     */
+    protected Collection<File> getLibFiles(File workingDirectory) {
+        Collection<File> libFiles = getDirFiles(new File(workingDirectory,
+                "lib"), new JarFilenameFilter());
+        String mode = getClasspathMode();
+        Collection<File> excluded = new HashSet<File>();
+        if (ClasspathJar.MERGED.equals(mode)) {
+            excluded.addAll(getDependencyJars(workingDirectory, getDirFiles(
+                    workingDirectory, new JarFilenameFilter())));
+        }
+        Iterator<File> libIterator = libFiles.iterator();
+        while (libIterator.hasNext()) {
+            File libFile = libIterator.next();
+            if (excluded.contains(libFile)
+                    || (ClasspathJar.WILDCARD.equals(mode) && ClasspathJar.FILE_NAME
+                            .equals(libFile.getName()))) {
+                libIterator.remove();
+            }
+        }
+        return libFiles;
+    }
+
+    /**
+     * @return The jars in lib that aren't the project's own
+     */
+    private Collection<File> getDependencyJars(File workingDirectory,
+            Collection<File> projectJars) {
+        Set<String> projectNames = new HashSet<String>();
+        for (File projectJar : projectJars) {
+            projectNames.add(projectJar.getName());
+        }
+        projectNames.add(ClasspathJar.FILE_NAME);
+        Collection<File> dependencyJars = new ArrayList<File>();
+        for (File libFile : getDirFiles(new File(workingDirectory, "lib"),
+                new JarFilenameFilter())) {
+            if (!projectNames.contains(libFile.getName())) {
+                dependencyJars.add(libFile);
+            }
+        }
+        return dependencyJars;
+    }
+
+    private String getClasspathMode() {
+        return runnerVariables.get("CLASSPATH_MODE");
+    }
+
     @Override
     public void set_log(Log _log) {
         this._log = _log;
@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.runner.impl;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The jar the launch scripts put on the classpath in place of lib/* when
+ * CLASSPATH_MODE isn't 'wildcard'. The JVM expands lib/* in whatever order
+ * the file system lists it, and opens and searches every jar in turn.
+ * 
+ * 'ordered' writes a jar with nothing but a manifest, its Class-Path the jars
+ * in lib in the order they were first used in a training run, then the rest
+ * by name. 'merged' copies every dependency's entries, in the same order,
+ * into the one jar, stored rather than compressed, and leaves the project's
+ * own jars on its Class-Path. Either way the jar is the same for the same
+ * jars.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+final class ClasspathJar {
+
+    /**
+     * What the jar is called in lib
+     */
+    static final String FILE_NAME = "javadrop-classpath.jar";
+
+    /**
+     * CLASSPATH_MODE values
+     */
+    static final String WILDCARD = "wildcard";
+
+    static final String ORDERED = "ordered";
+
+    static final String MERGED = "merged";
+
+    /**
+     * Where a class was loaded from, as -Xlog:class+load ("source: file:...")
+     * or -verbose:class on java 8 ("from file:...") logs it
+     */
+    private static final Pattern LOADED_FROM = Pattern
+            .compile("(?:source:|from) (?:jar:)?file:(\\S+?\\.jar)");
+
+    /**
+     * Entries are all given the same time, the earliest a zip can hold
+     */
+    private static final long ENTRY_TIME = new GregorianCalendar(1980, 0, 1)
+            .getTimeInMillis();
+
+    private static final String SERVICES = "META-INF/services/";
+
+    private static final Comparator<File> BY_NAME = new Comparator<File>() {
+        @Override
+        public int compare(File file1, File file2) {
+            return file1.getName().compareTo(file2.getName());
+        }
+    };
+
+    private final List<File> projectJars;
+
+    private final List<File> dependencyJars;
+
+    /**
+     * Jar names in the order they were first used
+     */
+    private final Set<String> firstUse = new LinkedHashSet<String>();
+
+    private int shadowedEntries;
+
+    /**
+     * @param projectJars The project's own jars
+     * @param dependencyJars The jars the project depends on
+     */
+    ClasspathJar(Collection<File> projectJars, Collection<File> dependencyJars) {
+        this.projectJars = new ArrayList<File>(projectJars);
+        Collections.sort(this.projectJars, BY_NAME);
+        this.dependencyJars = new ArrayList<File>(dependencyJars);
+        Collections.sort(this.dependencyJars, BY_NAME);
+    }
+
+    /**
+     * Puts the jars a training run used first ahead of the others.
+     * 
+     * @param log Class loading log of the run, java -Xlog:class+load or
+     *            -verbose:class
+     * @throws IOException The log couldn't be read
+     */
+    void readClassLoadingLog(File log) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(log), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = LOADED_FROM.matcher(line);
+                if (matcher.find()) {
+                    String path = matcher.group(1);
+                    firstUse.add(path.substring(path.lastIndexOf('/') + 1));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return The jars in the order they go on the classpath: first used
+     *         first, then the project's jars and then the dependencies, each
+     *         by name
+     */
+    List<File> getOrder() {
+        List<File> jars = new ArrayList<File>(projectJars);
+        jars.addAll(dependencyJars);
+        return order(jars);
+    }
+
+    /**
+     * @return Entries of later dependencies that were left out of the merged
+     *         jar because an earlier one had them
+     */
+    int getShadowedEntries() {
+        return shadowedEntries;
+    }
+
+    /**
+     * Writes the jar with the manifest that lists all the jars.
+     */
+    void writeOrdered(File jar) throws IOException {
+        open(jar, createManifest(getOrder())).close();
+    }
+
+    /**
+     * Writes the jar with the dependencies' entries in it and the project's
+     * jars on its Class-Path. The first dependency with an entry wins, except
+     * for service files which are joined. Manifests, signatures, jar indexes
+     * and module descriptors aren't copied, the jar is a plain classpath jar.
+     */
+    void writeMerged(File jar) throws IOException {
+        List<File> dependencies = order(dependencyJars);
+        Manifest manifest = createManifest(order(projectJars));
+        for (File dependency : dependencies) {
+            if (isMultiRelease(dependency)) {
+                manifest.getMainAttributes().putValue("Multi-Release", "true");
+                break;
+            }
+        }
+
+        shadowedEntries = 0;
+        Set<String> written = new HashSet<String>();
+        written.add("META-INF/");
+        Map<String, ByteArrayOutputStream> services = new TreeMap<String, ByteArrayOutputStream>();
+        ZipOutputStream out = open(jar, manifest);
+        try {
+            for (File dependency : dependencies) {
+                ZipFile zip = new ZipFile(dependency);
+                try {
+                    for (ZipEntry entry : Collections.list(zip.entries())) {
+                        String name = entry.getName();
+                        if (!isCopied(name)) {
+                            continue;
+                        }
+                        if (name.startsWith(SERVICES) && !entry.isDirectory()) {
+                            ByteArrayOutputStream service = services.get(name);
+                            if (service == null) {
+                                service = new ByteArrayOutputStream();
+                                services.put(name, service);
+                            }
+                            service.write(readEntry(zip, entry));
+                            service.write('\n');
+                        } else if (!written.add(name)) {
+                            if (!entry.isDirectory()) {
+                                shadowedEntries++;
+                            }
+                        } else {
+                            putEntry(out, name, entry.isDirectory() ? null
+                                    : readEntry(zip, entry));
+                        }
+                    }
+                } finally {
+                    zip.close();
+                }
+            }
+            for (Map.Entry<String, ByteArrayOutputStream> service : services
+                    .entrySet()) {
+                putEntry(out, service.getKey(), service.getValue()
+                        .toByteArray());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private List<File> order(List<File> jars) {
+        Map<String, File> byName = new LinkedHashMap<String, File>();
+        for (File jar : jars) {
+            byName.put(jar.getName(), jar);
+        }
+        List<File> ordered = new ArrayList<File>();
+        for (String name : firstUse) {
+            File jar = byName.remove(name);
+            if (jar != null) {
+                ordered.add(jar);
+            }
+        }
+        ordered.addAll(byName.values());
+        return ordered;
+    }
+
+    private static boolean isCopied(String name) {
+        String upperName = name.toUpperCase();
+        if (upperName.equals(JarFile.MANIFEST_NAME)
+                || upperName.equals("META-INF/INDEX.LIST")
+                || name.endsWith("module-info.class")) {
+            return false;
+        }
+        if (upperName.startsWith("META-INF/") && upperName.indexOf('/', 9) < 0) {
+            // Signatures are for the jar they came in
+            return !(upperName.endsWith(".SF") || upperName.endsWith(".RSA")
+                    || upperName.endsWith(".DSA")
+                    || upperName.endsWith(".EC") || upperName
+                    .startsWith("META-INF/SIG-"));
+        }
+        return true;
+    }
+
+    private static Manifest createManifest(List<File> classPath) {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("Created-By", "javadrop");
+        if (!classPath.isEmpty()) {
+            StringBuilder value = new StringBuilder();
+            for (File jar : classPath) {
+                if (value.length() > 0) {
+                    value.append(' ');
+                }
+                // Relative URLs, next to this jar in lib
+                value.append(jar.getName().replace("%", "%25")
+                        .replace(" ", "%20"));
+            }
+            attributes.put(Attributes.Name.CLASS_PATH, value.toString());
+        }
+        return manifest;
+    }
+
+    private static boolean isMultiRelease(File jar) throws IOException {
+        JarFile jarFile = new JarFile(jar, false);
+        try {
+            Manifest manifest = jarFile.getManifest();
+            return manifest != null
+                    && "true".equalsIgnoreCase(manifest.getMainAttributes()
+                            .getValue("Multi-Release"));
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    private static byte[] readEntry(ZipFile zip, ZipEntry entry)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = zip.getInputStream(entry);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Starts the jar with its manifest. Everything in it is stored.
+     */
+    private static ZipOutputStream open(File jar, Manifest manifest)
+            throws IOException {
+        jar.getParentFile().mkdirs();
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        manifest.write(manifestBytes);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        out.setMethod(ZipOutputStream.STORED);
+        putEntry(out, "META-INF/", null);
+        putEntry(out, JarFile.MANIFEST_NAME, manifestBytes.toByteArray());
+        return out;
+    }
+
+    /**
+     * Adds a stored entry, a directory if there's no data
+     */
+    private static void putEntry(ZipOutputStream out, String name, byte[] data)
+            throws IOException {
+        byte[] bytes = data == null ? new byte[0] : data;
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(ENTRY_TIME);
+        entry.setSize(bytes.length);
+        entry.setCompressedSize(bytes.length);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(bytes);
+        out.closeEntry();
+    }
+}
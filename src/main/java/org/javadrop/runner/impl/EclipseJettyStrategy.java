@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright 2011 iovation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.javadrop.runner.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs a war on jetty 9.4 or later (org.eclipse.jetty) rather than the jetty 6
+ * of {@link JettyStrategy}. The server is described by conf/jetty.xml and
+ * started with jetty's own XmlConfiguration, so the project only needs the
+ * jetty jars (jetty-webapp and, for h2c, http2-server) among its dependencies.
+ * 
+ * JTY_H2C=true adds HTTP/2 without TLS to the connector and
+ * JTY_EXECUTOR=virtual runs requests on virtual threads when the JVM is java
+ * 21 or later. JTY_WEBAPP_CLASS is the WebAppContext class, which moved in
+ * jetty 12 (org.eclipse.jetty.ee10.webapp.WebAppContext, for example).
+ * JTY_METRICS_SERVLET is the Prometheus servlet served at JTY_METRICS_PATH.
+ * WARMUP_CLASS, a Runnable, is run by conf/jetty-warmup.xml once the server
+ * has started.
+ * 
+ * @author gcooperpdx
+ * 
+ */
+public class EclipseJettyStrategy extends JettyStrategy {
+
+    @Override
+    public Map<File, File> getConversionFiles(File outputDirectory) {
+        Map<File, File> conversionFiles = new HashMap<File, File>();
+
+        conversionFiles.put(new File(getPrefix() + File.separator + "bin"
+                + File.separator + "eclipse_jetty_sh.vm"), new File(
+                outputDirectory + File.separator + "runners" + File.separator
+                        + "bin" + File.separator + getServiceName() + ".sh"));
+
+        conversionFiles.put(new File(getPrefix() + File.separator + "init.d"
+                + File.separator + "service_template_main.vm"), new File(
+                outputDirectory + File.separator + "runners" + File.separator
+                        + "init.d" + File.separator + getServiceName()));
+
+        conversionFiles.put(new File(getPrefix() + File.separator + "jettyconf"
+                + File.separator + "env.vm"), new File(outputDirectory
+                + File.separator + "runners" + File.separator + "conf"
+                + File.separator + "env"));
+
+        conversionFiles.put(new File(getPrefix() + File.separator + "jettyconf"
+                + File.separator + "jetty_xml.vm"), new File(outputDirectory
+                + File.separator + "runners" + File.separator + "conf"
+                + File.separator + "jetty.xml"));
+
+        conversionFiles.put(new File(getPrefix() + File.separator + "jettyconf"
+                + File.separator + "jetty-virtual-threads_xml.vm"), new File(
+                outputDirectory + File.separator + "runners" + File.separator
+                        + "conf" + File.separator
+                        + "jetty-virtual-threads.xml"));
+
+        conversionFiles.put(new File(getPrefix() + File.separator + "jettyconf"
+                + File.separator + "log4j_xml.vm"), new File(outputDirectory
+                + File.separator + "runners" + File.separator + "conf"
+                + File.separator + getServiceName() + "-log4j.xml"));
+
+        // Grabs the properties file from the classpath.
+        // conf/[servicename].properties
+        conversionFiles.put(new File("conf" + File.separator + getServiceName()
+                + ".properties"), new File(outputDirectory + File.separator
+                + "runners" + File.separator + "conf" + File.separator
+                + getServiceName() + ".properties"));
+
+        // Grabs the log4j from the claspath
+        conversionFiles.put(new File("conf" + File.separator + getServiceName()
+                + "-log4j.xml"), new File(outputDirectory + File.separator
+                + "runners" + File.separator + "conf" + File.separator
+                + getServiceName() + "-log4j.xml"));
+
+        File warmupTemplate = getWarmupTemplate();
+        if (warmupTemplate != null) {
+            conversionFiles.put(warmupTemplate, new File(outputDirectory
+                    + File.separator + "runners" + File.separator + "bin"
+                    + File.separator + getServiceName() + "-warmup.sh"));
+        }
+        if (runnerVariables.get("WARMUP_CLASS") != null) {
+            conversionFiles.put(new File(getPrefix() + File.separator
+                    + "jettyconf" + File.separator + "jetty-warmup_xml.vm"),
+                    new File(outputDirectory + File.separator + "runners"
+                            + File.separator + "conf" + File.separator
+                            + "jetty-warmup.xml"));
+        }
+
+        return conversionFiles;
+    }
+
+    @Override
+    public Map<File, Collection<File>> getInstallSet(File workingDirectory) {
+        Map<File, Collection<File>> installSet = super
+                .getInstallSet(workingDirectory);
+
+        Collection<File> installFiles = new ArrayList<File>();
+        installFiles.add(new File("env"));
+        installFiles.add(new File("jetty.xml"));
+        installFiles.add(new File("jetty-virtual-threads.xml"));
+        if (runnerVariables.get("WARMUP_CLASS") != null) {
+            installFiles.add(new File("jetty-warmup.xml"));
+        }
+        installFiles.add(new File(getServiceName() + "-log4j.xml"));
+        installFiles.add(new File(getServiceName() + ".properties"));
+        installSet.put(new File("runners" + File.separator + "conf"),
+                installFiles);
+
+        return installSet;
+    }
+
+    protected void applyDefaults() {
+        super.applyDefaults();
+
+        // No CMS settings for the JVMs this jetty runs on
+        runnerVariables.put("JVM_PROFILE", "none");
+        runnerVariables.put("JTY_H2C", "false");
+        runnerVariables.put("JTY_EXECUTOR", "platform");
+        runnerVariables.put("JTY_WEBAPP_CLASS",
+                "org.eclipse.jetty.webapp.WebAppContext");
+        // io.prometheus.client.servlet.jakarta.exporter.MetricsServlet from
+        // jetty 11 on
+        runnerVariables.put("JTY_METRICS_SERVLET",
+                "io.prometheus.client.exporter.MetricsServlet");
+    }
+}
@@ -19,7 +19,11 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
 
 /**
  * This implementation of the runner strategy is designed to support stand-alone
@@ -35,8 +39,9 @@ public class JavaAppStrategy extends BaseRunnerStrategy {
      * directory on distribution.
      */
     @Override
-    public Map<File, File> getArtifactRenames(File workingDirectory) {
-        HashMap<File, File> renameMap = new HashMap<File, File>();
+    public Map<File, File> getArtifactRenames(File workingDirectory)
+            throws MojoExecutionException {
+        Map<File, File> renameMap = super.getArtifactRenames(workingDirectory);
 
         Collection<File> artifactFiles = getDirFiles(
                 new File(workingDirectory.getAbsolutePath()),
@@ -88,9 +93,7 @@ public class JavaAppStrategy extends BaseRunnerStrategy {
                 installFiles);
 
         // Lib files
-        Collection<File> libFiles = getDirFiles(
-                new File(workingDirectory.getAbsolutePath() + File.separator
-                        + "lib"), new JarFilenameFilter());
+        Collection<File> libFiles = getLibFiles(workingDirectory);
 
         if (libFiles.size() > 0)
             installSet.put(new File("lib"), libFiles);
@@ -104,7 +107,16 @@ public class JavaAppStrategy extends BaseRunnerStrategy {
             if (existingFiles == null) {
                 installSet.put(new File("lib"), artifactFiles);
             } else {
-                existingFiles.addAll(artifactFiles);
+                // Staged artifacts are already in lib
+                Set<String> existingNames = new HashSet<String>();
+                for (File existingFile : existingFiles) {
+                    existingNames.add(existingFile.getName());
+                }
+                for (File artifactFile : artifactFiles) {
+                    if (!existingNames.contains(artifactFile.getName())) {
+                        existingFiles.add(artifactFile);
+                    }
+                }
             }
         }
 
@@ -126,6 +138,8 @@ public class JavaAppStrategy extends BaseRunnerStrategy {
     protected void applyDefaults() {
         super.applyDefaults();
         runnerVariables.put("APP_NAME", "java_app");
+        // Class data sharing archive of lib/*, see java_app_sh.vm
+        runnerVariables.put("APP_CDS", "false");
         requiredVariables.add("RUNNER_MAIN_CLASS");
     }
 
@@ -19,8 +19,11 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.javadrop.ArtifactIndex;
+
 /**
  * This implementation of the service strategy is designed to jetty web services
  * (with a jetty.sh run script)
@@ -33,6 +36,10 @@ public class JettyStrategy extends BaseRunnerStrategy {
     @Override
     public Map<File, File> getArtifactRenames(File workingDirectory) {
         HashMap<File, File> renameMap = new HashMap<File, File>();
+        if (!ClasspathJar.WILDCARD.equals(runnerVariables.get("CLASSPATH_MODE"))) {
+            get_log().warn(
+                    "Jetty's lib isn't packaged, the webapp's classpath is the war (CLASSPATH_MODE)");
+        }
 
         File warFile = getGenericWar(workingDirectory);
         if (warFile == null) {
@@ -51,6 +58,11 @@ public class JettyStrategy extends BaseRunnerStrategy {
         Map<File, File> conversionFiles = new HashMap<File, File>(); // super.getConversionFiles(outputDirectory,
                                                                      // serviceName);
 
+        if ("json".equals(runnerVariables.get("JTY_REQUEST_LOG"))) {
+            get_log().warn(
+                    "Jetty 6 can't write a JSON request log, writing NCSA (JTY_REQUEST_LOG)");
+        }
+
         conversionFiles.put(new File(getPrefix() + File.separator + "bin"
                 + File.separator + "jetty_sh.vm"), new File(outputDirectory
                 + File.separator + "runners" + File.separator + "bin"
@@ -104,6 +116,9 @@ public class JettyStrategy extends BaseRunnerStrategy {
                 .getInstallSet(workingDirectory);
         Collection<File> installFiles = new ArrayList<File>();
         installFiles.add(new File(getServiceName() + ".sh"));
+        if (getWarmupTemplate() != null) {
+            installFiles.add(new File(getServiceName() + "-warmup.sh"));
+        }
         installSet.put(new File("runners" + File.separator + "bin"),
                 installFiles);
 
@@ -133,28 +148,30 @@ public class JettyStrategy extends BaseRunnerStrategy {
 
     private File getGenericWar(File workingDirectory) {
         // TODO Hacky.. Just grabs 1st war in the directory. Ugh.
-        File[] dirfiles = workingDirectory.listFiles();
-        for (File dfile : dirfiles) {
-            if (dfile.getName().contains(".war")) {
-                return dfile;
-            }
+        File war = getFirstWar(workingDirectory);
+        if (war != null) {
+            return war;
         }
 
         // Next check the lib directory as that's where maven dependencies will
         // be placed (double ugh)
-        File libDir = new File(workingDirectory.getAbsolutePath()
-                + File.separator + "lib");
-        dirfiles = libDir.listFiles();
-        for (File dfile : dirfiles) {
-            if (dfile.getName().contains(".war")) {
-                return dfile;
+        return getFirstWar(new File(workingDirectory.getAbsolutePath()
+                + File.separator + "lib"));
+    }
+
+    private File getFirstWar(File dir) {
+        List<ArtifactIndex.Entry> entries = getArtifactIndex().list(dir);
+        if (entries != null) {
+            for (ArtifactIndex.Entry entry : entries) {
+                if (entry.getName().contains(".war")) {
+                    return new File(dir, entry.getName());
+                }
             }
         }
-
         return null;
     }
 
-    private String getPrefix() {
+    protected String getPrefix() {
         return "org" + File.separator + "javadrop" + File.separator
                 + "runnerstrategy" + File.separator + "services";
     }
@@ -165,6 +182,21 @@ public class JettyStrategy extends BaseRunnerStrategy {
         // Assign appropriate defaults to common variables
         runnerVariables.put("SVC_CONTEXT_NAME", "test-service-facade");
         runnerVariables.put("JTY_WEB_PORT", "8080");
+        // What env used to hard code
+        runnerVariables.put("JVM_PROFILE", "legacy");
+        // JTY_MIN_THREADS, JTY_MAX_THREADS, JTY_ACCEPTORS, JTY_SELECTORS,
+        // JTY_IDLE_TIMEOUT and JTY_ACCEPT_QUEUE are left unset so the start
+        // script works them out from the CPUs it finds.
+        // Request log (none, ncsa or json), statistics over JMX and, when
+        // JTY_METRICS_PATH is set, a Prometheus endpoint
+        runnerVariables.put("JTY_REQUEST_LOG", "none");
+        runnerVariables.put("JTY_REQUEST_LOG_RETAIN_DAYS", "14");
+        runnerVariables.put("JTY_STATS", "false");
+        // Started once the web port takes connections
+        runnerVariables.put("READY_PROBE", "tcp");
+        // WARMUP_URLS, WARMUP_SCRIPT and WARMUP_CLASS are left unset, there's
+        // no warm-up unless the pom asks for one
+        runnerVariables.put("WARMUP_BUDGET", "60");
     }
 
     protected String getTargetWarName() {
@@ -58,6 +58,16 @@ public class MainServiceStrategy extends BaseRunnerStrategy {
                     new File(outputDirectory + File.separator + "lib" + File.separator + artifact.getName()));
         }
 
+        // Only the jetty launchers can run a WARMUP_CLASS, main() is the service's own
+        if (runnerVariables.get("WARMUP_CLASS") != null) {
+            get_log().warn("WARMUP_CLASS isn't run for a main() service, use WARMUP_SCRIPT or WARMUP_URLS");
+        }
+        File warmupTemplate = getWarmupTemplate();
+        if (warmupTemplate != null) {
+            conversionFiles.put(warmupTemplate,
+                    new File(outputDirectory + File.separator + "runners" + File.separator + "bin" + File.separator + getServiceName() + "-warmup.sh"));
+        }
+
 		return conversionFiles;
 	}
 
@@ -66,6 +76,9 @@ public class MainServiceStrategy extends BaseRunnerStrategy {
 		Map<File, Collection<File>> installSet = super.getInstallSet(workingDirectory);
 		Collection<File> installFiles = new ArrayList<File>();
 		installFiles.add(new File(getServiceName() + ".sh"));
+		if (getWarmupTemplate() != null) {
+			installFiles.add(new File(getServiceName() + "-warmup.sh"));
+		}
 		installSet.put(new File("runners" + File.separator + "bin"), installFiles);
 
 		installFiles = new ArrayList<File>();
@@ -78,8 +91,7 @@ public class MainServiceStrategy extends BaseRunnerStrategy {
 		installSet.put(new File("runners" + File.separator + "conf"), installFiles);
 
         // Lib files
-        Collection<File> libFiles = getDirFiles(new File(workingDirectory.getAbsolutePath() + File.separator + "lib"),
-                new JarFilenameFilter());
+        Collection<File> libFiles = getLibFiles(workingDirectory);
         if (libFiles.size() > 0) installSet.put(new File("lib"), libFiles);
             
 
@@ -92,6 +104,7 @@ public class MainServiceStrategy extends BaseRunnerStrategy {
 		requiredVariables.add("SVC_MAIN_CLASS");
         runnerVariables.put("PKG_STANDALONE", getServiceName());
         runnerVariables.put("JTY_NAME", "notused");
+        runnerVariables.put("WARMUP_BUDGET", "60");
 	}
 	
 	private String getPrefix() {
@@ -15,13 +15,42 @@
  ******************************************************************************/
 package org.javadrop;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Map;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.freecompany.redline.ReadableChannelWrapper;
+import org.freecompany.redline.Scanner;
+import org.freecompany.redline.Util;
+import org.freecompany.redline.header.AbstractHeader.Entry;
+import org.freecompany.redline.header.Format;
+import org.freecompany.redline.header.Header;
 import org.junit.Test;
+import org.tukaani.xz.XZInputStream;
 
 /**
  * Various tests for different configurations of javadrop artifacts.
@@ -108,6 +137,350 @@ public class InstallPackageGenMojoTest extends JavaDropBaseTest {
                 "/usr/local/iovation/testservice/lib/");
     }
 
+    /**
+     * A main() service packaged as a deb, compressed on two threads.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testDebPackageCreation() throws Exception {
+        File testPom = getTestFile("src/test/resources/deb_service_test_pom.xml");
+        new File(scriptOutputDir.getAbsolutePath() + File.separator + "lib")
+                .mkdirs();
+        File dummyFile = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "lib/dummy.jar");
+        dummyFile.createNewFile();
+        File dummyBuildJar = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "dummyartifact.jar");
+        dummyBuildJar.createNewFile();
+
+        JavadropMojo mojo;
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        assertNotNull(mojo);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.execute();
+
+        File debFile = new File(getBasedir()
+                + "/target/testdata/testservice_1.0-1309218173_all.deb");
+        assertTrue(debFile.exists());
+        // Read from where the build left it, not staged
+        assertFalse(new File(getBasedir()
+                + "/target/testdata/runners/lib/dummyartifact.jar").exists());
+
+        Map<String, String> data = readDebMember(debFile, "data.tar.gz");
+        assertTrue(data.containsKey("./etc/init.d/testservice"));
+        assertTrue(data.containsKey("./usr/local/iovation/testservice/bin/testservice.sh"));
+        assertTrue(data.containsKey("./usr/local/iovation/testservice/lib/dummy.jar"));
+        assertTrue(data.containsKey("./usr/local/iovation/testservice/lib/dummyartifact.jar"));
+        assertTrue(data.containsKey("./usr/local/iovation/testservice/"));
+
+        Map<String, String> control = readDebMember(debFile, "control.tar");
+        String fileResult = control.get("./control");
+        assertTrue(fileResult.contains("Package: testservice\n"));
+        assertTrue(fileResult.contains("Version: 1.0-1309218173\n"));
+        assertTrue(fileResult.contains("Depends: default-jre-headless\n"));
+        assertTrue(fileResult.contains("Installed-Size: "));
+        // Empty file
+        assertTrue(control.get("./md5sums").contains(
+                "d41d8cd98f00b204e9800998ecf8427e  usr/local/iovation/testservice/lib/dummy.jar\n"));
+        fileResult = control.get("./conffiles");
+        assertTrue(fileResult.contains("/etc/init.d/testservice\n"));
+        assertTrue(fileResult.contains("/usr/local/iovation/testservice/conf/"));
+        assertFalse(fileResult.contains("/lib/"));
+
+        // The rpm scripts, told what dpkg is doing the way rpm would
+        fileResult = control.get("./postinst");
+        assertTrue(fileResult.startsWith("#!/bin/sh\n"));
+        assertTrue(fileResult.contains("configure) if [ -z \"$2\" ]; then set -- 1; else set -- 2; fi ;;"));
+        assertTrue(fileResult.contains("update-rc.d testservice defaults"));
+        assertTrue(fileResult.endsWith("\nexit 0\n"));
+        assertTrue(control.get("./preinst").contains("upgrade) set -- 2 ;;"));
+        assertTrue(control.get("./postrm").contains("remove) set -- 0 ;;"));
+        // The init script is a conffile, so its links go on purge
+        assertTrue(control.get("./postrm").contains("update-rc.d testservice remove"));
+        assertTrue(control.get("./prerm").contains("invoke-rc.d testservice stop"));
+    }
+
+    /**
+     * A main() service packaged with a runtime linked for its jars.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testJlinkRuntime() throws Exception {
+        File testPom = getTestFile("src/test/resources/jlink_service_test_pom.xml");
+        new File(scriptOutputDir.getAbsolutePath() + File.separator + "lib")
+                .mkdirs();
+        // A real jar for jdeps to look at
+        File velocityJar = new File(org.apache.velocity.app.VelocityEngine.class
+                .getProtectionDomain().getCodeSource().getLocation().toURI());
+        Files.copy(velocityJar.toPath(), new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "lib/velocity.jar").toPath());
+
+        JavadropMojo mojo;
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        assertNotNull(mojo);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.execute();
+
+        // Native code, so no longer for any architecture
+        File debFile = new File(getBasedir()
+                + "/target/testdata/testservice_1.0-1309218173_amd64.deb");
+        assertTrue(debFile.exists());
+        Map<String, String> data = readDebMember(debFile, "data.tar.gz");
+        String runtime = "./usr/local/iovation/testservice/runtime/";
+        assertTrue(data.containsKey(runtime + "bin/java"));
+        assertTrue(data.containsKey(runtime + "lib/modules"));
+        // Default CDS archive
+        assertTrue(data.containsKey(runtime + "lib/server/classes.jsa"));
+        // Stripped down
+        assertFalse(data.containsKey(runtime + "bin/javac"));
+        assertFalse(data.containsKey(runtime + "include/jni.h"));
+        String fileResult = data.get(runtime + "release");
+        assertTrue(fileResult.contains("java.base"));
+        // Added by name
+        assertTrue(fileResult.contains("jdk.crypto.ec"));
+        assertFalse(fileResult.contains("jdk.jshell"));
+        assertTrue(readDebMember(debFile, "control.tar").get("./control")
+                .contains("Architecture: amd64\n"));
+
+        fileResult = data.get("./usr/local/iovation/testservice/bin/testservice.sh");
+        assertTrue(fileResult.contains("\nJAVA_HOME=/usr/local/iovation/testservice/runtime\n"));
+        assertFalse(fileResult.contains("JAVA_HOME=/usr/java/latest"));
+    }
+
+    /**
+     * A main() service packaged as an OCI image, twice, to check the layers
+     * come out the same.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testOciImageCreation() throws Exception {
+        File testPom = getTestFile("src/test/resources/oci_service_test_pom.xml");
+        new File(scriptOutputDir.getAbsolutePath() + File.separator + "lib")
+                .mkdirs();
+        File dummyFile = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "lib/dummy.jar");
+        dummyFile.createNewFile();
+        File dummyBuildJar = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "dummyartifact.jar");
+        dummyBuildJar.createNewFile();
+
+        File imageFile = new File(getBasedir()
+                + "/target/testdata/testservice-1.0-SNAPSHOT-1309218173.oci.tar");
+        byte[][] images = new byte[2][];
+        for (int build = 0; build < images.length; build++) {
+            JavadropMojo mojo;
+            mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+            assertNotNull(mojo);
+            mojo.setWorkingDirectory(scriptOutputDir);
+            mojo.setPackageDirectory(scriptOutputDir);
+            mojo.execute();
+            assertTrue(imageFile.exists());
+            images[build] = Files.readAllBytes(imageFile.toPath());
+        }
+        // Nothing changed, so neither did the image
+        assertTrue(Arrays.equals(images[0], images[1]));
+
+        Map<String, byte[]> image = readTarBytes(images[0]);
+        assertEquals("{\"imageLayoutVersion\":\"1.0.0\"}",
+                new String(image.get("oci-layout"), "UTF-8"));
+        String index = new String(image.get("index.json"), "UTF-8");
+        assertTrue(index.contains("\"org.opencontainers.image.ref.name\":\"1.0-SNAPSHOT-1309218173\""));
+        String manifest = new String(image.get(blobPath(index, 0)), "UTF-8");
+        String config = new String(image.get(blobPath(manifest, 0)), "UTF-8");
+        assertTrue(config.contains("\"User\":\"55:700\""));
+        assertTrue(config.contains("\"Env\":[\"foreground=true\"]"));
+        assertTrue(config.contains("\"Entrypoint\":[\"/usr/local/iovation/testservice/bin/testservice.sh\",\"start\",\"-x\",\"service\"]"));
+
+        // Every blob is what its digest says
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        for (Map.Entry<String, byte[]> entry : image.entrySet()) {
+            if (entry.getKey().startsWith("blobs/sha256/") && entry.getValue().length > 0) {
+                assertEquals(entry.getKey(), "blobs/sha256/" + Util.hex(sha256.digest(entry.getValue())));
+            }
+        }
+
+        // Third party libraries, then the service
+        Map<String, byte[]> dependencies = readTarBytes(gunzip(image.get(blobPath(manifest, 1))));
+        assertEquals(Arrays.asList("usr/", "usr/local/", "usr/local/iovation/",
+                "usr/local/iovation/testservice/", "usr/local/iovation/testservice/lib/",
+                "usr/local/iovation/testservice/lib/dummy.jar"),
+                Arrays.asList(dependencies.keySet().toArray()));
+        Map<String, byte[]> application = readTarBytes(gunzip(image.get(blobPath(manifest, 2))));
+        assertTrue(application.containsKey("usr/local/iovation/testservice/bin/testservice.sh"));
+        assertTrue(application.containsKey("usr/local/iovation/testservice/lib/dummyartifact.jar"));
+        assertTrue(application.containsKey("usr/local/iovation/testservice/log/"));
+        assertFalse(application.containsKey("usr/local/iovation/testservice/lib/dummy.jar"));
+        for (String path : application.keySet()) {
+            assertFalse(path, path.startsWith("etc/"));
+        }
+        String fileResult = new String(application.get(
+                "usr/local/iovation/testservice/bin/testservice.sh"), "UTF-8");
+        assertTrue(fileResult.contains("    exec $JAVA_EXEC $JAVA_OPTS -cp $MYCLASSPATH test.class\n"));
+    }
+
+    /**
+     * @return Path in the image of the n'th digest in a manifest or index
+     */
+    private String blobPath(String json, int n) {
+        String[] digests = json.split("\"digest\":\"sha256:");
+        return "blobs/sha256/" + digests[n + 1].substring(0, 64);
+    }
+
+    /**
+     * A main() service packaged with a systemd unit rather than an init.d
+     * script.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSystemdUnitCreation() throws Exception {
+        File testPom = getTestFile("src/test/resources/systemd_service_test_pom.xml");
+        new File(scriptOutputDir.getAbsolutePath() + File.separator + "lib")
+                .mkdirs();
+
+        JavadropMojo mojo;
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        assertNotNull(mojo);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.execute();
+
+        String fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/systemd/testservice.service");
+        assertTrue(fileResult.contains("Type=notify\n"));
+        assertTrue(fileResult.contains("User=javadrop\n"));
+        assertTrue(fileResult.contains("ExecStart=/bin/bash /usr/local/iovation/testservice/bin/testservice-systemd.sh\n"));
+        assertTrue(fileResult.contains("WatchdogSec=30\n"));
+        assertTrue(fileResult.contains("CPUAffinity=0-3\n"));
+        assertTrue(fileResult.contains("MemoryMax=4G\n"));
+        assertTrue(fileResult.contains("LimitNOFILE=65536\n"));
+        assertTrue(fileResult.contains("LimitNPROC=8192\n"));
+        assertTrue(fileResult.contains("LimitMEMLOCK=64K\n"));
+        assertTrue(fileResult.contains("TasksMax=4096\n"));
+        assertTrue(fileResult.contains("Nice=-5\n"));
+        assertTrue(fileResult.contains("IOSchedulingClass=best-effort\n"));
+        assertTrue(fileResult.contains("TimeoutStopSec=30\n"));
+
+        // Started by the usual launcher, ready once the port answers
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/bin/testservice-systemd.sh");
+        assertTrue(fileResult.contains("/usr/local/iovation/testservice/bin/testservice.sh start -x service || exit 1"));
+        assertTrue(fileResult.contains("systemd-notify MAINPID=$PID"));
+        assertTrue(fileResult.contains("(exec 3<>/dev/tcp/127.0.0.1/9000)"));
+        assertTrue(fileResult.contains("systemd-notify --ready"));
+        assertTrue(fileResult.contains("is_ready && systemd-notify WATCHDOG=1"));
+
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/rpm/postinstall.sh");
+        assertTrue(fileResult.contains("systemctl enable testservice.service"));
+        assertFalse(fileResult.contains("chkconfig"));
+
+        File rpmFile = new File(getBasedir()
+                + "/target/testdata/testservice-1.0-1309218173.noarch.rpm");
+        checkRPMFile(rpmFile, "testservice.service", "/usr/lib/systemd/system/");
+        checkRPMFile(rpmFile, "testservice-systemd.sh",
+                "/usr/local/iovation/testservice/bin/");
+        // The unit has the limits, pam_limits doesn't apply to it
+        assertFalse(new File(getBasedir()
+                + "/target/testdata/rpm/limits.d/testservice.conf").exists());
+    }
+
+    /**
+     * A systemd unit for the oldest systemd supported, where notifications
+     * from the start script can be lost, so the unit is forking instead.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLegacySystemdUnitCreation() throws Exception {
+        File testPom = getTestFile("src/test/resources/systemd_legacy_service_test_pom.xml");
+        new File(scriptOutputDir.getAbsolutePath() + File.separator + "lib")
+                .mkdirs();
+
+        JavadropMojo mojo;
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        assertNotNull(mojo);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.execute();
+
+        String fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/systemd/testservice.service");
+        assertTrue(fileResult.contains("Type=forking\n"));
+        assertTrue(fileResult.contains("PIDFile=/usr/local/iovation/testservice/testservice.pid\n"));
+        assertFalse(fileResult.contains("Type=notify"));
+        assertFalse(fileResult.contains("NotifyAccess"));
+
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/bin/testservice-systemd.sh");
+        assertTrue(fileResult.contains("(exec 3<>/dev/tcp/127.0.0.1/9000)"));
+        assertFalse(fileResult.contains("systemd-notify MAINPID"));
+        assertFalse(fileResult.contains("systemd-notify --ready"));
+    }
+
+    /**
+     * Runs the same build a few times to check that the package is only
+     * rebuilt when one of its inputs changes.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testIncrementalBuild() throws Exception {
+        File testPom = getTestFile("src/test/resources/service_test_pom.xml");
+        new File(scriptOutputDir.getAbsolutePath() + File.separator + "lib")
+                .mkdirs();
+        File dummyFile = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "lib/dummy.jar");
+        dummyFile.createNewFile();
+
+        JavadropMojo mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.execute();
+
+        File rpmFile = new File(getBasedir()
+                + "/target/testdata/testservice-1.0-1309218173.noarch.rpm");
+        assertTrue(rpmFile.exists());
+        // Backdate the package so a rebuild can't hide within the timestamp
+        // resolution.
+        long backdated = 1000000000000L;
+        rpmFile.setLastModified(backdated);
+
+        // Nothing changed
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.execute();
+        assertEquals("Package rebuilt without changes", backdated,
+                rpmFile.lastModified());
+
+        // A changed library
+        FileOutputStream out = new FileOutputStream(dummyFile);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.execute();
+        assertTrue("Package not rebuilt", rpmFile.lastModified() != backdated);
+
+        // Forced
+        rpmFile.setLastModified(backdated);
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.setIncremental(false);
+        mojo.execute();
+        assertTrue("Package not rebuilt", rpmFile.lastModified() != backdated);
+        checkRPMFile(rpmFile, "dummy.jar",
+                "/usr/local/iovation/testservice/lib/");
+    }
+
     /**
      * This does a basic sanity check to see that the directory structure is
      * correct. It currently does not go into details with determining what the
@@ -136,7 +509,149 @@ public class InstallPackageGenMojoTest extends JavaDropBaseTest {
                 + "/target/testdata/runners/conf/jetty-spring.xml");
         assertTrue("Missing or incorrect web port number",
                 fileResult.contains("SelectChannelConnector\" p:port=\"8080\""));
+        assertTrue(fileResult.contains("p:acceptors-ref=\"acceptors\""));
+        // No request log, statistics or metrics unless asked for
+        assertFalse(fileResult.contains("StatisticsHandler"));
+        assertFalse(fileResult.contains("NCSARequestLog"));
+        assertFalse(fileResult.contains("MetricsServlet"));
+
+        // Nothing set in the pom, all worked out at start
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/bin/jtytestsvc.sh");
+        assertTrue(fileResult.contains("JETTY_MAX_THREADS=$(( CONTAINER_CPUS * 25 ))"));
+        assertTrue(fileResult.contains("JETTY_IDLE_TIMEOUT=5000\n"));
+        assertTrue(fileResult.contains("JETTY_MIN_THREADS=$(( CONTAINER_CPUS * 2 ))"));
+        assertTrue(fileResult.contains("-Djavadrop.jetty.acceptors=$JETTY_ACCEPTORS"));
+
+        // Started once the web port answers
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/init.d/jtytestsvc");
+        assertTrue(fileResult.contains("(exec 3<>/dev/tcp/127.0.0.1/8080)"));
+        assertTrue(fileResult.contains("wait_for $ready_timeout is_ready"));
+        assertTrue(fileResult.contains("stop_timeout=30\n"));
+        // No warm-up unless asked for
+        assertFalse(fileResult.contains("is_warmed_up"));
+        assertFalse(fileResult.contains("warm_up"));
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/conf/jetty-spring.xml");
+        assertFalse(fileResult.contains("<bean id=\"warmup\""));
+    }
+
+    @Test
+    public void testTunedJettyScriptCreation() throws Exception {
+        createDummyWarFile();
+
+        File testPom = getTestFile("src/test/resources/jetty_tuned_test_pom.xml");
+
+        JavadropMojo mojo;
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        assertNotNull(mojo);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.execute();
+
+        // Set in the pom, the rest worked out at start
+        String fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/bin/jtytestsvc.sh");
+        assertTrue(fileResult.contains("JETTY_MAX_THREADS=400\n"));
+        assertTrue(fileResult.contains("JETTY_IDLE_TIMEOUT=30000\n"));
+        assertTrue(fileResult.contains("JETTY_MIN_THREADS=$(( CONTAINER_CPUS * 2 ))"));
+        assertFalse(fileResult.contains("JETTY_MAX_THREADS=$(( CONTAINER_CPUS * 25 ))"));
 
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/conf/jetty-spring.xml");
+        assertTrue(fileResult.contains("p:statsOn=\"true\""));
+        assertTrue(fileResult.contains("<bean id=\"stats\" class=\"org.mortbay.jetty.handler.StatisticsHandler\">"));
+        assertTrue(fileResult.contains("p:logLatency=\"true\""));
+        assertTrue(fileResult.contains("<value>/metrics</value>"));
+        assertTrue(fileResult.contains("<bean id=\"warmup\" class=\"com.example.Warmup\"/>"));
+
+        // Waits for the warm-up run inside jetty, there's no script
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/init.d/jtytestsvc");
+        assertTrue(fileResult.contains("wait_for $warmup_budget is_warmed_up"));
+        assertTrue(fileResult.contains("warmup_budget=60\n"));
+        assertFalse(fileResult.contains("timeout $warmup_left"));
+    }
+
+    @Test
+    public void testEclipseJettyScriptCreation() throws Exception {
+        createDummyWarFile();
+
+        File testPom = getTestFile("src/test/resources/eclipse_jetty_test_pom.xml");
+
+        JavadropMojo mojo;
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        assertNotNull(mojo);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.execute();
+
+        String fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/bin/jtytestsvc.sh");
+        assertTrue(fileResult.contains("org.eclipse.jetty.xml.XmlConfiguration $config_files"));
+        assertTrue(fileResult.contains("config_files=\"$config_files conf/jetty-virtual-threads.xml\""));
+        assertTrue(fileResult.contains("-Djavadrop.jetty.selectors=$JETTY_SELECTORS"));
+        assertTrue(fileResult.contains("JETTY_IDLE_TIMEOUT=30000\n"));
+
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/conf/jetty.xml");
+        assertTrue(fileResult.contains("<Set name=\"port\">8080</Set>"));
+        assertTrue(fileResult.contains("<Set name=\"war\">war/jtytestsvc.war</Set>"));
+        assertTrue(fileResult.contains("HTTP2CServerConnectionFactory"));
+        assertTrue(fileResult.contains("org.eclipse.jetty.server.AsyncRequestLogWriter"));
+        assertTrue(fileResult.contains("\"latencyMs\":%{ms}T}"));
+        assertTrue(fileResult.contains("org.eclipse.jetty.server.handler.StatisticsHandler"));
+        assertTrue(fileResult.contains("<Arg>/metrics</Arg>"));
+        assertTrue(new File(getBasedir()
+                + "/target/testdata/runners/conf/jetty-virtual-threads.xml")
+                .exists());
+        assertFalse(new File(getBasedir()
+                + "/target/testdata/runners/conf/jetty-spring.xml").exists());
+
+        // Warm-up in jetty first, then the requests
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/conf/jetty-warmup.xml");
+        assertTrue(fileResult.contains("<New class=\"com.example.Warmup\">"));
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/bin/jtytestsvc.sh");
+        assertTrue(fileResult.contains("config_files=\"$config_files conf/jetty-warmup.xml\""));
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/bin/jtytestsvc-warmup.sh");
+        assertTrue(fileResult.contains("for url in /jtytestsvc/ /jtytestsvc/status; do"));
+        assertTrue(fileResult.contains("base=http://127.0.0.1:8080\n"));
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/init.d/jtytestsvc");
+        assertTrue(fileResult.contains("wait_for $warmup_budget is_warmed_up"));
+        assertTrue(fileResult.contains("timeout $warmup_left /usr/local/iovation/jtytestsvc/bin/jtytestsvc-warmup.sh"));
+        assertTrue(fileResult.contains("warmup_budget=90\n"));
+
+        File rpmFile = new File(getBasedir()
+                + "/target/testdata/jtytestsvc-1.0-1309218173.noarch.rpm");
+        checkRPMFile(rpmFile, "jetty.xml",
+                "/usr/local/iovation/jtytestsvc/conf/");
+        checkRPMFile(rpmFile, "jetty-warmup.xml",
+                "/usr/local/iovation/jtytestsvc/conf/");
+        checkRPMFile(rpmFile, "jtytestsvc-warmup.sh",
+                "/usr/local/iovation/jtytestsvc/bin/");
+        checkRPMFile(rpmFile, "jtytestsvc.war",
+                "/usr/local/iovation/jtytestsvc/war/");
+
+        // Limits for the service user, somaxconn for the accept queue
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/rpm/limits.d/jtytestsvc.conf");
+        assertTrue(fileResult.contains("javadrop    hard    nofile     100000\n"));
+        assertTrue(fileResult.contains("javadrop    soft    memlock    unlimited\n"));
+        assertFalse(fileResult.contains("nproc"));
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/rpm/sysctl.d/90-jtytestsvc.conf");
+        assertTrue(fileResult.contains("net.core.somaxconn = 2048\n"));
+        assertTrue(fileResult.contains("net.ipv4.tcp_max_syn_backlog = 2048\n"));
+        fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/rpm/postinstall.sh");
+        assertTrue(fileResult.contains("/etc/sysctl.d/90-jtytestsvc.conf"));
+        checkRPMFile(rpmFile, "jtytestsvc.conf", "/etc/security/limits.d/");
+        checkRPMFile(rpmFile, "90-jtytestsvc.conf", "/etc/sysctl.d/");
     }
 
     private void createDummyWarFile() throws IOException {
@@ -248,6 +763,11 @@ public class InstallPackageGenMojoTest extends JavaDropBaseTest {
                 + "/target/testdata/runners/bin/jtytestsvc.sh");
         assertTrue("JMX Port config not found",
                 fileResult.contains("-Dcom.sun.management.jmxremote.port=1093"));
+        // Jetty defaults to the legacy profile, filtered by JVM version
+        assertTrue(fileResult.contains("for JVM_FLAG in -Xms1G -Xmx3G -XX:MaxPermSize=256m -XX:+UseConcMarkSweepGC"));
+        assertTrue(fileResult.contains("export OPTS=\"$JVM_PROFILE_OPTS $JETTY_OPTS $JVM_OPTS\""));
+        assertTrue(fileResult.contains("-Djavadrop.jetty.maxThreads=$JETTY_MAX_THREADS"));
+        assertFalse(fileResult.contains("add_jvm_flag -XX:ActiveProcessorCount"));
 
         folderFile = new File(getBasedir() + "/target/testdata/runners/init.d");
         contents = folderFile.listFiles();
@@ -286,6 +806,8 @@ public class InstallPackageGenMojoTest extends JavaDropBaseTest {
                         .contains("p:contextPath=\"/jtytestsvc\" p:extractWAR="));
         assertTrue("Missing or incorrect test-service-facade war name",
                 fileResult.contains("p:war=\"war/jtytestsvc.war\""));
+        assertTrue("Thread pool not sized by the start script",
+                fileResult.contains("<value>javadrop.jetty.maxThreads</value>"));
         File rpmFile = new File(getBasedir() + "/target/testdata/" + testPrefix
                 + "-1.0-1309218173.noarch.rpm");
         
@@ -342,5 +864,523 @@ public class InstallPackageGenMojoTest extends JavaDropBaseTest {
         verifyRPMFileMissing(rpmFile, "jtytestsvc", "/usr/local/iovation/jtestapp/bin");
     }
 
-}
+    /**
+     * Same configuration as the multi launcher test but with the packagers and
+     * templates processed on several threads. Each packager works in its own
+     * directory so only the resulting rpms are checked.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testParallelMultiLauncherParadigm() throws Exception {
+        createDummyWarFile();
 
+        new File(scriptOutputDir.getAbsolutePath() + File.separator + "lib")
+                .mkdirs();
+        File dummyFile = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "lib/dummy.jar");
+        dummyFile.createNewFile();
+
+        File dummyBuildJar = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "dummyartifact.jar");
+        File testPom = getTestFile("src/test/resources/multi_runner_multi_packager_test_pom.xml");
+        dummyBuildJar.createNewFile();
+
+        JavadropMojo mojo;
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        assertNotNull(mojo);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.setThreads(4);
+        mojo.execute();
+
+        File rpmFile = new File(getBasedir()
+                + "/target/testdata/jtestapp-1.0-1309218173.noarch.rpm");
+        checkRPMFile(rpmFile, "dummy.jar", "/usr/local/iovation/jtestapp/lib/");
+        checkRPMFile(rpmFile, "jtestapp.sh", "/usr/local/iovation/jtestapp/bin/");
+        verifyRPMFileMissing(rpmFile, "jtytestsvc", "/usr/local/iovation/jtestapp/bin");
+
+        rpmFile = new File(getBasedir()
+                + "/target/testdata/jtytestsvc-1.0-1309218173.noarch.rpm");
+        checkRPMFile(rpmFile, "jtytestsvc.war", "/usr/local/iovation/jtytestsvc/war/");
+        checkRPMFile(rpmFile, "dummy.jar", "/usr/local/iovation/jtytestsvc/lib/");
+        checkRPMFile(rpmFile, "jtytestsvc.properties", "/usr/local/iovation/jtytestsvc/conf/");
+    }
+
+    /**
+     * Multi launcher configuration built with the streaming rpm builder. The
+     * artifacts are read from where the build left them so they should still
+     * be there afterwards, and the digests written into the header have to
+     * match the files.
+     * 
+     * @throws Exception
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testStreamingRpmBuilder() throws Exception {
+        createDummyWarFile();
+
+        new File(scriptOutputDir.getAbsolutePath() + File.separator + "lib")
+                .mkdirs();
+        File dummyFile = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "lib/dummy.jar");
+        FileOutputStream out = new FileOutputStream(dummyFile);
+        out.write("dummy library".getBytes("UTF-8"));
+        out.close();
+
+        File dummyBuildJar = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "dummyartifact.jar");
+        File testPom = getTestFile("src/test/resources/stream_rpm_test_pom.xml");
+        dummyBuildJar.createNewFile();
+
+        JavadropMojo mojo;
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        assertNotNull(mojo);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.execute();
+
+        File rpmFile = new File(getBasedir()
+                + "/target/testdata/jtestapp-1.0-1309218173.noarch.rpm");
+        checkRPMFile(rpmFile, "dummy.jar", "/usr/local/iovation/jtestapp/lib/");
+        checkRPMFile(rpmFile, "dummyartifact.jar", "/usr/local/iovation/jtestapp/lib/");
+        checkRPMFile(rpmFile, "jtestapp.sh", "/usr/local/iovation/jtestapp/bin/");
+        verifyRPMFileMissing(rpmFile, "jtytestsvc", "/usr/local/iovation/jtestapp/bin");
+
+        rpmFile = new File(getBasedir()
+                + "/target/testdata/jtytestsvc-1.0-1309218173.noarch.rpm");
+        checkRPMFile(rpmFile, "jtytestsvc.war", "/usr/local/iovation/jtytestsvc/war/");
+        checkRPMFile(rpmFile, "dummy.jar", "/usr/local/iovation/jtytestsvc/lib/");
+
+        // Nothing was moved into the staging area
+        assertTrue(dummyBuildJar.exists());
+        assertTrue(new File(scriptOutputDir, "jtytestsvc-1.0.war").exists());
+
+        Format format = new Scanner().run(new ReadableChannelWrapper(Channels
+                .newChannel(new FileInputStream(rpmFile))));
+        String[] basenames = ((Entry<String[]>) format.getHeader().getEntry(
+                Header.HeaderTag.BASENAMES)).getValues();
+        String[] md5s = ((Entry<String[]>) format.getHeader().getEntry(
+                Header.HeaderTag.FILEMD5S)).getValues();
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        String expected = Util.hex(md5.digest("dummy library"
+                .getBytes("UTF-8")));
+        assertEquals(expected, md5s[Arrays.asList(basenames).indexOf(
+                "dummy.jar")]);
+    }
+
+    /**
+     * One packager per payload compression: xz, gzip on several threads and
+     * none. Each payload has to decompress to a cpio archive holding the
+     * libraries.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testPayloadCompression() throws Exception {
+        createDummyWarFile();
+
+        new File(scriptOutputDir.getAbsolutePath() + File.separator + "lib")
+                .mkdirs();
+        File dummyFile = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "lib/dummy.jar");
+        FileOutputStream out = new FileOutputStream(dummyFile);
+        out.write("dummy library".getBytes("UTF-8"));
+        out.close();
+
+        // Big enough to be split over several gzip members
+        byte[] bigContent = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(bigContent);
+        out = new FileOutputStream(new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "lib/big.jar"));
+        out.write(bigContent);
+        out.close();
+
+        File dummyBuildJar = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "dummyartifact.jar");
+        File testPom = getTestFile("src/test/resources/compressed_rpm_test_pom.xml");
+        dummyBuildJar.createNewFile();
+
+        JavadropMojo mojo;
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        assertNotNull(mojo);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.execute();
+
+        checkPayload("jtestapp", "xz", bigContent.length);
+        checkPayload("jtytestsvc", "gzip", bigContent.length);
+        checkPayload("jtestappraw", "ufdio", bigContent.length);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void checkPayload(String packageName, String compressor,
+            int minimumSize) throws Exception {
+        File rpmFile = new File(getBasedir() + "/target/testdata/"
+                + packageName + "-1.0-1309218173.noarch.rpm");
+        FileInputStream in = new FileInputStream(rpmFile);
+        try {
+            Format format = new Scanner().run(new ReadableChannelWrapper(
+                    in.getChannel()));
+            String[] values = ((Entry<String[]>) format.getHeader().getEntry(
+                    Header.HeaderTag.PAYLOADCOMPRESSOR)).getValues();
+            assertEquals(compressor, values[0]);
+
+            // The scanner leaves the file at the start of the payload
+            InputStream payload = new BufferedInputStream(in);
+            if ("gzip".equals(compressor)) {
+                payload = new GZIPInputStream(payload);
+            } else if ("xz".equals(compressor)) {
+                payload = new XZInputStream(payload);
+            }
+            ByteArrayOutputStream cpio = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = payload.read(buffer)) != -1) {
+                cpio.write(buffer, 0, read);
+            }
+            String content = new String(cpio.toByteArray(), "ISO-8859-1");
+            assertTrue(cpio.size() > minimumSize);
+            assertTrue(content.contains("dummy library"));
+            assertTrue(content.contains("TRAILER!!!"));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Artifacts are staged for every packager that needs them and the build
+     * output itself is left alone.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testArtifactsStagedInPlace() throws Exception {
+        createDummyWarFile();
+
+        new File(scriptOutputDir.getAbsolutePath() + File.separator + "lib")
+                .mkdirs();
+        File dummyFile = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "lib/dummy.jar");
+        dummyFile.createNewFile();
+
+        File dummyBuildJar = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "dummyartifact.jar");
+        File testPom = getTestFile("src/test/resources/multi_runner_multi_packager_test_pom.xml");
+        dummyBuildJar.createNewFile();
+
+        JavadropMojo mojo;
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        assertNotNull(mojo);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.execute();
+
+        File warFile = new File(scriptOutputDir, "jtytestsvc-1.0.war");
+        assertTrue(dummyBuildJar.exists());
+        assertTrue(warFile.exists());
+        File stagedJar = new File(scriptOutputDir, "lib/dummyartifact.jar");
+        File stagedWar = new File(scriptOutputDir, "runners/war/jtytestsvc.war");
+        assertTrue(stagedJar.exists());
+        assertTrue(stagedWar.exists());
+        assertTrue(Files.isSameFile(dummyBuildJar.toPath(), stagedJar.toPath()));
+        assertTrue(Files.isSameFile(warFile.toPath(), stagedWar.toPath()));
+
+        // Both packagers found the build artifact
+        File rpmFile = new File(getBasedir()
+                + "/target/testdata/jtestapp-1.0-1309218173.noarch.rpm");
+        checkRPMFile(rpmFile, "dummyartifact.jar", "/usr/local/iovation/jtestapp/lib/");
+        rpmFile = new File(getBasedir()
+                + "/target/testdata/jtytestsvc-1.0-1309218173.noarch.rpm");
+        checkRPMFile(rpmFile, "dummyartifact.jar", "/usr/local/iovation/jtytestsvc/lib/");
+        checkRPMFile(rpmFile, "jtytestsvc.war", "/usr/local/iovation/jtytestsvc/war/");
+    }
+
+    /**
+     * Every run leaves its timings behind in the working directory.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testMetricsReport() throws Exception {
+        createDummyWarFile();
+
+        new File(scriptOutputDir.getAbsolutePath() + File.separator + "lib")
+                .mkdirs();
+        File dummyFile = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "lib/dummy.jar");
+        dummyFile.createNewFile();
+
+        File dummyBuildJar = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "dummyartifact.jar");
+        File testPom = getTestFile("src/test/resources/multi_runner_multi_packager_test_pom.xml");
+        dummyBuildJar.createNewFile();
+
+        JavadropMojo mojo;
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        assertNotNull(mojo);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.setThreads(2);
+        mojo.execute();
+
+        File metricsFile = new File(scriptOutputDir, "javadrop-metrics.json");
+        assertTrue(metricsFile.exists());
+        String metrics = new String(Files.readAllBytes(metricsFile.toPath()),
+                "UTF-8");
+        assertTrue(metrics.contains("\"phase\": \"init\""));
+        assertTrue(metrics.contains("\"phase\": \"render\""));
+        assertTrue(metrics.contains("\"phase\": \"installset\""));
+        assertTrue(metrics.contains("\"subject\": \"jtestapp-1.0-1309218173.noarch.rpm\""));
+        assertTrue(metrics.contains("\"subject\": \"jtytestsvc-1.0-1309218173.noarch.rpm\""));
+    }
+
+    /**
+     * Files the digest cache knows are packaged with the digests from the
+     * cache instead of being digested again.
+     * 
+     * @throws Exception
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testDigestCache() throws Exception {
+        createDummyWarFile();
+
+        new File(scriptOutputDir.getAbsolutePath() + File.separator + "lib")
+                .mkdirs();
+        File dummyFile = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "lib/dummy.jar");
+        FileOutputStream out = new FileOutputStream(dummyFile);
+        out.write("dummy library".getBytes("UTF-8"));
+        out.close();
+
+        File dummyBuildJar = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "dummyartifact.jar");
+        File testPom = getTestFile("src/test/resources/stream_rpm_test_pom.xml");
+        dummyBuildJar.createNewFile();
+        File cacheDir = new File(scriptOutputDir, "digest-cache");
+
+        JavadropMojo mojo;
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        assertNotNull(mojo);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.setDigestCacheDirectory(cacheDir);
+        mojo.execute();
+
+        byte[] content = "dummy library".getBytes("UTF-8");
+        String sha256 = Util.hex(MessageDigest.getInstance("SHA-256").digest(
+                content));
+        String md5 = Util.hex(MessageDigest.getInstance("MD5").digest(content));
+        File object = new File(cacheDir, "objects/" + sha256.substring(0, 2)
+                + "/" + sha256 + ".properties");
+        assertTrue(object.isFile());
+        Properties cached = new Properties();
+        InputStream in = new FileInputStream(object);
+        cached.load(in);
+        in.close();
+        assertEquals(md5, cached.getProperty("md5"));
+        assertEquals(String.valueOf(content.length), cached.getProperty("size"));
+
+        // Doctor the cached digest. A fresh run that reuses it, rather than
+        // reading the file again, puts it in the rpm.
+        String doctored = "0123456789abcdef0123456789abcdef";
+        cached.setProperty("md5", doctored);
+        OutputStream objectOut = new FileOutputStream(object);
+        cached.store(objectOut, null);
+        objectOut.close();
+
+        File rpmFile = new File(getBasedir()
+                + "/target/testdata/jtestapp-1.0-1309218173.noarch.rpm");
+        assertTrue(rpmFile.delete());
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.setDigestCacheDirectory(cacheDir);
+        mojo.execute();
+
+        Format format = new Scanner().run(new ReadableChannelWrapper(Channels
+                .newChannel(new FileInputStream(rpmFile))));
+        String[] basenames = ((Entry<String[]>) format.getHeader().getEntry(
+                Header.HeaderTag.BASENAMES)).getValues();
+        String[] md5s = ((Entry<String[]>) format.getHeader().getEntry(
+                Header.HeaderTag.FILEMD5S)).getValues();
+        assertEquals(doctored, md5s[Arrays.asList(basenames).indexOf(
+                "dummy.jar")]);
+
+        // Once no build has used the doctored digest for longer than the
+        // maximum age (and the last prune was long enough ago) it's dropped
+        // and the file gets read again.
+        long old = System.currentTimeMillis() - 60L * 24 * 60 * 60 * 1000;
+        assertTrue(object.setLastModified(old));
+        assertTrue(new File(cacheDir, "pruned").setLastModified(old));
+        assertTrue(rpmFile.delete());
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.setDigestCacheDirectory(cacheDir);
+        mojo.setDigestCacheMaxAge(30);
+        mojo.execute();
+
+        format = new Scanner().run(new ReadableChannelWrapper(Channels
+                .newChannel(new FileInputStream(rpmFile))));
+        basenames = ((Entry<String[]>) format.getHeader().getEntry(
+                Header.HeaderTag.BASENAMES)).getValues();
+        md5s = ((Entry<String[]>) format.getHeader().getEntry(
+                Header.HeaderTag.FILEMD5S)).getValues();
+        assertEquals(md5, md5s[Arrays.asList(basenames).indexOf("dummy.jar")]);
+    }
+
+    /**
+     * Templates the project supplies aren't shared between projects with the
+     * same template names, and are picked up again once they change.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testProjectTemplates() throws Exception {
+        File first = new File(scriptOutputDir, "first");
+        File second = new File(scriptOutputDir, "second");
+        writeTemplate(first, "first ${name}", 0);
+        writeTemplate(second, "second ${name}", 0);
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("name", "template");
+        File rendered = new File(scriptOutputDir, "app.properties");
+
+        assertEquals("first template", render(first, rendered, params));
+        assertEquals("second template", render(second, rendered, params));
+        writeTemplate(first, "changed ${name}", 10000);
+        assertEquals("changed template", render(first, rendered, params));
+    }
+
+    private void writeTemplate(File dir, String content, long age)
+            throws IOException {
+        File template = new File(dir, "conf/app.properties");
+        template.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(template);
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+        template.setLastModified(System.currentTimeMillis() + age);
+    }
+
+    private String render(File dir, File rendered, Map<String, String> params)
+            throws Exception {
+        Thread thread = Thread.currentThread();
+        ClassLoader contextLoader = thread.getContextClassLoader();
+        URLClassLoader projectLoader = new URLClassLoader(
+                new URL[] { dir.toURI().toURL() }, contextLoader);
+        thread.setContextClassLoader(projectLoader);
+        try {
+            new VelocityTemplateProcessorImpl(new SystemStreamLog())
+                    .applyVTemplate(new File("conf/app.properties"), rendered,
+                            params);
+        } finally {
+            thread.setContextClassLoader(contextLoader);
+            projectLoader.close();
+        }
+        return readFileAsString(rendered.getPath());
+    }
+
+    /**
+     * A directory is listed again only once it has changed, and not kept at
+     * all if it changed just before it was listed.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testArtifactIndex() throws Exception {
+        File libDir = new File(scriptOutputDir, "lib");
+        libDir.mkdirs();
+        writeJar(new File(libDir, "b.jar"), "b");
+        new File(libDir, "a.war").createNewFile();
+        Files.setLastModifiedTime(libDir.toPath(),
+                FileTime.fromMillis(System.currentTimeMillis() - 60000));
+
+        ArtifactIndex index = new ArtifactIndex();
+        List<ArtifactIndex.Entry> entries = index.list(libDir);
+        assertEquals(2, entries.size());
+        assertEquals("a.war", entries.get(0).getName());
+        assertEquals(new File(libDir, "b.jar").length(), entries.get(1)
+                .getSize());
+        assertSame(entries, index.list(libDir));
+        assertEquals(1, index.getHits());
+        assertEquals(1, index.getMisses());
+
+        // Just changed, listed every time until it settles
+        new File(libDir, "c.jar").createNewFile();
+        assertEquals(Arrays.asList(new File(libDir, "b.jar"), new File(libDir,
+                "c.jar")), index.listFiles(libDir, new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".jar");
+            }
+        }));
+        assertEquals(3, index.list(libDir).size());
+        assertEquals(3, index.getMisses());
+
+        assertNull(index.list(new File(scriptOutputDir, "missing")));
+    }
+
+    /**
+     * The project's jars are loaded by a loader shared by every execution
+     * with the same jars, its directories by a loader of their own.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testStrategyClassLoaders() throws Exception {
+        File jar = new File(scriptOutputDir, "strategies.jar");
+        writeJar(jar, "strategy");
+        File classes = new File(scriptOutputDir, "classes");
+        classes.mkdirs();
+        new File(classes, "classes-resource.txt").createNewFile();
+        List<String> classpath = Arrays.asList(jar.getAbsolutePath(),
+                classes.getAbsolutePath());
+        ClassLoader pluginLoader = getClass().getClassLoader();
+
+        URLClassLoader first = StrategyClassLoaders.create(classpath,
+                pluginLoader);
+        URLClassLoader second = StrategyClassLoaders.create(classpath,
+                pluginLoader);
+        assertNotSame(first, second);
+        assertSame(first.getParent(), second.getParent());
+        assertSame(pluginLoader, first.getParent().getParent());
+        assertNotNull(first.getResource("jar-resource.txt"));
+        assertNotNull(first.getResource("classes-resource.txt"));
+        assertNull(first.getParent().getResource("classes-resource.txt"));
+        assertNull(ClassLoader.getSystemClassLoader().getResource(
+                "jar-resource.txt"));
+        first.close();
+        second.close();
+
+        // A rebuilt jar gets a new loader
+        writeJar(jar, "rebuilt strategy");
+        URLClassLoader rebuilt = StrategyClassLoaders.create(classpath,
+                pluginLoader);
+        assertNotSame(first.getParent(), rebuilt.getParent());
+
+        // Pushed out of the cache by other jars: closed once it isn't in use
+        for (int index = 0; index < 16; index++) {
+            File otherJar = new File(scriptOutputDir, "other-" + index + ".jar");
+            writeJar(otherJar, "other");
+            StrategyClassLoaders.create(
+                    Arrays.asList(otherJar.getAbsolutePath()), pluginLoader)
+                    .close();
+        }
+        assertNotNull(rebuilt.getResource("jar-resource.txt"));
+        rebuilt.close();
+        assertNull(rebuilt.getParent().getResource("jar-resource.txt"));
+    }
+
+    private void writeJar(File jar, String content) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new ZipEntry("jar-resource.txt"));
+            out.write(content.getBytes("UTF-8"));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -15,9 +15,20 @@
  ******************************************************************************/
 package org.javadrop;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.Test;
 
@@ -93,5 +104,164 @@ public class JavaApplicationMojoTest extends JavaDropBaseTest {
         checkRPMFile(rpmFile, "jtestapp.properties", "/usr/local/iovation/jtestapp/conf/");
     }
 
+    /**
+     * With APP_CDS the run script starts the app from a class data sharing
+     * archive, creating it the first time through.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testJavaAppCdsScript() throws Exception {
+        new File(scriptOutputDir.getAbsolutePath() + File.separator + "lib")
+                .mkdirs();
+        File dummyFile = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "lib/dummy.jar");
+        dummyFile.createNewFile();
+
+        File testPom = getTestFile("src/test/resources/java_app_cds_test_pom.xml");
+
+        JavadropMojo mojo;
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        assertNotNull(mojo);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.execute();
+
+        String fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/bin/jtestapp.sh");
+        assertTrue(fileResult.contains("CDS_ARCHIVE=$CDS_DIR/jtestapp-${JAVA_VERSION}.jsa"));
+        assertTrue(fileResult.contains("-XX:SharedArchiveFile=$CDS_ARCHIVE"));
+        assertTrue(fileResult.contains("-XX:ArchiveClassesAtExit=$CDS_DUMP"));
+        assertTrue(fileResult.contains("-XX:+AutoCreateSharedArchive"));
+        assertTrue(fileResult.contains("CDS_DUMP=$CDS_ARCHIVE.$$"));
+        assertTrue(fileResult.contains("MYCLASSPATH=$APP_HOME/lib/*\n"));
+    }
+
+    /**
+     * The runner's JVM profile ends up in the run script, ahead of the
+     * script's own options.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testJvmProfile() throws Exception {
+        new File(scriptOutputDir.getAbsolutePath() + File.separator + "lib")
+                .mkdirs();
+        File dummyFile = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "lib/dummy.jar");
+        dummyFile.createNewFile();
+
+        File testPom = getTestFile("src/test/resources/java_app_profile_test_pom.xml");
+
+        JavadropMojo mojo;
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        assertNotNull(mojo);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.execute();
+
+        String fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/bin/jtestapp.sh");
+        assertTrue(fileResult.contains("add_jvm_flag -XX:+UseZGC"));
+        assertTrue(fileResult.contains("HEAP_PERCENT=60"));
+        assertTrue(fileResult.contains("add_memory_flags\n"));
+        // Sized from the cgroup limits at start
+        assertTrue(fileResult.contains("/sys/fs/cgroup"));
+        assertTrue(fileResult.contains("add_jvm_flag -XX:ActiveProcessorCount=$CONTAINER_CPUS"));
+        assertTrue(fileResult.contains("JAVA_OPTS=\"$JVM_PROFILE_OPTS $JAVA_OPTS\""));
+        assertFalse(fileResult.contains("Unknown JVM_PROFILE"));
+        assertFalse(fileResult.contains("-Xms1G"));
+    }
+
+    /**
+     * With CLASSPATH_MODE 'merged' the dependencies go into one stored jar,
+     * in the order the training run's class loading log used them, and the
+     * run script puts it on the classpath rather than lib/*.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testMergedClasspath() throws Exception {
+        File libDir = new File(scriptOutputDir.getAbsolutePath()
+                + File.separator + "lib");
+        libDir.mkdirs();
+        writeJar(new File(libDir, "a-dep.jar"), "a", "shared/Shared.class",
+                "META-INF/services/shared.Service", "META-INF/A.SF");
+        writeJar(new File(libDir, "b-dep.jar"), "b", "shared/Shared.class",
+                "META-INF/services/shared.Service");
+        writeJar(new File(scriptOutputDir, "dummyartifact.jar"), "app",
+                "test/class.class");
+
+        File testPom = getTestFile("src/test/resources/java_app_classpath_test_pom.xml");
+
+        JavadropMojo mojo;
+        mojo = (JavadropMojo) lookupMojo("javadrop", testPom);
+        assertNotNull(mojo);
+        mojo.setWorkingDirectory(scriptOutputDir);
+        mojo.setPackageDirectory(scriptOutputDir);
+        mojo.execute();
+
+        String fileResult = readFileAsString(getBasedir()
+                + "/target/testdata/runners/bin/jtestapp.sh");
+        assertTrue(fileResult
+                .contains("MYCLASSPATH=$MYCLASSPATH:$APP_HOME/lib/javadrop-classpath.jar\n"));
+        assertFalse(fileResult.contains("$APP_HOME/lib/*"));
+
+        ZipFile merged = new ZipFile(new File(libDir, "javadrop-classpath.jar"));
+        try {
+            List<String> names = new ArrayList<String>();
+            for (ZipEntry entry : Collections.list(merged.entries())) {
+                assertEquals(ZipEntry.STORED, entry.getMethod());
+                names.add(entry.getName());
+            }
+            assertEquals(JarFile.MANIFEST_NAME, names.get(1));
+            assertFalse(names.contains("META-INF/A.SF"));
+            // b-dep.jar was used first
+            assertEquals("b", readEntry(merged, "shared/Shared.class"));
+            assertEquals("b\na\n",
+                    readEntry(merged, "META-INF/services/shared.Service"));
+            assertTrue(readEntry(merged, JarFile.MANIFEST_NAME).contains(
+                    "Class-Path: dummyartifact.jar"));
+        } finally {
+            merged.close();
+        }
+
+        File rpmFile = new File(getBasedir()
+                + "/target/testdata/jtestapp-1.0-1309218173.noarch.rpm");
+        checkRPMFile(rpmFile, "javadrop-classpath.jar",
+                "/usr/local/iovation/jtestapp/lib/");
+        checkRPMFile(rpmFile, "dummyartifact.jar",
+                "/usr/local/iovation/jtestapp/lib/");
+        verifyRPMFileMissing(rpmFile, "a-dep.jar", "/nonexistent/");
+    }
+
+    private void writeJar(File jar, String content, String... names)
+            throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            for (String name : names) {
+                out.putNextEntry(new ZipEntry(name));
+                out.write(content.getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private String readEntry(ZipFile zip, String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = zip.getInputStream(zip.getEntry(name));
+        try {
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toString("UTF-8");
+    }
 
 }
@@ -1,11 +1,21 @@
 package org.javadrop;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.maven.plugin.testing.AbstractMojoTestCase;
 import org.freecompany.redline.ReadableChannelWrapper;
@@ -85,6 +95,85 @@ public abstract class JavaDropBaseTest extends AbstractMojoTestCase {
         return fileData.toString();
     }
 
+    /**
+     * Reads one of the tar files in a deb.
+     * 
+     * @param debFile
+     *            The deb
+     * @param member
+     *            'control.tar' or 'data.tar', uncompressed or gzipped
+     * @return Path in the tar -> content, in the order they are in the tar
+     */
+    protected Map<String, String> readDebMember(File debFile, String member)
+            throws IOException {
+        byte[] deb = Files.readAllBytes(debFile.toPath());
+        assertEquals("!<arch>\n", new String(deb, 0, 8, StandardCharsets.US_ASCII));
+        int position = 8;
+        while (position < deb.length) {
+            String name = new String(deb, position, 16, StandardCharsets.US_ASCII).trim();
+            int size = Integer.parseInt(new String(deb, position + 48, 10,
+                    StandardCharsets.US_ASCII).trim());
+            position += 60;
+            if (name.startsWith(member)) {
+                byte[] tar = Arrays.copyOfRange(deb, position, position + size);
+                if (name.endsWith(".gz")) {
+                    tar = gunzip(tar);
+                }
+                return readTar(tar);
+            }
+            position += size + size % 2;
+        }
+        fail(member + " not found in " + debFile);
+        return null;
+    }
+
+    protected byte[] gunzip(byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private Map<String, String> readTar(byte[] tar) {
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, byte[]> entry : readTarBytes(tar).entrySet()) {
+            entries.put(entry.getKey(), new String(entry.getValue(), StandardCharsets.UTF_8));
+        }
+        return entries;
+    }
+
+    /**
+     * @return Path -> content of each entry, in the order they're in the tar
+     */
+    protected Map<String, byte[]> readTarBytes(byte[] tar) {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        int position = 0;
+        while (position + 512 <= tar.length && tar[position] != 0) {
+            String name = cString(tar, position, 100);
+            String prefix = cString(tar, position + 345, 155);
+            if (prefix.length() > 0) {
+                name = prefix + "/" + name;
+            }
+            int size = Integer.parseInt(cString(tar, position + 124, 12).trim(), 8);
+            position += 512;
+            entries.put(name, Arrays.copyOfRange(tar, position, position + size));
+            position += (size + 511) / 512 * 512;
+        }
+        return entries;
+    }
+
+    private String cString(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) {
+            end++;
+        }
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
     @SuppressWarnings("unchecked")
     protected void checkRPMFile(File rpmFile, String basename, String dirname)
             throws FileNotFoundException, Exception {